@@ -0,0 +1,96 @@
+package buoi7_25_9.bench;
+
+import buoi7_25_9.common.ImageOps;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode / scale / decode 1 frame:
+ * - encodeJpeg: EncoderSession JPEG (đường mà mọi server dùng), theo quality
+ * - scaleIfNeeded: ImageOps.scaleToWidth về 1280 (v1 TARGET_MAX_WIDTH)
+ * - decodeFull: ImageIO.read phía client cho KEY frame
+ * - applyTiles: giải mã + vẽ các tile 96x96 của 1 DELTA lên reference (v3 applyTiles / client tile path)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true"})
+public class CodecBench {
+    private static final int TILE = 96;
+
+    @Param({"720p", "1080p", "4k"})
+    public String res;
+
+    @Param({"0.5", "0.7", "0.85"})
+    public float quality;
+
+    private BufferedImage frame;
+    private byte[] jpeg;
+    private byte[][] tiles;
+    private int[] tileX, tileY;
+    private BufferedImage reference;
+
+    @Setup
+    public void setup() throws IOException {
+        frame = SyntheticScreen.frames("video", res, 1)[0];
+        jpeg = EncoderSession.current().encodeToArray(Codecs.JPEG, frame, quality);
+        reference = ImageOps.deepCopy(frame);
+
+        // 1 hàng tile ngang cửa sổ chữ ~ 1 DELTA khi gõ phím/cuộn ngắn
+        int n = frame.getWidth() / 2 / TILE;
+        tiles = new byte[n][];
+        tileX = new int[n];
+        tileY = new int[n];
+        for (int i = 0; i < n; i++) {
+            tileX[i] = frame.getWidth() / 20 + i * TILE;
+            tileY[i] = frame.getHeight() / 4;
+            tiles[i] = EncoderSession.current().encodeToArray(Codecs.JPEG,
+                    frame.getSubimage(tileX[i], tileY[i], TILE, TILE), quality);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException {
+        return EncoderSession.current().encodeToArray(Codecs.JPEG, frame, quality);
+    }
+
+    @Benchmark
+    public BufferedImage scaleIfNeeded() {
+        return ImageOps.scaleToWidth(frame, 1280);
+    }
+
+    @Benchmark
+    public BufferedImage decodeFull() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    @Benchmark
+    public BufferedImage applyTiles() throws IOException {
+        Graphics2D g2 = reference.createGraphics();
+        for (int i = 0; i < tiles.length; i++) {
+            g2.drawImage(ImageIO.read(new ByteArrayInputStream(tiles[i])), tileX[i], tileY[i], null);
+        }
+        g2.dispose();
+        return reference;
+    }
+}
@@ -0,0 +1,83 @@
+package buoi7_25_9.bench;
+
+import buoi7_25_9.common.RasterDiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Các phép so sánh frame của RasterDiff trên cặp frame liên tiếp của kịch bản "typing":
+ * - isMostlyStatic: tỉ lệ lấy mẫu (v1), step như ScreenCaptureEncoder
+ * - diffTiles: dirty map theo tileSize, thr = 0 (patch2, exact) / 12 (v3, MAD)
+ * - isBlockSame: toàn bộ block 16x16 so exact như v2 (1 lần gọi cho mỗi block)
+ * - findChangeBoundingBox: bounding box block 16 (v2)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true"})
+public class DiffBench {
+
+    @Param({"720p", "1080p", "4k"})
+    public String res;
+
+    /** Tham số riêng của diffTiles (các benchmark khác không nhân số lần chạy theo nó). */
+    @State(Scope.Thread)
+    public static class Tiles {
+        @Param({"64", "96", "128"})
+        public int tileSize;
+
+        @Param({"0", "12"})
+        public int thr;
+    }
+
+    private RasterDiff.Plane prev, cur;
+
+    @Setup
+    public void setup() {
+        BufferedImage[] f = SyntheticScreen.frames("typing", res, 2);
+        prev = RasterDiff.plane(f[0]);
+        cur = RasterDiff.plane(f[1]);
+    }
+
+    @Benchmark
+    public double isMostlyStatic() {
+        int step = Math.max(8, Math.min(cur.width, cur.height) / 120);
+        return RasterDiff.sampledChangeRatio(prev, cur, step, 18);
+    }
+
+    @Benchmark
+    public boolean[] diffTiles(Tiles t) {
+        return RasterDiff.dirtyTiles(prev, cur, t.tileSize, t.tileSize, t.thr);
+    }
+
+    @Benchmark
+    public int isBlockSame() {
+        int same = 0;
+        for (int y = 0; y < cur.height; y += 16) {
+            for (int x = 0; x < cur.width; x += 16) {
+                if (RasterDiff.sameBlock(prev, cur, x, y, Math.min(16, cur.width - x), Math.min(16, cur.height - y))) same++;
+            }
+        }
+        return same;
+    }
+
+    @Benchmark
+    public Rectangle findChangeBoundingBox() {
+        return RasterDiff.changedBounds(prev, cur, 16);
+    }
+}
@@ -0,0 +1,41 @@
+package buoi7_25_9.bench;
+
+import buoi7_25_9.common.source.FrameSource;
+import buoi7_25_9.common.source.FrameSources;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Frame đầu vào cho benchmark, lấy từ nguồn giả lập của server (seed cố định -> lần chạy nào cũng như nhau).
+ * - frames("video", res, 1): desktop + vùng video nhiễu -> trường hợp nặng cho encode/decode
+ * - frames("typing", res, 2): cặp (frame, frame + 2 ký tự) -> trường hợp diff gặp nhiều nhất
+ */
+final class SyntheticScreen {
+
+    private SyntheticScreen() {
+    }
+
+    static int width(String res) {
+        switch (res) {
+            case "720p": return 1280;
+            case "1080p": return 1920;
+            case "4k": return 3840;
+            default: throw new IllegalArgumentException("res: " + res);
+        }
+    }
+
+    static int height(String res) {
+        return width(res) * 9 / 16;
+    }
+
+    static BufferedImage[] frames(String scenario, String res, int count) {
+        try {
+            FrameSource src = FrameSources.byName(scenario, width(res), height(res), 42);
+            BufferedImage[] out = new BufferedImage[count];
+            for (int i = 0; i < count; i++) out[i] = src.capture();
+            return out;
+        } catch (Exception e) {
+            throw new IllegalStateException("Synthetic source " + scenario + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package buoi7_25_9.bench;
+
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.PacketStream;
+import buoi7_25_9.common.ViewerThreads;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bộ nhớ + thông lượng của server thread-per-viewer theo chế độ thread (ViewerThreads: platform / small / virtual)
+ * ở 100 / 1.000 / 10.000 viewer giả lập. Không dùng JMH: cái cần đo là RSS / heap / số thread của cả JVM
+ * khi giữ N viewer, mỗi cấu hình chạy trong 1 JVM con riêng để số bộ nhớ không lẫn nhau.
+ *
+ * Viewer giả lập = đúng vòng lặp của StreamSender (PacketStream.Cursor.await() -> ghi -> sent()),
+ * chỉ thay socket bằng 1 "đường truyền" chặn LINK_MS mỗi packet (như write() chờ buffer gửi của socket),
+ * để không cần 2 file descriptor / viewer. Publisher phát KEY + DELTA ở FPS, GOP 10 như v3.
+ *
+ *   mvn -B -Pbench package
+ *   java -cp target/benchmarks.jar buoi7_25_9.bench.ViewerThreadsBench                 (bảng đủ các cấu hình)
+ *   java -cp target/benchmarks.jar buoi7_25_9.bench.ViewerThreadsBench virtual 10000 10 (1 cấu hình)
+ * Virtual thread cần chạy trên JDK 21+ (trên JDK cũ hơn dòng "virtual" tự chuyển sang small và ghi rõ).
+ */
+public class ViewerThreadsBench {
+    private static final int[] VIEWERS = {100, 1_000, 10_000};
+    private static final String[] MODES = {ViewerThreads.PLATFORM, ViewerThreads.SMALL, ViewerThreads.VIRTUAL};
+    private static final int FPS = 20;
+    private static final int GOP = 10;
+    private static final int KEY_BYTES = 32 * 1024;
+    private static final int DELTA_BYTES = 4 * 1024;
+    private static final long LINK_MS = 2;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2) {
+            int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            System.out.println(run(args[0], Integer.parseInt(args[1]), seconds));
+            return;
+        }
+        System.out.println(String.format("%-9s %7s | %-9s %8s %8s %8s | %9s %9s %9s",
+                "mode", "viewers", "actual", "rssMB", "heapMB", "threads", "pkt/s", "of ideal", "p99 ms"));
+        for (int viewers : VIEWERS) {
+            for (String mode : MODES) {
+                System.out.println(fork(mode, viewers, 10));
+            }
+        }
+    }
+
+    // 1 cấu hình trong JVM con, giới hạn heap như nhau cho mọi chế độ
+    private static String fork(String mode, int viewers, int seconds) throws IOException, InterruptedException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-Xmx1g", "-cp", System.getProperty("java.class.path"),
+                ViewerThreadsBench.class.getName(), mode, String.valueOf(viewers), String.valueOf(seconds))
+                .redirectErrorStream(true).start();
+        String out = new String(p.getInputStream().readAllBytes()).trim();
+        int code = p.waitFor();
+        if (code != 0 || out.isEmpty()) {
+            return String.format("%-9s %7d | failed (exit %d): %s", mode, viewers, code, lastLine(out));
+        }
+        return lastLine(out);
+    }
+
+    static String run(String mode, int viewers, int seconds) throws InterruptedException {
+        PacketStream stream = new PacketStream("bench");
+        LongAdder delivered = new LongAdder();
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch ready = new CountDownLatch(viewers);
+        List<Thread> threads = new ArrayList<>(viewers);
+
+        Thread publisher = new Thread(() -> publish(stream), "publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+
+        for (int i = 0; i < viewers; i++) {
+            Thread t = ViewerThreads.create(mode, "viewer-" + i, () -> viewer(stream, ready, delivered, latency));
+            t.setDaemon(true); // virtual thread luôn là daemon
+            t.start();
+            threads.add(t);
+        }
+        ready.await(); // mọi viewer đã nhận packet đầu
+
+        // Đo bộ nhớ khi giữ đủ N viewer, rồi đếm thông lượng trong cửa sổ seconds
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long heapMB = (rt.totalMemory() - rt.freeMemory()) >> 20;
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rssMB = rssKB() >> 10;
+
+        latency.reset();
+        long d0 = delivered.sum();
+        long t0 = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        double pps = (delivered.sum() - d0) / secs;
+        double ideal = (double) viewers * FPS;
+
+        String actual = ViewerThreads.VIRTUAL.equals(mode) && !ViewerThreads.virtualSupported() ? "small" : mode;
+        return String.format("%-9s %7d | %-9s %8d %8d %8d | %9.0f %8.1f%% %9.2f",
+                mode, viewers, actual, rssMB, heapMB, platformThreads, pps, 100 * pps / ideal, latency.percentileMs(99));
+    }
+
+    // Vòng lặp của StreamSender, socket thay bằng đường truyền chặn LINK_MS
+    private static void viewer(PacketStream stream, CountDownLatch ready, LongAdder delivered, LatencyHistogram latency) {
+        boolean first = true;
+        try (PacketStream.Cursor cursor = stream.open(Thread.currentThread().getName())) {
+            while (true) {
+                PacketStream.Packet p = cursor.await();
+                Thread.sleep(LINK_MS);
+                latency.recordNanos(System.nanoTime() - ByteBuffer.wrap(p.data).getLong(0));
+                cursor.sent();
+                delivered.increment();
+                if (first) {
+                    ready.countDown();
+                    first = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // hết benchmark
+        }
+    }
+
+    // KEY + (GOP-1) DELTA, 8 byte đầu mỗi packet = nanoTime lúc phát để viewer đo độ trễ
+    private static void publish(PacketStream stream) {
+        long intervalNs = 1_000_000_000L / FPS;
+        long next = System.nanoTime();
+        for (long i = 0; ; i++) {
+            boolean key = i % GOP == 0;
+            byte[] data = new byte[key ? KEY_BYTES : DELTA_BYTES];
+            ByteBuffer.wrap(data).putLong(0, System.nanoTime());
+            stream.append(key ? PacketStream.KEY : PacketStream.DELTA, data);
+            next += intervalNs;
+            long sleepNs = next - System.nanoTime();
+            if (sleepNs > 0) {
+                try {
+                    Thread.sleep(sleepNs / 1_000_000L, (int) (sleepNs % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long rssKB() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // không phải Linux
+        }
+        return -1;
+    }
+
+    private static String lastLine(String s) {
+        int i = s.lastIndexOf('\n');
+        return i < 0 ? s : s.substring(i + 1);
+    }
+}
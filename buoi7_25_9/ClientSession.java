@@ -0,0 +1,183 @@
+package buoi7_25_9;
+
+import buoi7_25_9.common.FrameView;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 1 viewer trên 1 Reactor: ring buffer các FrameView chờ gửi (drop oldest khi đầy).
+ * Chế độ giới hạn độ trễ (maxLagNanos >= 0): trước khi bắt đầu gửi 1 frame, nếu frame đó chụp trước
+ * frame mới nhất trong ring quá maxLag -> bỏ hết, nhảy thẳng tới frame mới nhất (frame đang gửi dở
+ * vẫn gửi trọn). Viewer chậm bị bỏ frame thay vì trễ dần tới cả ring.
+ * Độ trễ của viewer (đồng hồ server): capture -> gửi xong, và capture -> received/decoded/painted
+ * theo Receipt client gửi lên.
+ * Chỉ thread của reactor sở hữu dùng -> không cần synchronized.
+ */
+final class ClientSession {
+    final SocketChannel ch;
+    SelectionKey key;
+    private final FrameView[] ring; // ring tròn: head..head+count-1
+    private int head = 0, count = 0;
+    private int headSent = 0;       // số byte của frame đầu đã gửi
+    private boolean closed = false;
+    private final long maxLagNanos; // < 0: tắt, chỉ drop oldest khi ring đầy
+    private final ServerMetrics metrics;
+
+    // Thống kê (reactor thread ghi, in qua report của reactor)
+    private long sentFrames = 0;
+    private long droppedFrames = 0;
+    private long lastLagNanos = 0;  // frame vừa bắt đầu gửi được chụp trước frame mới nhất bao lâu
+    private long maxLagSeenNanos = 0;
+
+    // Receipt từ client: đọc vào inbox (có thể nhận dở 1 record), mỗi kind 1 histogram
+    final ByteBuffer inbox = ByteBuffer.allocate(Receipt.BYTES * 32);
+    private final LatencyHistogram sentLatency = new LatencyHistogram();
+    private final LatencyHistogram deliverTiming; // chung mọi session (ServerMetrics.DELIVER)
+    private final LatencyHistogram[] receiptLatency = {
+            new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+
+    ClientSession(SocketChannel ch, int capacity, long maxLagNanos, ServerMetrics metrics) {
+        this.ch = ch;
+        this.ring = new FrameView[Math.max(2, capacity)];
+        this.maxLagNanos = maxLagNanos;
+        this.metrics = metrics;
+        this.deliverTiming = metrics.stage(ServerMetrics.DELIVER);
+    }
+
+    // Enqueue (retain 1 ref cho session); nếu đầy -> drop oldest
+    void enqueue(FrameView f) {
+        if (closed) return;
+        if (count == ring.length) dropOldest();
+        ring[(head + count) % ring.length] = f.retain();
+        count++;
+    }
+
+    /**
+     * Ghi tiếp các frame trong ring; trả về true nếu đã gửi hết.
+     * Dừng khi kernel buffer đầy, frame gửi dở hoặc quá spinLimit frame.
+     */
+    boolean writePending(int spinLimit) throws IOException {
+        int spins = 0;
+        while (count > 0 && spins++ < spinLimit) {
+            if (headSent == 0) beginHead();
+            FrameView f = ring[head];
+            int n = f.writeTo(ch, headSent);
+            if (n == 0) return false;             // kernel full, chờ OP_WRITE
+            headSent += n;
+            metrics.bytesSent(n);
+            if (headSent < f.size()) return false; // chưa gửi hết -> lần sau tiếp tục
+            long captureNanos = f.frame().tsNanos;
+            popHead();
+            sentFrames++;
+            metrics.frameSent();
+            long latency = System.nanoTime() - captureNanos;
+            sentLatency.recordNanos(latency);
+            deliverTiming.recordNanos(latency);
+        }
+        return count == 0;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /** 1 dòng thống kê; chỉ gọi trên thread reactor. */
+    String stats() {
+        return String.format("sent=%d dropped=%d lag=%.1fms maxLag=%.1fms queued=%d",
+                sentFrames, droppedFrames, lastLagNanos / 1e6, maxLagSeenNanos / 1e6, count);
+    }
+
+    /** Xử lý các Receipt trọn vẹn trong inbox (sau khi reactor đọc vào), giữ lại phần dở. */
+    void drainReceipts(long nowNanos) {
+        inbox.flip();
+        while (inbox.remaining() >= Receipt.BYTES) {
+            int kind = inbox.get();
+            inbox.getInt(); // seq: chưa dùng, để client/relay đối chiếu khi debug
+            long captureNanos = inbox.getLong();
+            long latency = nowNanos - captureNanos;
+            // kind lạ hoặc giá trị không phải của server này (client sai giao thức) -> bỏ qua
+            if (kind >= Receipt.RECEIVED && kind <= Receipt.PAINTED && latency >= 0 && latency < 60_000_000_000L) {
+                receiptLatency[kind - Receipt.RECEIVED].recordNanos(latency);
+            }
+        }
+        inbox.compact();
+    }
+
+    /** Phân vị độ trễ từ lúc chụp, đo bằng đồng hồ server (chỉ gọi trên thread reactor). */
+    String latencyStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(latency("sent", sentLatency));
+        for (int k = Receipt.RECEIVED; k <= Receipt.PAINTED; k++) {
+            sb.append(" | ").append(latency(Receipt.name(k), receiptLatency[k - Receipt.RECEIVED]));
+        }
+        return sb.toString();
+    }
+
+    void resetLatency() {
+        sentLatency.reset();
+        for (LatencyHistogram h : receiptLatency) h.reset();
+    }
+
+    private static String latency(String name, LatencyHistogram h) {
+        if (h.count() == 0) return name + " -";
+        return String.format("%s p50=%.1f p99=%.1f max=%.1fms", name, h.percentileMs(50), h.percentileMs(99), h.maxMs());
+    }
+
+    void close() {
+        closed = true;
+        while (count > 0) popHead();
+        try { ch.close(); } catch (IOException ignored) {}
+    }
+
+    // Sắp gửi frame đầu: đo độ trễ so với frame mới nhất, quá giới hạn thì nhảy tới frame mới nhất
+    private void beginHead() {
+        long newestTs = ring[(head + count - 1) % ring.length].frame().tsNanos;
+        long lag = newestTs - ring[head].frame().tsNanos;
+        if (lag > maxLagSeenNanos) maxLagSeenNanos = lag; // ghi nhận cả độ trễ đã khiến session phải nhảy
+        if (maxLagNanos >= 0 && lag > maxLagNanos) {
+            while (count > 1) {
+                popHead();
+                droppedFrames++;
+            }
+            lag = 0;
+        }
+        lastLagNanos = lag;
+    }
+
+    private void popHead() {
+        ring[head].release();
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        headSent = 0;
+    }
+
+    // Frame đầu đang gửi dở thì KHÔNG được bỏ (client sẽ đọc lệch header) -> bỏ frame kế tiếp
+    private void dropOldest() {
+        droppedFrames++;
+        if (headSent == 0) {
+            popHead();
+            return;
+        }
+        int next = (head + 1) % ring.length;
+        ring[next].release();
+        ring[next] = ring[head];
+        ring[head] = null;
+        head = next;
+        count--;
+    }
+}
@@ -0,0 +1,280 @@
+package buoi7_25_9;
+
+import buoi7_25_9.common.FrameView;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.PooledFrame;
+import buoi7_25_9.common.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 1 reactor = 1 thread + 1 Selector, sở hữu 1 nhóm session (single-writer):
+ * - Thread khác chỉ giao việc qua tasks (register channel mới, fan-out frame) rồi wakeup selector
+ * - Fan-out: 1 FrameView / frame cho cả reactor, mỗi session giữ offset riêng
+ * - Giữ view của frame mới nhất: session mới vào nhận ngay frame đó (v1 frame nào cũng là ảnh đầy đủ),
+ *   không phải chờ tới lần chụp sau (màn hình tĩnh / relay ở xa)
+ * - OP_WRITE chỉ bật khi session còn byte chưa gửi
+ * - Metrics: enqueue = 1 lần fan-out cả reactor, write = 1 lần writePending của 1 session
+ */
+final class Reactor implements Runnable {
+    private final int id;
+    private final int ringCapacity;
+    private final int spinLimit;
+    private final long maxLagNanos;
+    private final ServerMetrics metrics;
+    private final LatencyHistogram enqueueTiming;
+    private final LatencyHistogram writeTiming;
+    private final Selector selector;
+    private final Map<SocketChannel, ClientSession> sessions = new HashMap<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Frame chờ fan-out (latest-wins): broadcaster đặt vào, thread reactor lấy ra trong task
+    private final AtomicReference<PooledFrame> pendingFrame = new AtomicReference<>();
+    private final Runnable fanOutTask = this::fanOutPending; // tạo 1 lần, không cấp phát mỗi frame
+    private final AtomicInteger sessionCount = new AtomicInteger(); // acceptor đọc để cân tải
+    private final List<SelectionKey> closeLater = new ArrayList<>();
+    private FrameView latest; // giữ 1 ref; chỉ thread reactor dùng
+
+    Reactor(int id, int ringCapacity, int spinLimit, long maxLagNanos, ServerMetrics metrics) throws IOException {
+        this.id = id;
+        this.ringCapacity = ringCapacity;
+        this.spinLimit = spinLimit;
+        this.maxLagNanos = maxLagNanos;
+        this.metrics = metrics;
+        this.enqueueTiming = metrics.stage(ServerMetrics.ENQUEUE); // mọi reactor ghi chung (lock-free)
+        this.writeTiming = metrics.stage(ServerMetrics.WRITE);
+        this.selector = Selector.open();
+    }
+
+    int id() {
+        return id;
+    }
+
+    int sessionCount() {
+        return sessionCount.get();
+    }
+
+    /** Gọi từ acceptor: giao channel (đã non-blocking) cho reactor này. */
+    void register(SocketChannel ch) {
+        sessionCount.incrementAndGet(); // tính ngay để acceptor cân tải đúng khi accept dồn dập
+        tasks.add(() -> doRegister(ch));
+        selector.wakeup();
+    }
+
+    /** Gọi từ broadcaster: reactor nhận 1 ref của frame (caller đã retain). */
+    void publish(PooledFrame f) {
+        PooledFrame stale = pendingFrame.getAndSet(f);
+        if (stale != null) {
+            stale.release(); // task trước chưa chạy -> đã nằm sẵn trong queue
+        } else {
+            tasks.add(fanOutTask);
+        }
+        selector.wakeup();
+    }
+
+    /** In thống kê session; chạy trên thread reactor (không đọc chéo trạng thái session từ thread khác). */
+    void report(int worst) {
+        runOnReactor(() -> printReport(worst));
+    }
+
+    /** In histogram độ trễ của từng viewer (reset = xoá sau khi in). */
+    void latencyReport(boolean reset) {
+        runOnReactor(() -> {
+            StringBuilder sb = new StringBuilder("[Latency] reactor ").append(id).append(", ms từ lúc chụp");
+            for (ClientSession s : sessions.values()) {
+                sb.append("\n  ").append(s.ch.socket().getRemoteSocketAddress()).append(" ").append(s.latencyStats());
+                if (reset) s.resetLatency();
+            }
+            System.out.println(sb);
+        });
+    }
+
+    private void runOnReactor(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(); // chờ sự kiện I/O hoặc wakeup từ acceptor/broadcaster
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    try {
+                        if (!key.isValid()) continue;
+
+                        if (key.isReadable()) {
+                            handleRead(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handleWrite(key);
+                        }
+                    } catch (CancelledKeyException ignored) {
+                        // key đã bị hủy do đóng channel
+                    } catch (Exception e) {
+                        // lỗi bất ngờ -> đóng channel
+                        closeKey(key, "[I/O] Error: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[Reactor " + id + "] Fatal NIO error: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[Reactor " + id + "] Task: " + e.getMessage());
+            }
+        }
+    }
+
+    private void doRegister(SocketChannel ch) {
+        try {
+            // Chưa có gì để gửi -> chỉ OP_READ (phát hiện client đóng kết nối), OP_WRITE bật khi có frame
+            ClientSession session = new ClientSession(ch, ringCapacity, maxLagNanos, metrics);
+            session.key = ch.register(selector, SelectionKey.OP_READ, session);
+            sessions.put(ch, session);
+            metrics.sessionOpened();
+            System.out.println("[Accept] " + ch.getRemoteAddress() + " -> reactor " + id);
+        } catch (IOException e) {
+            sessionCount.decrementAndGet();
+            try { ch.close(); } catch (IOException ignored) {}
+            System.err.println("[Accept] Error: " + e.getMessage());
+            return;
+        }
+        if (latest != null) sendLatest(sessions.get(ch));
+    }
+
+    // Viewer mới: gửi luôn frame mới nhất đang giữ
+    private void sendLatest(ClientSession sess) {
+        sess.enqueue(latest);
+        try {
+            if (!write(sess)) sess.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeKey(sess.key, "[Write] Error");
+        }
+    }
+
+    // Client gửi lên Receipt (received/decoded/painted) cho từng frame; EOF -> đóng session ngay
+    private void handleRead(SelectionKey key) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        ClientSession sess = (ClientSession) key.attachment();
+        int n;
+        while ((n = ch.read(sess.inbox)) > 0) {
+            sess.drainReceipts(System.nanoTime());
+        }
+        if (n < 0) closeKey(key, "EOF");
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        ClientSession sess = (ClientSession) key.attachment();
+        if (sess == null) { closeKey(key, "[Write] No session"); return; }
+
+        // Gửi tiếp các frame trong ring (dừng khi kernel đầy / gửi dở / quá spinLimit)
+        // Gửi hết -> bỏ OP_WRITE, selector không còn bị đánh thức vô ích bởi socket rảnh
+        if (write(sess)) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private boolean write(ClientSession sess) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            return sess.writePending(spinLimit);
+        } finally {
+            writeTiming.recordNanos(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * Task fan-out: enqueue cùng 1 FrameView vào ring từng session của reactor.
+     * Session đang rỗng thì ghi thử ngay (thường xong luôn, khỏi chờ thêm 1 vòng select);
+     * chỉ khi còn byte tồn mới bật OP_WRITE (backpressure thật theo kernel buffer).
+     */
+    private void fanOutPending() {
+        PooledFrame f = pendingFrame.getAndSet(null);
+        if (f == null) return;
+        long t0 = System.nanoTime();
+        FrameView view = new FrameView(f); // view nhận ref của reactor
+        try {
+            for (ClientSession sess : sessions.values()) {
+                boolean idle = sess.isEmpty();
+                sess.enqueue(view);
+                if (!idle) continue; // đã có OP_WRITE, handleWrite sẽ lo
+                try {
+                    if (!write(sess)) {
+                        sess.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                } catch (Exception e) {
+                    closeLater.add(sess.key); // đóng sau vòng lặp, tránh ConcurrentModification trên sessions
+                }
+            }
+        } finally {
+            if (latest != null) latest.release();
+            latest = view; // ref của reactor chuyển sang latest (thay vì release)
+        }
+        enqueueTiming.recordNanos(System.nanoTime() - t0);
+        for (SelectionKey key : closeLater) closeKey(key, "[Write] Error");
+        closeLater.clear();
+    }
+
+    // Tổng của reactor + tối đa `worst` session bỏ nhiều frame nhất (link xấu)
+    private void printReport(int worst) {
+        long dropped = 0;
+        List<ClientSession> bad = new ArrayList<>();
+        for (ClientSession s : sessions.values()) {
+            dropped += s.droppedFrames();
+            if (s.droppedFrames() > 0) bad.add(s);
+        }
+        bad.sort((a, b) -> Long.compare(b.droppedFrames(), a.droppedFrames()));
+        StringBuilder sb = new StringBuilder("[Reactor ").append(id).append("] sessions=").append(sessions.size())
+                .append(" dropped=").append(dropped);
+        for (int i = 0; i < Math.min(worst, bad.size()); i++) {
+            ClientSession s = bad.get(i);
+            sb.append("\n  ").append(s.ch.socket().getRemoteSocketAddress()).append(" ").append(s.stats());
+        }
+        System.out.println(sb);
+    }
+
+    private void closeKey(SelectionKey key, String reason) {
+        SocketChannel ch = (SocketChannel) key.channel();
+        ClientSession sess = (ClientSession) key.attachment();
+        try {
+            if (sessions.remove(ch) != null) {
+                System.out.println("[Close] " + ch.getRemoteAddress() + " - " + reason);
+            }
+        } catch (Exception ignored) {
+        }
+        if (sess != null && !sess.isClosed()) {
+            sess.close(); // trả ref các frame còn trong ring + đóng channel
+            sessionCount.decrementAndGet();
+            metrics.sessionClosed();
+        }
+        try { ch.close(); } catch (Exception ignored) {}
+        try { key.cancel(); } catch (Exception ignored) {}
+    }
+}
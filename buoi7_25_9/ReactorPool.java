@@ -0,0 +1,99 @@
+package buoi7_25_9;
+
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.PooledFrame;
+import buoi7_25_9.common.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Nhóm N reactor (mặc định = số core), mỗi reactor 1 thread + 1 Selector riêng:
+ * - assign(): acceptor giao channel mới cho reactor ít session nhất (hoà thì xoay vòng)
+ * - publish(): mỗi reactor nhận 1 ref của frame đã mã hoá và tự fan-out cho session của nó
+ * - maxLagNanos >= 0: session trễ hơn frame mới nhất quá mức này thì nhảy thẳng tới frame mới nhất
+ */
+final class ReactorPool {
+    private final Reactor[] reactors;
+    private int next = 0; // chỉ acceptor dùng
+
+    ReactorPool(String name, int size, int ringCapacity, int spinLimit, long maxLagNanos,
+                ServerMetrics metrics) throws IOException {
+        reactors = new Reactor[Math.max(1, size)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i, ringCapacity, spinLimit, maxLagNanos, metrics);
+            Thread t = new Thread(reactors[i], name + "-reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Gọi từ thread acceptor duy nhất. */
+    Reactor assign(SocketChannel ch) {
+        Reactor best = null;
+        for (int i = 0; i < reactors.length; i++) {
+            Reactor r = reactors[(next + i) % reactors.length];
+            if (best == null || r.sessionCount() < best.sessionCount()) best = r;
+        }
+        next = (best.id() + 1) % reactors.length;
+        best.register(ch);
+        return best;
+    }
+
+    /** Phát frame tới mọi reactor (mỗi reactor retain 1 ref); caller vẫn giữ ref của mình. */
+    void publish(PooledFrame f) {
+        for (Reactor r : reactors) {
+            r.publish(f.retain());
+        }
+    }
+
+    /**
+     * Thread "broadcaster": mỗi khi hub có frame mới
+     * - Được FrameHub đánh thức và nhận 1 ref của frame mới nhất
+     * - Giao frame cho từng reactor (mỗi reactor 1 ref, frame cũ reactor chưa kịp fan-out -> bỏ)
+     * - Mỗi reactor tự enqueue vào ring các session của mình trên thread của nó
+     * Broadcaster không chạm vào session nào -> không cần synchronized trên session.
+     */
+    void startBroadcaster(FrameHub<PooledFrame> frames) {
+        Thread t = new Thread(() -> {
+            FrameHub<PooledFrame>.Subscriber sub = frames.subscribe("broadcaster");
+            while (true) {
+                try {
+                    PooledFrame f = sub.await();
+                    try {
+                        publish(f);
+                    } finally {
+                        f.release();
+                    }
+                    sub.sent();
+                } catch (InterruptedException ignored) {
+                } catch (Exception e) {
+                    System.err.println("[Broadcaster] " + e.getMessage());
+                    try { Thread.sleep(5); } catch (InterruptedException ignored) {}
+                }
+            }
+        }, "broadcaster");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Mỗi reactor tự in thống kê trên thread của nó (kèm tối đa `worst` session bỏ frame nhiều nhất). */
+    void report(int worst) {
+        for (Reactor r : reactors) r.report(worst);
+    }
+
+    /** Histogram độ trễ từng viewer, mỗi reactor in trên thread của nó. */
+    void latencyReport(boolean reset) {
+        for (Reactor r : reactors) r.latencyReport(reset);
+    }
+
+    int size() {
+        return reactors.length;
+    }
+
+    int sessionCount() {
+        int n = 0;
+        for (Reactor r : reactors) n += r.sessionCount();
+        return n;
+    }
+}
@@ -1,11 +1,19 @@
 package buoi7_25_9;
 
-import javax.imageio.ImageIO;
+import buoi7_25_9.common.FrameHeader;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.ReceiptWriter;
+import buoi7_25_9.common.StripedJpegCodec;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.multicast.McastPacket;
+import buoi7_25_9.multicast.MulticastReceiver;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayDeque;
 import java.util.Deque;
@@ -17,13 +25,18 @@ import java.util.Deque;
  * - Nhận dữ liệu ở thread riêng, readFully để đọc đủ n byte.
  * - Tạo DataInputStream 1 lần; chỉ repaint khi có frame mới.
  * - Giữ tỉ lệ ảnh; không gọi repaint() bên trong paint.
+ * - Mỗi frame gửi ngược Receipt received / decoded / painted để server đo độ trễ từ lúc chụp.
+ * - -Dscreen.multicast=group:port: nhận qua UDP multicast thay vì TCP (không có Receipt).
  */
 public class ScreenClient extends JFrame {
 
-    private volatile BufferedImage latestFrame;   // khung hình hiện tại (thread-safe qua volatile)
+    private volatile Shown latestFrame;           // khung hình hiện tại + header (thread-safe qua volatile)
     private final VideoPanel panel = new VideoPanel();
     private Socket socket;
     private DataInputStream in;
+    private volatile ReceiptWriter receipts;      // receiver + EDT cùng gửi, không chặn (null khi multicast)
+    private MulticastReceiver mcast;
+    private int lastPaintedSeq = -1;              // chỉ EDT dùng: mỗi frame gửi PAINTED 1 lần
     private volatile long latestFrameRecvNs = 0L; // thời điểm KHUNG MỚI được nhận xong (ns)
 
 
@@ -64,8 +77,18 @@ public class ScreenClient extends JFrame {
 
     private void receiveLoop() {
         try {
+            InetSocketAddress group = McastPacket.groupFromSystemProperty();
+            if (group != null) {
+                mcast = new MulticastReceiver(group, McastPacket.interfaceFromSystemProperty());
+                while (true) {
+                    byte[] buf = mcast.next();
+                    show(buf, buf.length);
+                }
+            }
+
             socket = new Socket(HOST, PORT);
             in = new DataInputStream(socket.getInputStream());
+            receipts = new ReceiptWriter(socket.getOutputStream(), "receipt-writer");
 
             while (!socket.isClosed()) {
                 int n = in.readInt();
@@ -73,14 +96,7 @@ public class ScreenClient extends JFrame {
 
                 byte[] buf = new byte[n];
                 in.readFully(buf);
-
-                BufferedImage img = ImageIO.read(new java.io.ByteArrayInputStream(buf));
-                if (img != null) {
-                    latestFrame = img;
-                    latestFrameRecvNs = System.nanoTime(); // mốc thời gian nhận xong khung
-                    recvFps.onTick(latestFrameRecvNs);     // cập nhật receive FPS
-                    panel.repaint();
-                }
+                show(buf, n);
             }
         } catch (Exception e) {
             SwingUtilities.invokeLater(() ->
@@ -91,7 +107,33 @@ public class ScreenClient extends JFrame {
         }
     }
 
+    /** buf[0, n) = [FrameHeader][payload]: giải mã rồi thay khung đang hiển thị. */
+    private void show(byte[] buf, int n) throws IOException {
+        FrameHeader hdr = FrameHeader.read(buf, n);
+        sendReceipt(Receipt.RECEIVED, hdr);
+
+        // Payload multi-part (server chạy -Dscreen.encode=stripes) -> giải mã từng dải rồi ghép
+        int off = FrameHeader.BYTES, len = n - FrameHeader.BYTES;
+        BufferedImage img = hdr.striped()
+                ? StripedJpegCodec.decode(buf, off, len)
+                : Codecs.byId(hdr.codecId).decode(buf, off, len);
+        if (img != null) {
+            sendReceipt(Receipt.DECODED, hdr);
+            latestFrame = new Shown(img, hdr);
+            latestFrameRecvNs = System.nanoTime(); // mốc thời gian nhận xong khung
+            recvFps.onTick(latestFrameRecvNs);     // cập nhật receive FPS
+            panel.repaint();
+        }
+    }
+
+    private void sendReceipt(int kind, FrameHeader hdr) {
+        ReceiptWriter r = receipts;
+        if (r != null) r.send(kind, hdr.seq, hdr.captureNanos);
+    }
+
     private void safeClose() {
+        if (mcast != null) mcast.close();
+        if (receipts != null) receipts.close();
         try { if (in != null) in.close(); } catch (IOException ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
     }
@@ -116,11 +158,12 @@ public class ScreenClient extends JFrame {
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            BufferedImage img = latestFrame;
-            if (img == null) {
+            Shown shown = latestFrame;
+            if (shown == null) {
                 drawCentered((Graphics2D) g, "Đang chờ khung hình từ server... (nhấn H để ẩn/hiện HUD)");
                 return;
             }
+            BufferedImage img = shown.img;
 
             // vẽ ảnh giữ tỉ lệ
             int availW = Math.max(1, getWidth() - 2 * MARGIN);
@@ -138,6 +181,10 @@ public class ScreenClient extends JFrame {
             // cập nhật render FPS sau khi vẽ
             long now = System.nanoTime();
             renderFps.onTick(now);
+            if (shown.header.seq != lastPaintedSeq) {
+                lastPaintedSeq = shown.header.seq;
+                sendReceipt(Receipt.PAINTED, shown.header);
+            }
 
             if (showHud) {
                 // Độ trễ "age" từ lúc nhận khung đến lúc vẽ (ms)
@@ -181,6 +228,17 @@ public class ScreenClient extends JFrame {
         }
     }
 
+    // Ảnh + header của nó, thay cùng lúc (paint luôn thấy đúng seq của ảnh đang vẽ)
+    private static final class Shown {
+        final BufferedImage img;
+        final FrameHeader header;
+
+        Shown(BufferedImage img, FrameHeader header) {
+            this.img = img;
+            this.header = header;
+        }
+    }
+
     // ----- Lớp đo FPS: đếm tick trong cửa sổ thời gian -----
     private static class FpsMeter {
         private final long windowNs;               // kích thước cửa sổ (ns)
@@ -0,0 +1,160 @@
+package buoi7_25_9;
+
+import buoi7_25_9.common.BufferPool;
+import buoi7_25_9.common.FrameHeader;
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.PooledFrame;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.ReceiptWriter;
+import buoi7_25_9.common.ServerMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay: kết nối tới ScreenServer v1 (hoặc relay khác) như 1 viewer, phát lại NGUYÊN frame đã mã hoá
+ * cho viewer của mình qua cùng ReactorPool (NIO fan-out), không giải mã / mã hoá lại:
+ * - Upstream [int length][FrameHeader][payload] -> copy 1 lần vào PooledFrame -> FrameHub -> broadcaster -> reactors
+ * - 2 phía cùng giao thức v1 -> relay nối tiếp nhau thành cây (server -> relay phòng A -> relay dãy A1 ...)
+ * - Reactor giữ frame mới nhất -> viewer vào muộn nhận ngay 1 ảnh đầy đủ
+ * - Đo độ trễ theo từng chặng, mỗi chặng dùng đồng hồ của chính nó (không cần đồng bộ giờ giữa các máy):
+ *   relay gửi Receipt RECEIVED lên upstream sau khi publish, qua ReceiptWriter (upstream thấy độ trễ tới relay trong lệnh "stats"),
+ *   rồi đóng dấu lại captureNanos = lúc nhận xong -> "deliver" của relay = độ trễ relay cộng thêm
+ * - Mất upstream -> thử lại mỗi RECONNECT_MS, viewer phía dưới giữ nguyên kết nối
+ *
+ * Dùng: java buoi7_25_9.ScreenRelay [upstreamHost] [upstreamPort] [listenPort]
+ */
+public class ScreenRelay {
+    private static final int CLIENT_RING_CAPACITY = 6;
+    private static final int SEND_SPIN_LIMIT = 64;
+    private static final String DELIVERY_MODE = System.getProperty("screen.delivery", "queue");
+    private static final long MAX_LAG_MS = Long.getLong("screen.maxLagMs", 100);
+    private static final int REACTORS = Integer.getInteger("screen.reactors", Runtime.getRuntime().availableProcessors());
+    private static final int SO_SNDBUF = 2 * 1024 * 1024;
+    private static final int UPSTREAM_RCVBUF = 1024 * 1024;
+    private static final int MAX_FRAME = 50 * 1024 * 1024;
+    private static final int FRAME_POOL_INIT_BYTES = 256 * 1024;
+    private static final long RECONNECT_MS = 1_000;
+    private static final long REPORT_MS = 10_000;
+    private static final int REPORT_WORST_SESSIONS = 5;
+
+    private final String upstreamHost;
+    private final int upstreamPort;
+    private final int listenPort;
+    private final ServerMetrics metrics;
+    private final FrameHub<PooledFrame> frames;
+    private final BufferPool pool = new BufferPool(CLIENT_RING_CAPACITY + 4, FRAME_POOL_INIT_BYTES, true);
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    public ScreenRelay(String upstreamHost, int upstreamPort, int listenPort) {
+        this.upstreamHost = upstreamHost;
+        this.upstreamPort = upstreamPort;
+        this.listenPort = listenPort;
+        this.metrics = new ServerMetrics("relay-" + listenPort);
+        this.frames = new FrameHub<>("relay-" + listenPort);
+    }
+
+    public static void main(String[] args) {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int upstreamPort = args.length > 1 ? Integer.parseInt(args[1]) : 2345;
+        int listenPort = args.length > 2 ? Integer.parseInt(args[2]) : 2346;
+        new ScreenRelay(host, upstreamPort, listenPort).start();
+    }
+
+    public void start() {
+        Thread up = new Thread(this::runUpstream, "relay-upstream");
+        up.setDaemon(true);
+        up.start();
+
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            long maxLagNanos = "latest".equalsIgnoreCase(DELIVERY_MODE) ? MAX_LAG_MS * 1_000_000L : -1;
+            ReactorPool reactors = new ReactorPool("relay", REACTORS, CLIENT_RING_CAPACITY, SEND_SPIN_LIMIT, maxLagNanos, metrics);
+            reactors.startBroadcaster(frames);
+            startReporter(reactors);
+
+            ssc.bind(new InetSocketAddress(listenPort));
+            System.out.println("[Relay] " + upstreamHost + ":" + upstreamPort + " -> :" + listenPort
+                    + " with " + reactors.size() + " reactors");
+            while (true) {
+                SocketChannel ch = ssc.accept();
+                try {
+                    ch.configureBlocking(false);
+                    try {
+                        ch.socket().setSendBufferSize(SO_SNDBUF);
+                        ch.socket().setTcpNoDelay(true);
+                    } catch (Exception ignored) {}
+                    reactors.assign(ch);
+                } catch (IOException e) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                    System.err.println("[Accept] Error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Relay] Fatal NIO error: " + e.getMessage());
+        }
+    }
+
+    // Đọc frame từ upstream, giữ nguyên byte (chỉ thay captureNanos), publish cho reactors; đứt thì nối lại
+    private void runUpstream() {
+        byte[] buf = new byte[FRAME_POOL_INIT_BYTES];
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.setReceiveBufferSize(UPSTREAM_RCVBUF);
+                s.connect(new InetSocketAddress(upstreamHost, upstreamPort), (int) RECONNECT_MS * 5);
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+                System.out.println("[Relay] Upstream connected " + s.getRemoteSocketAddress());
+                // Receipt ghi trên thread riêng: đường ngược chậm không làm trễ frame đã nhận
+                try (ReceiptWriter receipts = new ReceiptWriter(s.getOutputStream(), "relay-receipts")) {
+                    while (true) {
+                        int n = in.readInt();
+                        if (n < FrameHeader.BYTES || n > MAX_FRAME) throw new IOException("Invalid frame size: " + n);
+                        if (buf.length < n) buf = new byte[n + (n >> 2)];
+                        in.readFully(buf, 0, n);
+                        long now = System.nanoTime();
+                        FrameHeader hdr = FrameHeader.read(buf, n);
+                        // Hub nhận ref; frame cũ hết người giữ -> buffer về pool
+                        frames.publish(PooledFrame.copyOfWire(pool, buf, n, hdr.seq, now));
+                        receipts.send(Receipt.RECEIVED, hdr.seq, hdr.captureNanos);
+                        received.incrementAndGet();
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("[Relay] Upstream " + upstreamHost + ":" + upstreamPort + " lost: " + e.getMessage());
+            }
+            reconnects.incrementAndGet();
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void startReporter(ReactorPool reactors) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(REPORT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("[Relay :" + listenPort + "] upstream=" + upstreamHost + ":" + upstreamPort
+                        + " frames=" + received.get() + " reconnects=" + reconnects.get()
+                        + " viewers=" + reactors.sessionCount()
+                        + "\n  hop (nhận -> gửi xong) | " + metrics.stage(ServerMetrics.DELIVER).summary()
+                        + "\n  fan-out               | " + metrics.stage(ServerMetrics.ENQUEUE).summary());
+                reactors.report(REPORT_WORST_SESSIONS);
+            }
+        }, "relay-reporter");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -1,30 +1,53 @@
 package buoi7_25_9;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
+import buoi7_25_9.common.BufferPool;
+import buoi7_25_9.common.ByteSink;
+import buoi7_25_9.common.FrameHeader;
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.ImageOps;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.LatestWinsQueue;
+import buoi7_25_9.common.PipelineStage;
+import buoi7_25_9.common.PooledFrame;
+import buoi7_25_9.common.RasterDiff;
+import buoi7_25_9.common.ServerMetrics;
+import buoi7_25_9.common.StripedJpegCodec;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+import buoi7_25_9.common.codec.FrameCodec;
+import buoi7_25_9.common.source.FrameSource;
+import buoi7_25_9.common.source.FrameSources;
+import buoi7_25_9.multicast.MulticastSender;
+import buoi7_25_9.record.FrameLog;
+import buoi7_25_9.record.FrameRecorder;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Server transport (NIO) tối ưu:
- * - NIO + Selector: 1 thread I/O phục vụ nhiều client
- * - Broadcaster thread: khi có frame mới -> enqueue tới per-client ring buffer
+ * - NIO multi-reactor: N thread I/O (mỗi thread 1 Selector), acceptor chia đều client mới cho các reactor;
+ *   mỗi reactor là thread DUY NHẤT chạm vào session của nó (single-writer)
+ * - Broadcaster thread: khi có frame mới -> giao cho từng reactor qua task queue, reactor tự enqueue vào ring
+ * - OP_WRITE chỉ bật khi session còn byte chưa gửi -> không spin khi rảnh
  * - Per-client ring buffer (drop oldest): client chậm không kéo tụt server
- * - Zero-copy: dùng ByteBuffer.wrap() trên cùng byte[] frame cho nhiều client (mỗi client giữ buffer riêng biệt về position/limit)
- * - Giao thức giữ nguyên: [int length][payload]
+ * - Zero-copy: frame mã hoá nằm trong direct buffer lấy từ pool, đếm tham chiếu (PooledFrame);
+ *   session chỉ giữ (frame, offset đã gửi), ref về 0 -> buffer trả về pool => broadcast không cấp phát
+ * - Giao thức: [int length][FrameHeader: version, codecId, flags, seq, captureNanos][payload] (length tính cả header);
+ *   viewer gửi ngược Receipt 13 byte (received / decoded / painted) trên cùng socket -> độ trễ từ lúc chụp theo từng viewer,
+ *   xem bằng lệnh stdin "stats" / "reset" / "sessions"
+ * - -Dscreen.multicast=group:port: thêm transport UDP multicast, mỗi frame gửi 1 lần cho cả LAN (multicast/)
  *
- * Capture/Encode: JPEG + scale + FPS control (giống bước trước)
+ * Capture/Encode: JPEG + scale + FPS control, chạy dạng pipeline capture -> scale -> diff -> encode (mỗi stage 1 thread)
+ * - -Dscreen.encode=stripes: chia frame thành dải, encode song song trên ForkJoinPool (payload multi-part)
  */
 public class ScreenServer {
 
@@ -41,15 +64,34 @@ public class ScreenServer {
     private static final int MAX_FPS = 20;
     private static final int IDLE_FPS = 5;
     private static final double CHANGE_RATIO_THRESHOLD = 0.01;
+    // Codec cho chế độ single: -Dscreen.codec=jpeg|png|rle (client chọn decoder theo codecId trong FrameHeader)
+    private static final FrameCodec CODEC = Codecs.fromSystemProperty();
+    // Chế độ encode: "single" (1 JPEG / frame) hoặc "stripes" (chia dải, encode song song, client tự ghép)
+    private static final String ENCODE_MODE = System.getProperty("screen.encode", "single");
+    private static final int ENCODE_STRIPES = Integer.getInteger("screen.stripes", Runtime.getRuntime().availableProcessors());
 
     // Transport
     private static final int CLIENT_RING_CAPACITY = 6;  // số khung tối đa buffer cho mỗi client
     private static final int SEND_SPIN_LIMIT = 64;      // tránh loop write vô tận 0 byte
+    // Giao frame: "queue" (gửi lần lượt cả ring) hoặc "latest" (trễ hơn frame mới nhất > MAX_LAG_MS -> nhảy tới frame mới nhất)
+    private static final String DELIVERY_MODE = System.getProperty("screen.delivery", "queue");
+    private static final long MAX_LAG_MS = Long.getLong("screen.maxLagMs", 100);
+    private static final int REPORT_WORST_SESSIONS = 5; // số session bỏ frame nhiều nhất in ra mỗi lần
     private static final int SO_RCVBUF = 512 * 1024;    // gợi ý: kernel recv buffer
     private static final int SO_SNDBUF = 2 * 1024 * 1024; // gợi ý: kernel send buffer
+    // Số reactor I/O (mỗi reactor 1 thread + 1 Selector), chỉnh bằng -Dscreen.reactors=N
+    private static final int REACTORS = Integer.getInteger("screen.reactors", Runtime.getRuntime().availableProcessors());
+
+    // Pool buffer cho frame đã mã hoá (direct: kernel ghi thẳng, không copy thêm qua heap)
+    private static final int FRAME_POOL_SIZE = CLIENT_RING_CAPACITY + 4;
+    private static final int FRAME_POOL_INIT_BYTES = 256 * 1024;
+    private static final BufferPool FRAME_POOL = new BufferPool(FRAME_POOL_SIZE, FRAME_POOL_INIT_BYTES, true);
 
-    // Khung hiện tại chia sẻ giữa threads
-    private static final AtomicReference<Frame> CURRENT_FRAME = new AtomicReference<>();
+    // Encoder publish frame mới -> broadcaster được đánh thức ngay (không polling)
+    private static final FrameHub<PooledFrame> FRAMES = new FrameHub<>("v1");
+    private static final long HUB_REPORT_MS = 10_000; // in độ trễ wake->send định kỳ
+    // Histogram từng stage + số session + byte đã gửi, xem qua JMX (buoi7_25_9:type=Server,name=v1)
+    private static final ServerMetrics METRICS = new ServerMetrics("v1");
 
     // ==== Server lifecycle ====
     public void start() {
@@ -57,60 +99,40 @@ public class ScreenServer {
         Thread cap = new Thread(new ScreenCaptureEncoder(), "screen-capture-encoder");
         cap.setDaemon(true);
         cap.start();
+        FRAMES.startReporter(HUB_REPORT_MS);
+
+        // 2) Khởi chạy N reactor + broadcaster, thread hiện tại làm acceptor
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            long maxLagNanos = "latest".equalsIgnoreCase(DELIVERY_MODE) ? MAX_LAG_MS * 1_000_000L : -1;
+            ReactorPool reactors = new ReactorPool("v1", REACTORS, CLIENT_RING_CAPACITY, SEND_SPIN_LIMIT, maxLagNanos, METRICS);
+            MulticastSender mcast = MulticastSender.fromSystemProperty(METRICS);
+            if (mcast != null) {
+                mcast.start(FRAMES);
+                System.out.println("[Server] Multicast to " + mcast.group());
+            }
+            FrameLog log = FrameLog.fromSystemProperty(FrameLog.PROTOCOL_V1);
+            if (log != null) FrameRecorder.start(FRAMES, log, METRICS.stage(ServerMetrics.RECORD));
+            startSessionReporter(reactors, mcast);
+            startConsole(reactors);
 
-        // 2) Khởi chạy NIO server + broadcaster
-        try (Selector selector = Selector.open();
-             ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            // Broadcaster: chờ frame mới -> giao cho từng reactor (mỗi reactor tự fan-out)
+            reactors.startBroadcaster(FRAMES);
 
-            ssc.configureBlocking(false);
             ssc.bind(new InetSocketAddress(PORT));
-            ssc.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("[Server] Listening on " + PORT);
+            System.out.println("[Server] Listening on " + PORT + " with " + reactors.size() + " reactors");
 
-            // Map quản lý session
-            Map<SocketChannel, ClientSession> sessions = new ConcurrentHashMap<>();
-
-            // Broadcaster: phát frame mới -> enqueue vào từng session + wakeup selector
-            Thread broadcaster = new Thread(() -> runBroadcaster(selector, sessions), "broadcaster");
-            broadcaster.setDaemon(true);
-            broadcaster.start();
-
-            // Vòng lặp NIO I/O
+            // Acceptor: accept blocking, cân tải channel mới sang reactor ít session nhất
             while (true) {
-                selector.select(); // chờ sự kiện I/O hoặc wakeup từ broadcaster
-                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-                while (it.hasNext()) {
-                    SelectionKey key = it.next();
-                    it.remove();
-
-                    try {
-                        if (!key.isValid()) continue;
-
-                        if (key.isAcceptable()) {
-                            handleAccept(ssc, selector, sessions);
-                        }
-                        if (key.isWritable()) {
-                            handleWrite(key, sessions);
-                        }
-                    } catch (CancelledKeyException ignored) {
-                        // key đã bị hủy do đóng channel
-                    } catch (Exception e) {
-                        // lỗi bất ngờ -> đóng channel
-                        closeKey(key, sessions, "[I/O] Error: " + e.getMessage());
-                    }
-                }
+                SocketChannel ch = ssc.accept();
+                handleAccept(ch, reactors);
             }
         } catch (IOException e) {
             System.err.println("[Server] Fatal NIO error: " + e.getMessage());
         }
     }
 
-    // ==== NIO helpers ====
-
-    private void handleAccept(ServerSocketChannel ssc, Selector selector, Map<SocketChannel, ClientSession> sessions) {
+    private void handleAccept(SocketChannel ch, ReactorPool reactors) {
         try {
-            SocketChannel ch = ssc.accept();
-            if (ch == null) return;
             ch.configureBlocking(false);
             try {
                 // Socket options (best-effort)
@@ -118,201 +140,111 @@ public class ScreenServer {
                 ch.socket().setSendBufferSize(SO_SNDBUF);
                 ch.socket().setTcpNoDelay(true); // thường có lợi vì ta đã gom gói rõ ràng
             } catch (Exception ignored) {}
-
-            ClientSession session = new ClientSession(ch, CLIENT_RING_CAPACITY);
-            SelectionKey key = ch.register(selector, SelectionKey.OP_WRITE, session);
-            sessions.put(ch, session);
-            System.out.println("[Accept] " + ch.getRemoteAddress());
+            reactors.assign(ch);
         } catch (IOException e) {
+            try { ch.close(); } catch (IOException ignored) {}
             System.err.println("[Accept] Error: " + e.getMessage());
         }
     }
 
-    private void handleWrite(SelectionKey key, Map<SocketChannel, ClientSession> sessions) throws IOException {
-        SocketChannel ch = (SocketChannel) key.channel();
-        ClientSession sess = (ClientSession) key.attachment();
-        if (sess == null) { closeKey(key, sessions, "[Write] No session"); return; }
-
-        int spins = 0;
-        while (true) {
-            if (spins++ > SEND_SPIN_LIMIT) break; // tránh bận CPU
-            ByteBuffer[] current = sess.peek();
-            if (current == null) break; // hết dữ liệu, tạm bỏ OP_WRITE (nhưng broadcaster sẽ bật lại khi có frame)
-
-            long written = ch.write(current);
-            if (written == 0) break; // kernel full, chờ lần sau
-
-            // kiểm tra đã gửi hết 2 buffers (header + payload)?
-            boolean allSent = true;
-            for (ByteBuffer bb : current) {
-                if (bb.hasRemaining()) { allSent = false; break; }
-            }
-            if (allSent) {
-                sess.pop();
-            } else {
-                // chưa gửi hết -> dừng tại đây, lần sau tiếp tục
-                break;
+    private void startSessionReporter(ReactorPool reactors, MulticastSender mcast) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(HUB_REPORT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reactors.report(REPORT_WORST_SESSIONS);
+                if (mcast != null) System.out.println(mcast.report());
             }
-        }
-
-        // Nếu queue trống, có thể tạm thời bỏ quan tâm OP_WRITE để giảm wakeup vô ích
-        if (sess.isEmpty()) {
-            key.interestOps(SelectionKey.OP_WRITE); // vẫn để OP_WRITE vì broadcaster sẽ wakeup ngay khi enqueue
-        }
+        }, "session-reporter");
+        t.setDaemon(true);
+        t.start();
     }
 
-    private void closeKey(SelectionKey key, Map<SocketChannel, ClientSession> sessions, String reason) {
-        try {
-            SocketChannel ch = (SocketChannel) key.channel();
-            ClientSession sess = (ClientSession) key.attachment();
-            if (sess != null) sess.close();
-            if (ch != null) {
-                sessions.remove(ch);
-                System.out.println("[Close] " + ch.getRemoteAddress() + " - " + reason);
-                ch.close();
+    // Lệnh gõ trên stdin của server: "stats" in độ trễ từng viewer, "reset" in rồi xoá histogram
+    private void startConsole(ReactorPool reactors) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+                String line;
+                while ((line = console.readLine()) != null) {
+                    switch (line.trim().toLowerCase()) {
+                        case "stats": reactors.latencyReport(false); break;
+                        case "reset": reactors.latencyReport(true); break;
+                        case "sessions": reactors.report(Integer.MAX_VALUE); break;
+                        case "metrics": System.out.println(METRICS.report()); break;
+                        case "": break;
+                        default: System.out.println("[Console] stats | reset | sessions | metrics");
+                    }
+                }
+            } catch (IOException ignored) {
+                // không có stdin (chạy nền) -> bỏ console
             }
-        } catch (Exception ignored) {
-        }
-        try { key.cancel(); } catch (Exception ignored) {}
+        }, "console");
+        t.setDaemon(true);
+        t.start();
     }
 
-    // ==== Broadcaster ====
-
+    // ==== Capture + Encode (JPEG + scale + FPS control) ====
     /**
-     * Mỗi khi có frame mới (seq thay đổi), broadcaster:
-     * - Tạo header ByteBuffer (4 byte length)
-     * - Tạo payload ByteBuffer wrap trên cùng byte[] JPEG
-     * - Enqueue vào ring buffer của từng session (drop oldest nếu đầy)
-     * - Gọi selector.wakeup() để thread I/O đẩy đi ngay
+     * Pipeline 4 stage, mỗi stage 1 thread, nối bằng hàng đợi latest-wins (đầy -> bỏ frame cũ):
+     *   capture -> scale -> diff -> encode -> FRAMES.publish()
+     * Frame N+1 được chụp trong lúc frame N còn đang scale/encode => throughput ~ stage chậm nhất
+     * (thay vì tổng 4 stage). Mỗi stage tự đo thời gian, in định kỳ cùng số frame bị bỏ.
      */
-    // === BÊN TRONG runBroadcaster(...) ===
-    private void runBroadcaster(Selector selector, Map<SocketChannel, ClientSession> sessions) {
-        int lastSeq = -1;
-        while (true) {
-            try {
-                Frame f = CURRENT_FRAME.get();
-                if (f == null || f.seq == lastSeq) { Thread.sleep(2); continue; }
-                lastSeq = f.seq;
-
-                // KHÔNG dùng 1 header/payload chung + duplicate nữa.
-                for (ClientSession sess : sessions.values()) {
-                    // 1) Header riêng cho client
-                    ByteBuffer header = ByteBuffer.allocate(4);
-                    header.putInt(f.jpeg.length);
-                    header.flip(); // pos=0, limit=4
-
-                    // 2) Payload: ByteBuffer riêng, read-only, pos=0
-                    ByteBuffer payload = ByteBuffer.wrap(f.jpeg).asReadOnlyBuffer();
-                    payload.rewind(); // đảm bảo pos=0
-
-                    // 3) Enqueue vào ring buffer client (drop oldest nếu đầy)
-                    sess.enqueue(header, payload);
-                }
-
-                // Đánh thức thread I/O
-                selector.wakeup();
-            } catch (InterruptedException ignored) {
-            } catch (Exception e) {
-                System.err.println("[Broadcaster] " + e.getMessage());
-                try { Thread.sleep(5); } catch (InterruptedException ignored) {}
-            }
-        }
-    }
-
-    // ==== Client session & ring buffer ====
-
-    private static final class ClientSession {
-        private final SocketChannel ch;
-        private final ArrayDeque<ByteBuffer[]> ring;
-        private final int capacity;
-        private volatile boolean closed = false;
-
-        ClientSession(SocketChannel ch, int capacity) {
-            this.ch = ch;
-            this.capacity = Math.max(2, capacity);
-            this.ring = new ArrayDeque<>(this.capacity);
-        }
+    private static final class ScreenCaptureEncoder implements Runnable {
+        private static final int STAGE_QUEUE_CAPACITY = 1; // chỉ giữ frame mới nhất giữa các stage
 
-        // Enqueue header+payload; nếu đầy -> drop oldest
-        synchronized void enqueue(ByteBuffer header, ByteBuffer payload) {
-            if (closed) return;
+        private FrameSource source; // Robot hoặc kịch bản giả lập (-Dscreen.source)
+        private int seq = 0;
+        private BufferedImage prevScaled = null;             // chỉ stage diff dùng
+        private volatile boolean mostlyStatic = false;       // stage diff báo cho stage capture hạ FPS
+        private final ByteSink jpegSink = new ByteSink(FRAME_POOL_INIT_BYTES); // dùng lại mỗi frame
+        private final StripedJpegCodec striped = "stripes".equalsIgnoreCase(ENCODE_MODE)
+                ? new StripedJpegCodec(new ForkJoinPool(ENCODE_STRIPES), ENCODE_STRIPES) : null;
+        private final long frameIntervalActive = 1_000_000_000L / Math.max(1, MAX_FPS);
+        private final long frameIntervalIdle   = 1_000_000_000L / Math.max(1, IDLE_FPS);
+        private final LatencyHistogram captureTiming = METRICS.stage(ServerMetrics.CAPTURE);
 
-            // BẢO ĐẢM buffer đặt đúng pos/limit (phòng hờ caller quên)
-            if (header.position() != 0) header.rewind();
-            if (payload.position() != 0) payload.rewind();
+        // Ảnh đi qua pipeline, giữ mốc thời gian chụp
+        private static final class Staged {
+            final BufferedImage img;
+            final long captureNanos;
 
-            if (ring.size() >= capacity) {
-                ring.pollFirst(); // drop oldest -> giữ độ trễ thấp
+            Staged(BufferedImage img, long captureNanos) {
+                this.img = img;
+                this.captureNanos = captureNanos;
             }
-
-            // Lưu ý: Ở đây MỖI CLIENT nhận CẶP BUFFER RIÊNG, không phải duplicate từ gốc dùng chung.
-            ring.offerLast(new ByteBuffer[]{ header, payload });
-        }
-        synchronized ByteBuffer[] peek() {
-            return ring.peekFirst();
         }
 
-        synchronized void pop() {
-            ring.pollFirst();
-        }
-
-        synchronized boolean isEmpty() {
-            return ring.isEmpty();
-        }
-
-        synchronized void close() {
-            closed = true;
-            ring.clear();
-            try { ch.close(); } catch (IOException ignored) {}
-        }
-    }
-
-    // ==== Frame immutable (share cho mọi client) ====
-    private static final class Frame {
-        final byte[] jpeg;
-        final int seq;
-        final int width;
-        final int height;
-        final long tsNanos;
-
-        Frame(byte[] jpeg, int seq, int width, int height, long tsNanos) {
-            this.jpeg = Objects.requireNonNull(jpeg);
-            this.seq = seq;
-            this.width = width;
-            this.height = height;
-            this.tsNanos = tsNanos;
-        }
-    }
-
-    // ==== Capture + Encode (JPEG + scale + FPS control) ====
-    private static final class ScreenCaptureEncoder implements Runnable {
-        private Robot robot;
-        private Rectangle area;
-        private int seq = 0;
-        private BufferedImage prevScaled = null;
-        private final long frameIntervalActive = 1_000_000_000L / Math.max(1, MAX_FPS);
-        private final long frameIntervalIdle   = 1_000_000_000L / Math.max(1, IDLE_FPS);
-
         @Override public void run() {
             try {
-                robot = new Robot();
-                area = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+                source = FrameSources.fromSystemProperty();
+                System.out.println("[Capture] Source: " + source.name() + " " + source.width() + "x" + source.height());
             } catch (Exception e) {
-                System.err.println("[Capture] Init Robot failed: " + e.getMessage());
+                System.err.println("[Capture] Init frame source failed: " + e.getMessage());
                 return;
             }
 
+            LatestWinsQueue<Staged> captured = new LatestWinsQueue<>(STAGE_QUEUE_CAPACITY);
+            LatestWinsQueue<Staged> scaledQ = new LatestWinsQueue<>(STAGE_QUEUE_CAPACITY);
+            LatestWinsQueue<Staged> diffedQ = new LatestWinsQueue<>(STAGE_QUEUE_CAPACITY);
+            List<PipelineStage<?, ?>> stages = List.of(
+                    new PipelineStage<>(ServerMetrics.SCALE, captured, scaledQ,
+                            s -> new Staged(ImageOps.scaleToWidth(s.img, TARGET_MAX_WIDTH), s.captureNanos)).start(),
+                    new PipelineStage<>(ServerMetrics.DIFF, scaledQ, diffedQ, this::diffStage).start(),
+                    new PipelineStage<Staged, Void>(ServerMetrics.ENCODE, diffedQ, null, this::encodeStage).start());
+            for (PipelineStage<?, ?> st : stages) METRICS.stage(st.name(), st.timing());
+            startStageReporter(stages);
+
+            // Stage capture chạy trên thread hiện tại, giữ nhịp FPS
             while (true) {
                 long t0 = System.nanoTime();
                 try {
-                    BufferedImage src = robot.createScreenCapture(area);
-                    BufferedImage scaled = scaleIfNeeded(src, TARGET_MAX_WIDTH);
-
-                    boolean mostlyStatic = isMostlyStatic(prevScaled, scaled, CHANGE_RATIO_THRESHOLD);
-                    prevScaled = scaled;
-
-                    byte[] jpeg = encodeJpeg(scaled, JPEG_QUALITY);
-                    CURRENT_FRAME.set(new Frame(jpeg, ++seq, scaled.getWidth(), scaled.getHeight(), System.nanoTime()));
+                    BufferedImage src = source.capture();
+                    captureTiming.recordNanos(System.nanoTime() - t0);
+                    captured.put(new Staged(src, t0));
 
                     long elapsed = System.nanoTime() - t0;
                     long target = mostlyStatic ? frameIntervalIdle : frameIntervalActive;
@@ -327,72 +259,56 @@ public class ScreenServer {
             }
         }
 
-        private BufferedImage scaleIfNeeded(BufferedImage src, int maxWidth) {
-            int sw = src.getWidth(), sh = src.getHeight();
-            if (sw <= maxWidth) {
-                return toRGB(src);
-            }
-            double s = maxWidth / (double) sw;
-            int dw = (int) Math.round(sw * s);
-            int dh = (int) Math.round(sh * s);
-            BufferedImage dst = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2 = dst.createGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g2.drawImage(src, 0, 0, dw, dh, null);
-            g2.dispose();
-            return dst;
+        private Staged diffStage(Staged s) {
+            mostlyStatic = isMostlyStatic(prevScaled, s.img, CHANGE_RATIO_THRESHOLD);
+            prevScaled = s.img;
+            return s;
         }
 
-        private boolean isMostlyStatic(BufferedImage a, BufferedImage b, double thrRatio) {
-            if (a == null || b == null) return false;
-            if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return false;
-            int w = b.getWidth(), h = b.getHeight();
-            int step = Math.max(8, Math.min(w, h) / 120);
-            int total = 0, changed = 0;
-            for (int y = 0; y < h; y += step) {
-                for (int x = 0; x < w; x += step) {
-                    int p1 = a.getRGB(x, y), p2 = b.getRGB(x, y);
-                    if (colorDiffGreater(p1, p2, 18)) changed++;
-                    total++;
-                }
+        private Void encodeStage(Staged s) throws IOException {
+            BufferedImage scaled = s.img;
+            if (striped != null) {
+                striped.encode(scaled, JPEG_QUALITY, jpegSink);
+            } else {
+                encodeFrame(scaled, JPEG_QUALITY, jpegSink);
             }
-            double ratio = total == 0 ? 1.0 : changed / (double) total;
-            return ratio < thrRatio;
+            PooledFrame frame = PooledFrame.copyOf(FRAME_POOL, jpegSink.array(), 0, jpegSink.size(),
+                    ++seq, scaled.getWidth(), scaled.getHeight(), s.captureNanos,
+                    striped != null ? Codecs.JPEG_ID : CODEC.id(), striped != null ? FrameHeader.FLAG_STRIPED : 0);
+            // Hub nhận ref của encoder; frame cũ hết người giữ -> buffer về pool
+            FRAMES.publish(frame);
+            return null;
         }
 
-        private boolean colorDiffGreater(int c1, int c2, int thr) {
-            int r1 = (c1 >> 16) & 0xFF, g1 = (c1 >> 8) & 0xFF, b1 = c1 & 0xFF;
-            int r2 = (c2 >> 16) & 0xFF, g2 = (c2 >> 8) & 0xFF, b2 = c2 & 0xFF;
-            return Math.abs(r1 - r2) > thr || Math.abs(g1 - g2) > thr || Math.abs(b1 - b2) > thr;
+        private void startStageReporter(List<PipelineStage<?, ?>> stages) {
+            Thread t = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(HUB_REPORT_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    StringBuilder sb = new StringBuilder("[Pipeline]\n  capture | ").append(captureTiming.summary());
+                    for (PipelineStage<?, ?> st : stages) sb.append("\n  ").append(st.report());
+                    System.out.println(sb);
+                }
+            }, "pipeline-reporter");
+            t.setDaemon(true);
+            t.start();
         }
 
-        private byte[] encodeJpeg(BufferedImage img, float q) throws IOException {
-            BufferedImage rgb = toRGB(img);
-            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
-            if (!writers.hasNext()) throw new IOException("No JPEG writer");
-            ImageWriter writer = writers.next();
-            ImageWriteParam param = writer.getDefaultWriteParam();
-            if (param.canWriteCompressed()) {
-                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                param.setCompressionQuality(Math.max(0f, Math.min(1f, q)));
-            }
-            try (java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream(64 * 1024);
-                 MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bos)) {
-                writer.setOutput(out);
-                writer.write(null, new IIOImage(rgb, null, null), param);
-                writer.dispose();
-                out.flush();
-                return bos.toByteArray();
-            }
+        private boolean isMostlyStatic(BufferedImage a, BufferedImage b, double thrRatio) {
+            if (a == null || b == null) return false;
+            if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return false;
+            int step = Math.max(8, Math.min(b.getWidth(), b.getHeight()) / 120);
+            // a, b đều là TYPE_INT_RGB (ImageOps.scaleToWidth) -> đọc thẳng int[], không copy
+            return RasterDiff.sampledChangeRatio(RasterDiff.plane(a), RasterDiff.plane(b), step, 18) < thrRatio;
         }
 
-        private BufferedImage toRGB(BufferedImage src) {
-            if (src.getType() == BufferedImage.TYPE_INT_RGB) return src;
-            BufferedImage rgb = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2 = rgb.createGraphics();
-            g2.drawImage(src, 0, 0, null);
-            g2.dispose();
-            return rgb;
+        /** Mã hoá bằng codec cấu hình vào sink (reset trước khi ghi), dùng EncoderSession của thread encode. */
+        private void encodeFrame(BufferedImage img, float q, ByteSink sink) throws IOException {
+            sink.reset();
+            EncoderSession.current().encodeTo(CODEC, ImageOps.toRGB(img), q, sink);
         }
     }
 }
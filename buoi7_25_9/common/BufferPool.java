@@ -0,0 +1,51 @@
+package buoi7_25_9.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool ByteBuffer dùng lại cho các frame đã mã hoá:
+ * - acquire(minCapacity): lấy buffer đủ lớn từ pool, thiếu/nhỏ quá -> cấp phát mới
+ * - release(buf): trả buffer về pool (pool đầy thì bỏ cho GC)
+ * - ArrayBlockingQueue: mảng cố định, offer/poll không tạo node mới như ConcurrentLinkedQueue
+ */
+public final class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int initialCapacity;
+    private final boolean direct;
+    private final AtomicLong allocations = new AtomicLong();
+
+    public BufferPool(int maxPooled, int initialCapacity, boolean direct) {
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+        this.initialCapacity = Math.max(1024, initialCapacity);
+        this.direct = direct;
+    }
+
+    public ByteBuffer acquire(int minCapacity) {
+        ByteBuffer b = free.poll();
+        if (b != null && b.capacity() >= minCapacity) {
+            b.clear();
+            return b;
+        }
+        // Buffer cũ quá nhỏ -> bỏ luôn, cấp phát dư 25% để các frame sau khỏi phải grow tiếp
+        int cap = Math.max(initialCapacity, minCapacity + (minCapacity >> 2));
+        allocations.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+    }
+
+    public void release(ByteBuffer b) {
+        if (b == null) return;
+        b.clear();
+        free.offer(b); // pool đầy -> trả về false, buffer bị bỏ
+    }
+
+    /** Tổng số lần phải cấp phát mới (pool miss) - dùng để kiểm tra pool đủ lớn chưa. */
+    public long allocations() {
+        return allocations.get();
+    }
+
+    public int pooled() {
+        return free.size();
+    }
+}
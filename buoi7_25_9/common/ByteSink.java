@@ -0,0 +1,34 @@
+package buoi7_25_9.common;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ByteArrayOutputStream dùng lại được: reset() rồi ghi tiếp, đọc thẳng mảng nội bộ
+ * qua array()/size() thay vì toByteArray() (tránh copy + cấp phát mỗi frame).
+ * Không thread-safe theo nghĩa dùng chung: mỗi thread encode giữ 1 sink riêng.
+ */
+public final class ByteSink extends ByteArrayOutputStream {
+
+    public ByteSink(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /** Mảng nội bộ, dữ liệu hợp lệ nằm trong [0, size()). */
+    public byte[] array() {
+        return buf;
+    }
+
+    /** Ghi int big-endian (như DataOutputStream.writeInt). */
+    public void writeInt(int v) {
+        write(v >>> 24);
+        write(v >>> 16);
+        write(v >>> 8);
+        write(v);
+    }
+
+    /** Ghi 2 byte thấp big-endian (như DataOutputStream.writeShort). */
+    public void writeShort(int v) {
+        write(v >>> 8);
+        write(v);
+    }
+}
@@ -0,0 +1,100 @@
+package buoi7_25_9.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+/**
+ * Các lệnh bắt tay client gửi lên sau khi kết nối (writeUTF), server đọc không chặn giữa các frame (v3 / patch2):
+ * - TileCache.HELLO + capacity: bật cache tile (xem TileCache)
+ * - MoveDetector.HELLO: client áp dụng được record copy-rect trong DELTA (xem MoveDetector)
+ * - Receipt.HELLO (lệnh CUỐI CÙNG client gửi): frame mang captureNanos, từ đó trên stream chỉ còn Receipt 13 byte
+ *   -> ghi (now - captureNanos) vào histogram theo kind (chỉ khi server truyền receiptLatency, patch2 thì bỏ qua lệnh này)
+ * Lệnh không biết (vd "STREAM:<id>" khi server chỉ có 1 luồng) bị bỏ qua -> client mới vẫn nói chuyện được với server cũ.
+ * Thứ tự không tuỳ ý: Receipt.HELLO phải là lệnh cuối, mọi byte sau nó được đọc như Receipt (lệnh gửi sau sẽ hỏng cả stream).
+ * Mọi lệnh phải tới được instance này: ai đọc socket trước sender (v3 select() khi có nhiều luồng) chuyển lệnh
+ * không phải của mình vào accept() theo đúng thứ tự, nếu không lệnh đó mất (vd client không bật được cache).
+ * Mỗi kết nối 1 instance (sau Receipt.HELLO đổi cách đọc stream).
+ */
+public final class ClientHello {
+    private final DataInputStream in;
+    private final IntFunction<LatencyHistogram> receiptLatency; // kind -> histogram, null: không nhận Receipt
+    private final LatencyHistogram[] byKind = new LatencyHistogram[Receipt.PAINTED + 1];
+    private final byte[] record = new byte[Receipt.BYTES];
+    private int cacheCapacity = -1; // capacity của "CACHE:<n>" cuối cùng chưa lấy, -1 nếu không có
+    private boolean copyRect;
+    private boolean receipts;
+    private int pendingUtf = -1;    // độ dài lệnh đã đọc 2 byte đầu mà thân chưa tới đủ, -1 nếu không có
+
+    public ClientHello(DataInputStream in, IntFunction<LatencyHistogram> receiptLatency) {
+        this.in = in;
+        this.receiptLatency = receiptLatency;
+    }
+
+    /** Đọc các lệnh / Receipt client đã gửi tới lúc này (không chặn; lệnh / Receipt nhận dở để lần sau). */
+    public void poll() throws IOException {
+        String cmd;
+        while (!receipts && (cmd = nextCommand()) != null) accept(cmd);
+        if (!receipts) return;
+        long now = System.nanoTime();
+        while (in.available() >= Receipt.BYTES) {
+            in.readFully(record);
+            ByteBuffer r = ByteBuffer.wrap(record);
+            int kind = r.get();
+            r.getInt(); // seq
+            long latency = now - r.getLong();
+            if (kind >= Receipt.RECEIVED && kind <= Receipt.PAINTED && latency >= 0 && latency < 60_000_000_000L) {
+                if (byKind[kind] == null) byKind[kind] = receiptLatency.apply(kind);
+                byKind[kind].recordNanos(latency);
+            }
+        }
+    }
+
+    /** Áp dụng 1 lệnh đã đọc ở nơi khác (v3 select() đọc lệnh trước "STREAM:<id>"), theo đúng thứ tự client gửi. */
+    public void accept(String cmd) {
+        if (cmd.startsWith(TileCache.HELLO)) {
+            try {
+                int cap = Integer.parseInt(cmd.substring(TileCache.HELLO.length()));
+                cacheCapacity = Math.max(0, Math.min(TileCache.MAX_CAPACITY, cap));
+            } catch (NumberFormatException ignored) {
+            }
+        } else if (cmd.equals(MoveDetector.HELLO)) {
+            copyRect = true;
+        } else if (cmd.equals(Receipt.HELLO) && receiptLatency != null) {
+            receipts = true;
+        }
+    }
+
+    // lệnh writeUTF kế tiếp nếu đã tới đủ [short len][len byte], null nếu chưa (readUTF sẽ chặn sender giữa chừng)
+    private String nextCommand() throws IOException {
+        if (pendingUtf < 0) {
+            if (in.available() < 2) return null;
+            pendingUtf = in.readUnsignedShort();
+        }
+        if (in.available() < pendingUtf) return null;
+        byte[] utf = new byte[2 + pendingUtf];
+        utf[0] = (byte) (pendingUtf >>> 8);
+        utf[1] = (byte) pendingUtf;
+        in.readFully(utf, 2, pendingUtf);
+        pendingUtf = -1;
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    /** Capacity cache tile client vừa xin (mỗi lần xin chỉ trả 1 lần), -1 nếu không có. */
+    public int takeCacheRequest() {
+        int cap = cacheCapacity;
+        cacheCapacity = -1;
+        return cap;
+    }
+
+    public boolean copyRect() {
+        return copyRect;
+    }
+
+    /** Client đã bật Receipt -> frame gửi cho client này mang captureNanos. */
+    public boolean receipts() {
+        return receipts;
+    }
+}
@@ -0,0 +1,53 @@
+package buoi7_25_9.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header có phiên bản của mỗi frame v1, nằm ngay sau [int length] (length tính cả header):
+ *   [byte version][byte codecId][byte flags][byte reserved][int seq][long captureNanos][payload]
+ * - codecId: Codecs.*_ID; flags: FLAG_STRIPED nếu payload là multi-part của StripedJpegCodec
+ * - captureNanos: System.nanoTime() của SERVER lúc chụp; client không diễn giải, chỉ gửi lại trong Receipt
+ *   -> server tự tính capture -> received/decoded/painted bằng đồng hồ của chính nó, không cần đồng bộ giờ
+ */
+public final class FrameHeader {
+    public static final int VERSION = 2;
+    public static final int BYTES = 1 + 1 + 1 + 1 + 4 + 8;
+    public static final int FLAG_STRIPED = 1;
+    public static final int CAPTURE_OFFSET = 8; // vị trí captureNanos trong header (relay ghi đè)
+
+    public final int version;
+    public final int codecId;
+    public final int flags;
+    public final int seq;
+    public final long captureNanos;
+
+    private FrameHeader(int version, int codecId, int flags, int seq, long captureNanos) {
+        this.version = version;
+        this.codecId = codecId;
+        this.flags = flags;
+        this.seq = seq;
+        this.captureNanos = captureNanos;
+    }
+
+    public boolean striped() {
+        return (flags & FLAG_STRIPED) != 0;
+    }
+
+    public static void write(ByteBuffer b, int codecId, int flags, int seq, long captureNanos) {
+        b.put((byte) VERSION).put((byte) codecId).put((byte) flags).put((byte) 0);
+        b.putInt(seq);
+        b.putLong(captureNanos);
+    }
+
+    /** Đọc header ở đầu b[0, len); ném IllegalArgumentException nếu sai phiên bản / thiếu byte. */
+    public static FrameHeader read(byte[] b, int len) {
+        if (len < BYTES) throw new IllegalArgumentException("Frame too short for header: " + len);
+        ByteBuffer in = ByteBuffer.wrap(b, 0, BYTES);
+        int version = in.get() & 0xFF;
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported frame version " + version);
+        int codecId = in.get() & 0xFF;
+        int flags = in.get() & 0xFF;
+        in.get();
+        return new FrameHeader(version, codecId, flags, in.getInt(), in.getLong());
+    }
+}
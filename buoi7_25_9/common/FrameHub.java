@@ -0,0 +1,181 @@
+package buoi7_25_9.common;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Điểm phát frame dùng chung cho mọi biến thể server (thay cho AtomicReference + Thread.sleep polling):
+ * - Producer gọi publish(frame): thay frame mới nhất (latest-wins) và đánh thức NGAY mọi consumer đang chờ
+ * - Mỗi consumer giữ 1 Subscriber: await() chặn tới khi có frame mới hơn frame đã lấy lần trước
+ * - Subscriber đo 2 độ trễ: publish -> wake (lập lịch) và wake -> sent() (xử lý + gửi)
+ * - Frame là RefCounted (PooledFrame): hub giữ 1 ref cho frame mới nhất, await() retain hộ consumer,
+ *   consumer phải release() sau khi dùng xong
+ */
+public final class FrameHub<T> {
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // Chỉ đọc/ghi khi giữ lock
+    private T latest;
+    private long seq = 0;
+    private long publishNanos = 0;
+
+    public FrameHub(String name) {
+        this.name = name;
+    }
+
+    /** Phát frame mới (hub nhận ref của producer nếu là RefCounted); trả về seq của frame. */
+    public long publish(T frame) {
+        T old;
+        long s;
+        lock.lock();
+        try {
+            old = latest;
+            latest = frame;
+            s = ++seq;
+            publishNanos = System.nanoTime();
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (old instanceof RefCounted) ((RefCounted) old).release();
+        return s;
+    }
+
+    public long seq() {
+        lock.lock();
+        try {
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Số consumer đang đăng ký (0: không ai xem, producer có thể nghỉ chụp). */
+    public int consumers() {
+        return subscribers.size();
+    }
+
+    public Subscriber subscribe(String consumerName) {
+        Subscriber sub = new Subscriber(consumerName);
+        subscribers.add(sub);
+        return sub;
+    }
+
+    /** Báo cáo độ trễ của từng consumer, mỗi dòng 1 consumer. */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[Hub ").append(name).append("] seq=").append(seq()).append(" consumers=").append(subscribers.size());
+        for (Subscriber s : subscribers) {
+            sb.append("\n  ").append(s.name)
+                    .append(" | publish->wake ").append(s.publishToWake.summary())
+                    .append(" | wake->send ").append(s.wakeToSend.summary());
+        }
+        return sb.toString();
+    }
+
+    /** Thread daemon in report() định kỳ (periodMs <= 0: không chạy). */
+    public void startReporter(long periodMs) {
+        if (periodMs <= 0) return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(periodMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!subscribers.isEmpty()) System.out.println(report());
+            }
+        }, "hub-reporter-" + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Con trỏ của 1 consumer trên hub. Mỗi Subscriber chỉ dùng từ 1 thread. */
+    public final class Subscriber implements AutoCloseable {
+        private final String name;
+        private final LatencyHistogram publishToWake = new LatencyHistogram();
+        private final LatencyHistogram wakeToSend = new LatencyHistogram();
+        private long lastSeq = 0;
+        private long wakeNanos = 0;
+
+        private Subscriber(String name) {
+            this.name = name;
+        }
+
+        /** Chặn tới khi có frame mới hơn lần lấy trước. */
+        public T await() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (seq == lastSeq || latest == null) published.await();
+                return take();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Như await() nhưng hết timeout thì trả về null. */
+        public T await(long timeout, TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (seq == lastSeq || latest == null) {
+                    if (remaining <= 0) return null;
+                    remaining = published.awaitNanos(remaining);
+                }
+                return take();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Không chặn: frame mới hoặc null. */
+        public T poll() {
+            lock.lock();
+            try {
+                return (seq == lastSeq || latest == null) ? null : take();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Gọi khi giữ lock
+        private T take() {
+            lastSeq = seq;
+            wakeNanos = System.nanoTime();
+            publishToWake.recordNanos(wakeNanos - publishNanos);
+            T f = latest;
+            if (f instanceof RefCounted) ((RefCounted) f).retain();
+            return f;
+        }
+
+        /** Consumer gọi sau khi đã gửi xong frame vừa lấy -> ghi nhận độ trễ wake -> send. */
+        public void sent() {
+            if (wakeNanos != 0) {
+                wakeToSend.recordNanos(System.nanoTime() - wakeNanos);
+                wakeNanos = 0;
+            }
+        }
+
+        /** Seq của frame lấy gần nhất. */
+        public long seq() {
+            return lastSeq;
+        }
+
+        public LatencyHistogram publishToWake() {
+            return publishToWake;
+        }
+
+        public LatencyHistogram wakeToSend() {
+            return wakeToSend;
+        }
+
+        @Override public void close() {
+            subscribers.remove(this);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package buoi7_25_9.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * "View" rẻ của 1 PooledFrame cho 1 thread I/O (reactor):
+ * - duplicate() buffer của frame 1 lần / reactor / frame -> position/limit riêng, dữ liệu dùng chung
+ * - Mọi session của reactor đó trỏ cùng view, mỗi session tự giữ offset đã gửi
+ * - View giữ 1 ref của frame; session retain()/release() qua view
+ */
+public final class FrameView {
+    private final PooledFrame frame;
+    private final ByteBuffer buf;
+
+    /** Nhận 1 ref của frame (caller đã retain). */
+    public FrameView(PooledFrame frame) {
+        this.frame = frame;
+        this.buf = frame.duplicateBuffer();
+    }
+
+    public PooledFrame frame() {
+        return frame;
+    }
+
+    public int size() {
+        return frame.size();
+    }
+
+    public FrameView retain() {
+        frame.retain();
+        return this;
+    }
+
+    public void release() {
+        frame.release();
+    }
+
+    /** Ghi tiếp từ offset đã gửi; trả về số byte ghi được (0 nếu kernel buffer đầy). */
+    public int writeTo(WritableByteChannel ch, int offset) throws IOException {
+        buf.limit(frame.size());
+        buf.position(offset);
+        return ch.write(buf);
+    }
+}
@@ -0,0 +1,56 @@
+package buoi7_25_9.common;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Các thao tác ảnh dùng chung cho mọi server (trước đây mỗi bản tự chép 1 bản):
+ * scale bilinear, chuyển về TYPE_INT_RGB, copy sâu. Kết quả luôn là TYPE_INT_RGB
+ * để RasterDiff đọc thẳng int[] mà không phải đổi định dạng.
+ */
+public final class ImageOps {
+
+    private ImageOps() {
+    }
+
+    /** Thu nhỏ về chiều rộng tối đa maxWidth (giữ tỉ lệ); nhỏ hơn sẵn thì chỉ đổi sang TYPE_INT_RGB. */
+    public static BufferedImage scaleToWidth(BufferedImage src, int maxWidth) {
+        int sw = src.getWidth();
+        if (sw <= maxWidth) {
+            return toRGB(src);
+        }
+        double s = maxWidth / (double) sw;
+        return draw(src, (int) Math.round(sw * s), (int) Math.round(src.getHeight() * s));
+    }
+
+    /** Scale theo hệ số s; s == 1.0 trả lại chính src. */
+    public static BufferedImage resize(BufferedImage src, double s) {
+        if (s == 1.0) return src;
+        int w = Math.max(1, (int) Math.round(src.getWidth() * s));
+        int h = Math.max(1, (int) Math.round(src.getHeight() * s));
+        return draw(src, w, h);
+    }
+
+    public static BufferedImage toRGB(BufferedImage src) {
+        if (src.getType() == BufferedImage.TYPE_INT_RGB) return src;
+        return deepCopy(src);
+    }
+
+    public static BufferedImage deepCopy(BufferedImage src) {
+        BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = dst.createGraphics();
+        g2.drawImage(src, 0, 0, null);
+        g2.dispose();
+        return dst;
+    }
+
+    private static BufferedImage draw(BufferedImage src, int w, int h) {
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = dst.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(src, 0, 0, w, h, null);
+        g2.dispose();
+        return dst;
+    }
+}
@@ -0,0 +1,92 @@
+package buoi7_25_9.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram độ trễ (ns) kiểu log-linear, ghi lock-free, không cấp phát:
+ * - Mỗi luỹ thừa 2 chia thành 8 bucket -> sai số percentile ~12.5%
+ * - recordNanos() gọi được từ nhiều thread cùng lúc
+ * - Đủ rẻ để ghi trên MỌI frame
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void recordNanos(long ns) {
+        if (ns < 0) ns = 0;
+        counts.incrementAndGet(index(ns));
+        total.increment();
+        sumNanos.add(ns);
+        long m;
+        while (ns > (m = maxNanos.get()) && !maxNanos.compareAndSet(m, ns)) { /* retry */ }
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double meanMs() {
+        long n = total.sum();
+        return n == 0 ? 0.0 : sumNanos.sum() / (double) n / 1_000_000.0;
+    }
+
+    public double maxMs() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    /** Percentile (0..100) tính bằng ms, lấy cận trên của bucket chứa giá trị đó. */
+    public double percentileMs(double p) {
+        long n = 0;
+        long[] snap = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) { snap[i] = counts.get(i); n += snap[i]; }
+        if (n == 0) return 0.0;
+        long rank = (long) Math.ceil(Math.max(0.0, Math.min(100.0, p)) / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snap[i];
+            if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), maxNanos.get()) / 1_000_000.0;
+        }
+        return maxMs();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sumNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /** Tóm tắt 1 dòng: n, mean, p50, p99, max (ms). */
+    public String summary() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                count(), meanMs(), percentileMs(50), percentileMs(99), maxMs());
+    }
+
+    @Override public String toString() {
+        return summary();
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int shift = msb - SUB_BITS;
+        int sub = (int) (v >>> shift) & (SUB - 1);
+        return (msb - SUB_BITS + 1) * SUB + sub;
+    }
+
+    static long upperBound(int idx) {
+        if (idx < SUB) return idx;
+        int msb = idx / SUB + SUB_BITS - 1;
+        int sub = idx % SUB;
+        int shift = msb - SUB_BITS;
+        return ((long) (SUB + sub + 1) << shift) - 1;
+    }
+}
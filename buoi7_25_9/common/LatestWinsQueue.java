@@ -0,0 +1,56 @@
+package buoi7_25_9.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hàng đợi có giới hạn giữa 2 stage của pipeline, đầy thì bỏ phần tử CŨ NHẤT (latest-wins):
+ * - Stage trước không bao giờ bị chặn bởi stage sau chậm -> độ trễ không dồn lên
+ * - Stage sau take() chặn tới khi có phần tử
+ * - dropped(): số phần tử bị bỏ (stage sau là nút cổ chai nếu số này tăng đều)
+ */
+public final class LatestWinsQueue<T> {
+    private final int capacity;
+    private final ArrayDeque<T> items;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder dropped = new LongAdder();
+
+    public LatestWinsQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.items = new ArrayDeque<>(this.capacity);
+    }
+
+    /** Thêm phần tử; đầy thì bỏ phần tử cũ nhất. Trả về phần tử bị bỏ (hoặc null). */
+    public T put(T item) {
+        T old = null;
+        lock.lock();
+        try {
+            if (items.size() >= capacity) {
+                old = items.pollFirst();
+                dropped.increment();
+            }
+            items.offerLast(item);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return old;
+    }
+
+    public T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) notEmpty.await();
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+}
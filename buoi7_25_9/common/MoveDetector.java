@@ -0,0 +1,210 @@
+package buoi7_25_9.common;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Phát hiện vùng lớn bị dịch nguyên khối (cuộn tài liệu / trình duyệt, kéo nội dung) giữa frame client đang có và frame mới:
+ * - Bounding box vùng đổi (exact) -> hash từng dòng (trong bbox) của 2 frame, mỗi dòng mới tìm dòng cũ cùng hash
+ *   và bỏ 1 phiếu cho độ dịch dy = y - yCũ; dòng trùng hash (dòng trắng, kẻ ngang) không bỏ phiếu
+ * - dy nhiều phiếu nhất -> đoạn dòng liên tiếp dài nhất khớp exact với dòng cũ dịch dy = vùng copy-rect
+ * - Không có dy dọc đủ phiếu thì thử dịch ngang (hash từng cột) như trên
+ * Server gửi record copy-rect "chép vùng [x,y,w,h] từ (x-dx, y-dy)" trước các tile của DELTA, client blit trên canvas;
+ * chỉ còn dải mới lộ ra phải encode (lưới tile của DELTA đó hẹp lại thành dải STRIP px theo chiều dịch)
+ * -> cuộn không còn đẩy DELTA qua ngưỡng chuyển KEY.
+ * Bắt tay: client gửi writeUTF(HELLO) (-Dscreen.copyRect=false để tắt, client cũ không gửi) -> DELTA của viewer đó
+ * mang thêm danh sách record (có thể rỗng). Chỉ ở chế độ so hash (scale 1): frame client đang có = frame nguồn đã gửi.
+ */
+public final class MoveDetector {
+    public static final String HELLO = "COPYRECT";
+    public static final int MIN_SIZE = 64;     // vùng dịch nhỏ hơn (cạnh, px) không đáng 1 record
+    public static final int STRIP = 8;         // bề dày dải tile theo chiều dịch ở DELTA có move
+    private static final int MIN_VOTES = 8;    // số dòng / cột khớp tối thiểu cho 1 độ dịch
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+    private static final long AMBIGUOUS = -1;  // hash xuất hiện ở nhiều dòng cũ
+
+    private MoveDetector() {
+    }
+
+    /** Client có nhận record copy-rect không (-Dscreen.copyRect, mặc định bật). */
+    public static boolean requested() {
+        return !"false".equalsIgnoreCase(System.getProperty("screen.copyRect", "true"));
+    }
+
+    /** Vùng [x,y,w,h] của frame mới = vùng cùng kích thước ở (x-dx, y-dy) của frame cũ. */
+    public static final class Move {
+        public final int x, y, w, h, dx, dy;
+
+        public Move(int x, int y, int w, int h, int dx, int dy) {
+            this.x = x; this.y = y; this.w = w; this.h = h; this.dx = dx; this.dy = dy;
+        }
+
+        @Override public String toString() {
+            return "move[" + x + "," + y + " " + w + "x" + h + " by " + dx + "," + dy + "]";
+        }
+
+        /**
+         * Lưới tile cho DELTA có move: dải STRIP px theo chiều dịch, dài hết frame theo chiều kia -> chỉ encode dải mới
+         * lộ ra, và 1 dải liền nén tốt hơn nhiều tile nhỏ cắt ngang nó.
+         */
+        public int gridW(int tw, int width) {
+            return dx != 0 ? STRIP : dy != 0 ? width : tw;
+        }
+
+        public int gridH(int th, int height) {
+            return dy != 0 ? STRIP : dx != 0 ? height : th;
+        }
+
+        /**
+         * Cờ đổi theo lưới gw x gh sau khi client áp dụng move lên prev. coarse: cờ đổi so với prev theo lưới tile tw x th.
+         * Ô không cắt vùng move và chỉ phủ tile không đổi -> không đổi; còn lại so exact cur với prev đã dịch
+         * (tính trực tiếp, không dựng ảnh dự đoán).
+         */
+        public boolean[] dirtyAfter(BufferedImage prev, BufferedImage cur, boolean[] coarse, int tw, int th, int gw, int gh) {
+            RasterDiff.Plane a = RasterDiff.plane(prev), b = RasterDiff.plane(cur);
+            int W = b.width, H = b.height;
+            int ntx = (W + tw - 1) / tw, nx = (W + gw - 1) / gw, ny = (H + gh - 1) / gh;
+            boolean[] res = new boolean[nx * ny];
+            for (int gy = 0; gy < ny; gy++) {
+                int y0 = gy * gh, hh = Math.min(gh, H - y0);
+                for (int gx = 0; gx < nx; gx++) {
+                    int x0 = gx * gw, ww = Math.min(gw, W - x0);
+                    boolean touches = x0 < x + w && x < x0 + ww && y0 < y + h && y < y0 + hh;
+                    if (!touches && !anyDirty(coarse, ntx, tw, th, x0, y0, ww, hh)) continue;
+                    res[gy * nx + gx] = !sameAfter(a, b, x0, y0, ww, hh);
+                }
+            }
+            return res;
+        }
+
+        private static boolean anyDirty(boolean[] coarse, int ntx, int tw, int th, int x0, int y0, int ww, int hh) {
+            for (int ty = y0 / th; ty <= (y0 + hh - 1) / th; ty++) {
+                for (int tx = x0 / tw; tx <= (x0 + ww - 1) / tw; tx++) {
+                    if (coarse[ty * ntx + tx]) return true;
+                }
+            }
+            return false;
+        }
+
+        // ô [bx,by,bw,bh] của cur giống hệt prev sau move: phần trong vùng lấy từ prev dịch, phần ngoài giữ nguyên
+        private boolean sameAfter(RasterDiff.Plane a, RasterDiff.Plane b, int bx, int by, int bw, int bh) {
+            int ix0 = Math.max(bx, x), ix1 = Math.min(bx + bw, x + w);
+            for (int j = by; j < by + bh; j++) {
+                int ib = b.offset + j * b.stride, ia = a.offset + j * a.stride;
+                if (j < y || j >= y + h || ix0 >= ix1) {
+                    if (!Arrays.equals(a.px, ia + bx, ia + bx + bw, b.px, ib + bx, ib + bx + bw)) return false;
+                    continue;
+                }
+                int is = a.offset + (j - dy) * a.stride - dx; // dòng nguồn, cộng thêm cột đích
+                if (!Arrays.equals(a.px, ia + bx, ia + ix0, b.px, ib + bx, ib + ix0)
+                        || !Arrays.equals(a.px, is + ix0, is + ix1, b.px, ib + ix0, ib + ix1)
+                        || !Arrays.equals(a.px, ia + ix1, ia + bx + bw, b.px, ib + ix1, ib + bx + bw)) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Vùng dịch lớn nhất từ prev sang cur (ưu tiên dọc), null nếu không có / khác kích thước. */
+    public static Move detect(BufferedImage prev, BufferedImage cur) {
+        RasterDiff.Plane a = RasterDiff.plane(prev), b = RasterDiff.plane(cur);
+        if (!RasterDiff.sameSize(a, b)) return null;
+        int[] box = changedBox(a, b);
+        if (box == null || box[2] < MIN_SIZE || box[3] < MIN_SIZE) return null;
+        Move m = vertical(a, b, box[0], box[1], box[2], box[3]);
+        return m != null ? m : horizontal(a, b, box[0], box[1], box[2], box[3]);
+    }
+
+    // [x, y, w, h] exact (theo pixel) của vùng khác nhau; null nếu giống hệt
+    private static int[] changedBox(RasterDiff.Plane a, RasterDiff.Plane b) {
+        int W = b.width, minX = W, maxX = -1, minY = -1, maxY = -1;
+        for (int y = 0; y < b.height; y++) {
+            int ia = a.offset + y * a.stride, ib = b.offset + y * b.stride;
+            int m = Arrays.mismatch(a.px, ia, ia + W, b.px, ib, ib + W);
+            if (m < 0) continue;
+            int last = W - 1;
+            while (a.px[ia + last] == b.px[ib + last]) last--;
+            if (minY < 0) minY = y;
+            maxY = y;
+            minX = Math.min(minX, m);
+            maxX = Math.max(maxX, last);
+        }
+        return minY < 0 ? null : new int[]{minX, minY, maxX - minX + 1, maxY - minY + 1};
+    }
+
+    private static Move vertical(RasterDiff.Plane a, RasterDiff.Plane b, int x, int y, int w, int h) {
+        long[] ha = new long[h], hb = new long[h];
+        for (int j = 0; j < h; j++) {
+            ha[j] = hashRun(a, a.offset + (y + j) * a.stride + x, 1, w);
+            hb[j] = hashRun(b, b.offset + (y + j) * b.stride + x, 1, w);
+        }
+        int d = bestShift(ha, hb);
+        if (d == 0) return null;
+        // đoạn dòng liên tiếp dài nhất trong bbox (dòng nguồn vẫn nằm trong ảnh) khớp exact
+        int bestStart = 0, bestLen = 0, start = 0, len = 0;
+        for (int yy = Math.max(y, d); yy < Math.min(y + h, b.height + d); yy++) {
+            int ia = a.offset + (yy - d) * a.stride + x, ib = b.offset + yy * b.stride + x;
+            if (Arrays.equals(a.px, ia, ia + w, b.px, ib, ib + w)) {
+                if (len++ == 0) start = yy;
+                if (len > bestLen) { bestLen = len; bestStart = start; }
+            } else {
+                len = 0;
+            }
+        }
+        return bestLen >= MIN_SIZE ? new Move(x, bestStart, w, bestLen, 0, d) : null;
+    }
+
+    private static Move horizontal(RasterDiff.Plane a, RasterDiff.Plane b, int x, int y, int w, int h) {
+        long[] ha = new long[w], hb = new long[w];
+        for (int i = 0; i < w; i++) {
+            ha[i] = hashRun(a, a.offset + y * a.stride + x + i, a.stride, h);
+            hb[i] = hashRun(b, b.offset + y * b.stride + x + i, b.stride, h);
+        }
+        int d = bestShift(ha, hb);
+        if (d == 0) return null;
+        int bestStart = 0, bestLen = 0, start = 0, len = 0;
+        for (int xx = Math.max(x, d); xx < Math.min(x + w, b.width + d); xx++) {
+            if (sameColumn(a, xx - d, b, xx, y, h)) {
+                if (len++ == 0) start = xx;
+                if (len > bestLen) { bestLen = len; bestStart = start; }
+            } else {
+                len = 0;
+            }
+        }
+        return bestLen >= MIN_SIZE ? new Move(bestStart, y, bestLen, h, d, 0) : null;
+    }
+
+    private static boolean sameColumn(RasterDiff.Plane a, int xa, RasterDiff.Plane b, int xb, int y, int h) {
+        for (int j = y; j < y + h; j++) {
+            if (a.px[a.offset + j * a.stride + xa] != b.px[b.offset + j * b.stride + xb]) return false;
+        }
+        return true;
+    }
+
+    // Độ dịch (index mới - index cũ) nhiều phiếu nhất, 0 nếu không đủ MIN_VOTES
+    private static int bestShift(long[] old, long[] cur) {
+        HashMap<Long, Long> where = new HashMap<>(old.length * 2);
+        for (int i = 0; i < old.length; i++) {
+            where.merge(old[i], (long) i, (p, q) -> AMBIGUOUS);
+        }
+        HashMap<Integer, Integer> votes = new HashMap<>();
+        int best = 0, bestVotes = MIN_VOTES - 1;
+        for (int i = 0; i < cur.length; i++) {
+            Long p = where.get(cur[i]);
+            if (p == null || p == AMBIGUOUS || p == i) continue;
+            int d = i - p.intValue();
+            int v = votes.merge(d, 1, Integer::sum);
+            if (v > bestVotes) { bestVotes = v; best = d; }
+        }
+        return best;
+    }
+
+    private static long hashRun(RasterDiff.Plane p, int start, int step, int n) {
+        long h = n;
+        for (int k = 0, i = start; k < n; k++, i += step) {
+            h = (h ^ (p.px[i] & 0xFFFFFFL)) * PRIME;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,200 @@
+package buoi7_25_9.common;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Luồng packet KEY/DELTA đã mã hoá 1 lần, dùng chung cho mọi viewer (thay cho mỗi viewer tự diff + encode):
+ * - 1 encoder ghi packet vào writer() như ghi ra socket, mỗi flush() = 1 packet (byte[] không đổi sau khi publish)
+ * - Cache GOP: giữ PREAMBLE + KEY mới nhất + các DELTA sau nó -> viewer mới bắt đầu từ KEY đó, không chờ KEY sau
+ * - Mỗi viewer 1 Cursor: nhận đủ packet theo thứ tự; tụt lại quá 1 GOP (packet cần đã bị bỏ) thì nhảy tới KEY mới nhất
+ *   (DELTA không được bỏ lẻ như frame của FrameHub, chỉ bỏ được cả GOP)
+ * - Thêm viewer chỉ tốn ghi socket: packet được chia sẻ, không copy
+ */
+public final class PacketStream {
+    // Loại packet (cùng giá trị với FrameLog.PREAMBLE / KEY / DELTA)
+    public static final int PREAMBLE = 0; // gửi 1 lần đầu kết nối (vd [w][h] của patch2)
+    public static final int KEY = 1;
+    public static final int DELTA = 2;
+
+    public interface Classifier {
+        /** index: packet thứ mấy (từ 0); packet[0, len). */
+        int kind(long index, byte[] packet, int len);
+    }
+
+    public static final class Packet {
+        public final int kind;
+        public final long index;
+        public final byte[] data;
+        final long appendNanos;
+
+        Packet(int kind, long index, byte[] data) {
+            this.kind = kind;
+            this.index = index;
+            this.data = data;
+            this.appendNanos = System.nanoTime();
+        }
+    }
+
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final CopyOnWriteArrayList<Cursor> cursors = new CopyOnWriteArrayList<>();
+
+    // Chỉ đọc/ghi khi giữ lock
+    private final List<Packet> preambles = new ArrayList<>();
+    private final List<Packet> gop = new ArrayList<>(); // gop.get(0) là KEY, index liên tiếp
+    private long next = 0;
+
+    public PacketStream(String name) {
+        this.name = name;
+    }
+
+    /** OutputStream cho encoder: mỗi flush() publish phần đã ghi thành 1 packet. Chỉ 1 thread ghi. */
+    public OutputStream writer(Classifier classifier) {
+        return new OutputStream() {
+            private final ByteSink packet = new ByteSink(256 * 1024);
+            private long packets = 0;
+
+            @Override public void write(int b) {
+                packet.write(b);
+            }
+
+            @Override public void write(byte[] b, int off, int len) {
+                packet.write(b, off, len);
+            }
+
+            @Override public void flush() {
+                if (packet.size() == 0) return;
+                append(classifier.kind(packets++, packet.array(), packet.size()), packet.toByteArray());
+                packet.reset();
+            }
+        };
+    }
+
+    public void append(int kind, byte[] data) {
+        lock.lock();
+        try {
+            Packet p = new Packet(kind, next++, data);
+            if (kind == PREAMBLE) {
+                preambles.add(p);
+            } else if (kind == KEY) {
+                gop.clear(); // viewer còn trong GOP cũ sẽ nhảy sang KEY này
+                gop.add(p);
+            } else if (!gop.isEmpty()) {
+                gop.add(p); // DELTA trước KEY đầu tiên không giải mã được -> bỏ
+            }
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Số Cursor đang mở (viewer + recorder). */
+    public int viewers() {
+        return cursors.size();
+    }
+
+    public Cursor open(String consumerName) {
+        Cursor c = new Cursor(consumerName);
+        cursors.add(c);
+        return c;
+    }
+
+    /** Báo cáo độ trễ append -> gửi xong và số lần nhảy GOP của từng viewer. */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        lock.lock();
+        try {
+            sb.append("[Stream ").append(name).append("] packets=").append(next).append(" gop=").append(gop.size())
+                    .append(" viewers=").append(cursors.size());
+        } finally {
+            lock.unlock();
+        }
+        for (Cursor c : cursors) {
+            sb.append("\n  ").append(c.name).append(" | append->sent ").append(c.appendToSent.summary())
+                    .append(" | gopSkips=").append(c.skips.get());
+        }
+        return sb.toString();
+    }
+
+    /** Thread daemon in report() định kỳ (periodMs <= 0: không chạy). */
+    public void startReporter(long periodMs) {
+        if (periodMs <= 0) return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(periodMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!cursors.isEmpty()) System.out.println(report());
+            }
+        }, "stream-reporter-" + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Vị trí của 1 viewer trong luồng. Mỗi Cursor chỉ dùng từ 1 thread. */
+    public final class Cursor implements AutoCloseable {
+        private final String name;
+        private final LatencyHistogram appendToSent = new LatencyHistogram();
+        private final AtomicLong skips = new AtomicLong();
+        private int preamblesSent = 0;
+        private long pos = -1; // index packet kế tiếp cần gửi; -1: chưa bắt đầu
+        private long lastAppendNanos = 0;
+
+        private Cursor(String name) {
+            this.name = name;
+        }
+
+        /** Packet kế tiếp: PREAMBLE trước, rồi KEY trong cache và các DELTA theo sau. Chặn tới khi có. */
+        public Packet await() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (gop.isEmpty() || pos > gop.get(gop.size() - 1).index) appended.await();
+                Packet p;
+                if (preamblesSent < preambles.size()) {
+                    p = preambles.get(preamblesSent++);
+                } else {
+                    long keyIndex = gop.get(0).index;
+                    if (pos < keyIndex) {
+                        if (pos >= 0) skips.incrementAndGet();
+                        pos = keyIndex;
+                    }
+                    p = gop.get((int) (pos - keyIndex));
+                    pos++;
+                }
+                lastAppendNanos = p.appendNanos;
+                return p;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Gọi sau khi đã gửi xong packet vừa lấy. */
+        public void sent() {
+            if (lastAppendNanos != 0) {
+                appendToSent.recordNanos(System.nanoTime() - lastAppendNanos);
+                lastAppendNanos = 0;
+            }
+        }
+
+        public LatencyHistogram appendToSent() {
+            return appendToSent;
+        }
+
+        public long gopSkips() {
+            return skips.get();
+        }
+
+        @Override public void close() {
+            cursors.remove(this);
+        }
+    }
+}
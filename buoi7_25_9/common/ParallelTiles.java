@@ -0,0 +1,69 @@
+package buoi7_25_9.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Chạy việc theo từng tile / dải tile trên 1 ForkJoinPool dùng chung cho mọi sender của server
+ * (-Dscreen.tileThreads, mặc định số CPU; 1 = chạy tuần tự trên thread gọi như trước):
+ * - forEach(n, body): body(0..n-1) chia đôi đệ quy (fork/join), thread gọi chờ tới khi xong hết
+ * - Kết quả ghi theo index vào mảng của người gọi -> thứ tự ghép lại luôn như tuần tự, không phụ thuộc thread nào xong trước
+ * - Pool dùng chung: nhiều viewer cùng encode thì tổng số thread encode vẫn = tileThreads, không tăng theo số viewer
+ * Mỗi worker có EncoderSession / scratch ThreadLocal riêng nên body không cần đồng bộ.
+ */
+public final class ParallelTiles {
+    public interface Body {
+        void run(int i) throws IOException;
+    }
+
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("screen.tileThreads", Runtime.getRuntime().availableProcessors()));
+    private static final ForkJoinPool POOL = THREADS > 1 ? new ForkJoinPool(THREADS) : null;
+
+    private ParallelTiles() {
+    }
+
+    public static int threads() {
+        return THREADS;
+    }
+
+    /** body(i) cho i = 0..n-1, song song nếu có pool; lỗi IO đầu tiên được ném lại nguyên dạng. */
+    public static void forEach(int n, Body body) throws IOException {
+        if (POOL == null || n < 2) {
+            for (int i = 0; i < n; i++) body.run(i);
+            return;
+        }
+        try {
+            POOL.invoke(new Range(body, 0, n));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L; // RecursiveAction là Serializable; không bao giờ serialize
+        private final Body body;
+        private final int lo, hi;
+
+        Range(Body body, int lo, int hi) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override protected void compute() {
+            if (hi - lo == 1) {
+                try {
+                    body.run(lo);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Range(body, lo, mid), new Range(body, mid, hi));
+        }
+    }
+}
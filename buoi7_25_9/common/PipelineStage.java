@@ -0,0 +1,69 @@
+package buoi7_25_9.common;
+
+/**
+ * 1 stage của pipeline chạy trên thread riêng: take() từ hàng đợi vào -> xử lý -> put() sang hàng đợi ra.
+ * - Đo thời gian xử lý mỗi phần tử (không tính thời gian chờ) vào LatencyHistogram riêng
+ * - Step trả về null = không chuyển tiếp (vd stage cuối tự publish)
+ * - Lỗi 1 phần tử chỉ log rồi xử lý phần tử tiếp theo
+ */
+public final class PipelineStage<I, O> implements Runnable {
+
+    /** Công việc của stage; được phép ném exception. */
+    public interface Step<I, O> {
+        O apply(I in) throws Exception;
+    }
+
+    private final String name;
+    private final LatestWinsQueue<I> in;
+    private final LatestWinsQueue<O> out;
+    private final Step<I, O> step;
+    private final LatencyHistogram timing = new LatencyHistogram();
+
+    public PipelineStage(String name, LatestWinsQueue<I> in, LatestWinsQueue<O> out, Step<I, O> step) {
+        this.name = name;
+        this.in = in;
+        this.out = out;
+        this.step = step;
+    }
+
+    /** Khởi chạy trên thread daemon tên "stage-<name>". */
+    public PipelineStage<I, O> start() {
+        Thread t = new Thread(this, "stage-" + name);
+        t.setDaemon(true);
+        t.start();
+        return this;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            I item;
+            try {
+                item = in.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            try {
+                O result = step.apply(item);
+                timing.recordNanos(System.nanoTime() - t0);
+                if (result != null && out != null) out.put(result);
+            } catch (Exception e) {
+                System.err.println("[Stage " + name + "] " + e.getMessage());
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public LatencyHistogram timing() {
+        return timing;
+    }
+
+    /** 1 dòng: tên, thời gian xử lý, số phần tử bị bỏ ở hàng đợi vào. */
+    public String report() {
+        return name + " | " + timing.summary() + " | dropped-in=" + in.dropped();
+    }
+}
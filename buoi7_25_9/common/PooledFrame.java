@@ -0,0 +1,95 @@
+package buoi7_25_9.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frame đã mã hoá nằm trong 1 buffer lấy từ BufferPool, đếm tham chiếu:
+ * - Buffer chứa sẵn đúng bytes trên dây: [int length][FrameHeader][payload] -> broadcast không phải tạo header riêng
+ * - Người tạo giữ 1 ref; mỗi nơi giữ frame (session, broadcaster...) retain() rồi release() khi xong
+ * - Ref về 0 -> buffer trả về pool
+ *
+ * Mỗi thread I/O lấy 1 FrameView (duplicate buffer) để có position/limit riêng;
+ * session chỉ giữ (view, offset đã gửi).
+ */
+public final class PooledFrame implements RefCounted {
+    public static final int HEADER_BYTES = 4 + FrameHeader.BYTES;
+
+    private final BufferPool pool;
+    private final ByteBuffer buf;
+    private final int size; // header + payload
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    public final int seq;
+    public final int width;
+    public final int height;
+    public final long tsNanos;
+
+    private PooledFrame(BufferPool pool, ByteBuffer buf, int size, int seq, int width, int height, long tsNanos) {
+        this.pool = pool;
+        this.buf = buf;
+        this.size = size;
+        this.seq = seq;
+        this.width = width;
+        this.height = height;
+        this.tsNanos = tsNanos;
+    }
+
+    /** Copy payload [off, off+len) vào buffer của pool, kèm [int length][FrameHeader]. */
+    public static PooledFrame copyOf(BufferPool pool, byte[] payload, int off, int len,
+                                     int seq, int width, int height, long tsNanos, int codecId, int flags) {
+        ByteBuffer b = pool.acquire(HEADER_BYTES + len);
+        b.putInt(FrameHeader.BYTES + len);
+        FrameHeader.write(b, codecId, flags, seq, tsNanos);
+        b.put(payload, off, len);
+        b.flip();
+        return new PooledFrame(pool, b, HEADER_BYTES + len, seq, width, height, tsNanos);
+    }
+
+    /**
+     * Frame v1 nhận nguyên từ upstream (relay): frame[0, len) = [FrameHeader][payload], payload giữ nguyên từng byte.
+     * captureNanos trong header được ghi đè bằng tsNanos (đồng hồ của relay) -> Receipt của viewer phía sau
+     * đo độ trễ của chặng relay, không trộn đồng hồ 2 máy.
+     */
+    public static PooledFrame copyOfWire(BufferPool pool, byte[] frame, int len, int seq, long tsNanos) {
+        ByteBuffer b = pool.acquire(4 + len);
+        b.putInt(len);
+        b.put(frame, 0, len);
+        b.putLong(4 + FrameHeader.CAPTURE_OFFSET, tsNanos);
+        b.flip();
+        return new PooledFrame(pool, b, 4 + len, seq, 0, 0, tsNanos);
+    }
+
+    @Override public PooledFrame retain() {
+        for (;;) {
+            int c = refCnt.get();
+            if (c <= 0) throw new IllegalStateException("Frame " + seq + " đã trả về pool");
+            if (refCnt.compareAndSet(c, c + 1)) return this;
+        }
+    }
+
+    @Override public void release() {
+        int c = refCnt.decrementAndGet();
+        if (c == 0) {
+            pool.release(buf);
+        } else if (c < 0) {
+            throw new IllegalStateException("Frame " + seq + " release quá số lần retain");
+        }
+    }
+
+    /** Số byte trên dây (header + payload). */
+    public int size() {
+        return size;
+    }
+
+    public int payloadLength() {
+        return size - HEADER_BYTES;
+    }
+
+    /** Buffer mới dùng chung dữ liệu (position=0, limit=size), position/limit độc lập với frame. */
+    public ByteBuffer duplicateBuffer() {
+        ByteBuffer d = buf.duplicate();
+        d.limit(size).position(0);
+        return d;
+    }
+}
@@ -0,0 +1,212 @@
+package buoi7_25_9.common;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * So sánh 2 frame TYPE_INT_RGB trực tiếp trên mảng int[] của DataBufferInt (không gọi getRGB từng pixel):
+ * - Exact: so từng dòng bằng Arrays.equals/mismatch (JIT intrinsic, chạy SIMD trên x86/ARM)
+ * - MAD: trung bình (|dR|+|dG|+|dB|)/3 mỗi pixel, bỏ qua nhanh đoạn dòng giống hệt, dừng sớm khi chắc chắn vượt ngưỡng
+ * - Dirty map: cờ thay đổi cho từng tile; bounding box vùng thay đổi theo block; tỉ lệ thay đổi lấy mẫu thưa
+ * Ảnh không phải TYPE_INT_RGB được đổi sang 1 lần trong plane().
+ */
+public final class RasterDiff {
+
+    private RasterDiff() {
+    }
+
+    /** Mảng pixel của 1 ảnh (hoặc subimage): px[offset + y*stride + x]. */
+    public static final class Plane {
+        public final int[] px;
+        public final int offset;
+        public final int stride;
+        public final int width;
+        public final int height;
+
+        Plane(int[] px, int offset, int stride, int width, int height) {
+            this.px = px;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public static Plane plane(BufferedImage img) {
+        img = ImageOps.toRGB(img);
+        WritableRaster r = img.getRaster();
+        DataBufferInt db = (DataBufferInt) r.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) r.getSampleModel()).getScanlineStride();
+        int offset = db.getOffset() - r.getSampleModelTranslateY() * stride - r.getSampleModelTranslateX();
+        return new Plane(db.getData(), offset, stride, img.getWidth(), img.getHeight());
+    }
+
+    public static boolean sameSize(Plane a, Plane b) {
+        return a.width == b.width && a.height == b.height;
+    }
+
+    /** Vùng [x,y,w,h] giống hệt từng pixel. */
+    public static boolean sameBlock(Plane a, Plane b, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++) {
+            int ia = a.offset + (y + j) * a.stride + x;
+            int ib = b.offset + (y + j) * b.stride + x;
+            if (!Arrays.equals(a.px, ia, ia + w, b.px, ib, ib + w)) return false;
+        }
+        return true;
+    }
+
+    /** MAD của vùng (0..255), cùng công thức với bản getRGB cũ: tổng (dR+dG+dB)/3 mỗi pixel chia số pixel. */
+    public static int mad(Plane a, Plane b, int x, int y, int w, int h) {
+        long sum = madSum(a, b, x, y, w, h, Long.MAX_VALUE);
+        return (int) (sum / Math.max(1, (long) w * h));
+    }
+
+    /** mad(...) > thr ? (dừng sớm ngay khi tổng đủ lớn). */
+    public static boolean madExceeds(Plane a, Plane b, int x, int y, int w, int h, int thr) {
+        long cnt = Math.max(1, (long) w * h);
+        long limit = (thr + 1L) * cnt; // sum/cnt > thr  <=>  sum >= (thr+1)*cnt
+        return madSum(a, b, x, y, w, h, limit) >= limit;
+    }
+
+    private static long madSum(Plane a, Plane b, int x, int y, int w, int h, long stopAt) {
+        long sum = 0;
+        int[] pa = a.px, pb = b.px;
+        for (int j = 0; j < h; j++) {
+            int ia = a.offset + (y + j) * a.stride + x;
+            int ib = b.offset + (y + j) * b.stride + x;
+            int i = Arrays.mismatch(pa, ia, ia + w, pb, ib, ib + w);
+            if (i < 0) continue; // cả dòng giống hệt
+            for (; i < w; i++) {
+                int p = pa[ia + i], q = pb[ib + i];
+                if (p != q) sum += pixelDiff(p, q);
+            }
+            if (sum >= stopAt) return sum;
+        }
+        return sum;
+    }
+
+    /** (|dR|+|dG|+|dB|)/3 của 1 pixel. */
+    private static int pixelDiff(int p, int q) {
+        int dr = Math.abs(((p >> 16) & 255) - ((q >> 16) & 255));
+        int dg = Math.abs(((p >> 8) & 255) - ((q >> 8) & 255));
+        int db = Math.abs((p & 255) - (q & 255));
+        return (dr + dg + db) / 3;
+    }
+
+    /**
+     * Cờ thay đổi từng tile (index = ty * nx + tx). thr <= 0: so exact, > 0: MAD > thr.
+     * Quét theo dòng cả chiều rộng: dòng giống hệt chỉ tốn 1 lần mismatch, không phải nx lần.
+     * Khác kích thước -> mọi tile đều đổi.
+     */
+    public static boolean[] dirtyTiles(Plane a, Plane b, int tw, int th, int thr) {
+        int W = b.width, H = b.height;
+        int nx = (W + tw - 1) / tw, ny = (H + th - 1) / th;
+        boolean[] dirty = new boolean[nx * ny];
+        if (a == null || !sameSize(a, b)) {
+            Arrays.fill(dirty, true);
+            return dirty;
+        }
+        long[] sums = thr > 0 ? new long[nx] : null;
+        for (int ty = 0; ty < ny; ty++) dirtyRow(a, b, tw, th, thr, ty, dirty, sums);
+        return dirty;
+    }
+
+    /**
+     * Như dirtyTiles nhưng mỗi hàng tile là 1 việc trên ParallelTiles (hàng ghi vùng dirty[] riêng -> không cần khoá).
+     * Kết quả giống hệt bản tuần tự.
+     */
+    public static boolean[] dirtyTilesParallel(Plane a, Plane b, int tw, int th, int thr) {
+        int W = b.width, H = b.height;
+        int nx = (W + tw - 1) / tw, ny = (H + th - 1) / th;
+        boolean[] dirty = new boolean[nx * ny];
+        if (a == null || !sameSize(a, b)) {
+            Arrays.fill(dirty, true);
+            return dirty;
+        }
+        try {
+            ParallelTiles.forEach(ny, ty -> dirtyRow(a, b, tw, th, thr, ty, dirty, thr > 0 ? new long[nx] : null));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // dirtyRow không làm IO
+        }
+        return dirty;
+    }
+
+    // 1 hàng tile ty; sums: scratch nx phần tử (null nếu so exact)
+    private static void dirtyRow(Plane a, Plane b, int tw, int th, int thr, int ty, boolean[] dirty, long[] sums) {
+        int W = b.width, H = b.height;
+        int nx = (W + tw - 1) / tw;
+        int[] pa = a.px, pb = b.px;
+        int y0 = ty * th, hh = Math.min(th, H - y0), base = ty * nx;
+        if (sums != null) Arrays.fill(sums, 0);
+        for (int y = y0; y < y0 + hh; y++) {
+            int ia = a.offset + y * a.stride, ib = b.offset + y * b.stride;
+            int x = 0;
+            while (x < W) {
+                int m = Arrays.mismatch(pa, ia + x, ia + W, pb, ib + x, ib + W);
+                if (m < 0) break;
+                x += m;
+                int tx = x / tw, end = Math.min(W, (tx + 1) * tw);
+                if (sums == null) {
+                    dirty[base + tx] = true;
+                } else if (!dirty[base + tx]) {
+                    long s = sums[tx];
+                    for (int i = x; i < end; i++) {
+                        int p = pa[ia + i], q = pb[ib + i];
+                        if (p != q) s += pixelDiff(p, q);
+                    }
+                    sums[tx] = s;
+                    int ww = end - tx * tw;
+                    if (s >= (thr + 1L) * ww * hh) dirty[base + tx] = true; // sum/cnt > thr
+                }
+                x = end; // phần còn lại của tile này không cần xét nữa ở dòng này
+            }
+        }
+    }
+
+    /** Bounding box các block (block x block) khác nhau; null nếu giống hệt. */
+    public static Rectangle changedBounds(Plane a, Plane b, int block) {
+        int width = b.width, height = b.height;
+        int minX = width, minY = height, maxX = 0, maxY = 0;
+        boolean changed = false;
+        for (int y = 0; y < height; y += block) {
+            int bh = Math.min(block, height - y);
+            for (int x = 0; x < width; x += block) {
+                if (!sameBlock(a, b, x, y, Math.min(block, width - x), bh)) {
+                    if (x < minX) minX = x;
+                    if (y < minY) minY = y;
+                    if (x + block > maxX) maxX = x + block;
+                    if (y + block > maxY) maxY = y + block;
+                    changed = true;
+                }
+            }
+        }
+        if (!changed) return null;
+        maxX = Math.min(width, maxX);
+        maxY = Math.min(height, maxY);
+        return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /** Tỉ lệ điểm lấy mẫu (lưới step x step) có kênh màu nào lệch > channelThr. */
+    public static double sampledChangeRatio(Plane a, Plane b, int step, int channelThr) {
+        int total = 0, changed = 0;
+        for (int y = 0; y < b.height; y += step) {
+            int ia = a.offset + y * a.stride, ib = b.offset + y * b.stride;
+            for (int x = 0; x < b.width; x += step) {
+                int p = a.px[ia + x], q = b.px[ib + x];
+                total++;
+                if (p == q) continue;
+                if (Math.abs(((p >> 16) & 255) - ((q >> 16) & 255)) > channelThr
+                        || Math.abs(((p >> 8) & 255) - ((q >> 8) & 255)) > channelThr
+                        || Math.abs((p & 255) - (q & 255)) > channelThr) {
+                    changed++;
+                }
+            }
+        }
+        return total == 0 ? 1.0 : changed / (double) total;
+    }
+}
@@ -0,0 +1,34 @@
+package buoi7_25_9.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Biên nhận client gửi ngược lên cho từng frame v1 (13 byte, không cần phản hồi):
+ *   [byte kind][int seq][long captureNanos]   (captureNanos = giá trị nhận trong FrameHeader)
+ * Server ghi (now - captureNanos) vào histogram của viewer theo kind.
+ * v3: client gửi writeUTF(HELLO) cuối cùng trên luồng điều khiển, frame có cờ 8 mang captureNanos (xem ClientHello).
+ */
+public final class Receipt {
+    public static final int BYTES = 1 + 4 + 8;
+    public static final String HELLO = "RECEIPTS";
+
+    public static final int RECEIVED = 1; // đọc xong payload
+    public static final int DECODED = 2;  // giải mã xong ảnh
+    public static final int PAINTED = 3;  // vẽ lên màn hình xong
+
+    private Receipt() {
+    }
+
+    public static byte[] encode(int kind, int seq, long captureNanos) {
+        return ByteBuffer.allocate(BYTES).put((byte) kind).putInt(seq).putLong(captureNanos).array();
+    }
+
+    public static String name(int kind) {
+        switch (kind) {
+            case RECEIVED: return "received";
+            case DECODED: return "decoded";
+            case PAINTED: return "painted";
+            default: return "kind" + kind;
+        }
+    }
+}
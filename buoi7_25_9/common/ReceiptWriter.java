@@ -0,0 +1,67 @@
+package buoi7_25_9.common;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gửi Receipt ngược lên server mà không chặn thread gọi (EDT khi vẽ, thread nhận frame, upstream của relay):
+ * - send() chỉ offer vào hàng đợi có giới hạn; 1 thread daemon lấy ra, ghi gộp rồi flush 1 lần
+ * - hàng đợi đầy (đường ngược chậm / server không đọc) -> bỏ Receipt, chỉ tăng bộ đếm dropped():
+ *   Receipt chỉ là số liệu đo, mất vài cái không được làm chậm nhận / vẽ frame
+ * - lỗi ghi (mất kết nối) -> thread dừng, send() sau đó bỏ qua; close() khi đóng socket để thread không treo ở take()
+ */
+public final class ReceiptWriter implements Closeable {
+    public static final int CAPACITY = 256; // ~ vài giây Receipt ở 30 fps x 3 kind
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final OutputStream out;
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    /** Khởi chạy thread daemon tên name ghi vào out (out không còn ai khác ghi). */
+    public ReceiptWriter(OutputStream out, String name) {
+        this.out = new BufferedOutputStream(out, Receipt.BYTES * 64); // 1 lần write + flush cho cả lô
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void send(int kind, int seq, long captureNanos) {
+        if (closed) return;
+        if (!queue.offer(Receipt.encode(kind, seq, captureNanos))) dropped.increment();
+    }
+
+    /** Số Receipt bị bỏ vì hàng đợi đầy. */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                byte[] r = queue.take();
+                do {
+                    out.write(r);
+                } while ((r = queue.poll()) != null);
+                out.flush();
+            }
+        } catch (InterruptedException | IOException e) {
+            // close() hoặc mất kết nối: thread nhận frame tự phát hiện socket hỏng
+        } finally {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
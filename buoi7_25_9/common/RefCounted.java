@@ -0,0 +1,11 @@
+package buoi7_25_9.common;
+
+/**
+ * Đối tượng đếm tham chiếu (vd PooledFrame): ai giữ thì retain(), xong thì release().
+ * FrameHub dựa vào interface này để giữ/trả ref thay cho consumer.
+ */
+public interface RefCounted {
+    RefCounted retain();
+
+    void release();
+}
@@ -0,0 +1,227 @@
+package buoi7_25_9.common;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Số đo của 1 server, publish qua JMX (jconsole / VisualVM / Prometheus JMX exporter đọc được, không cần profiler):
+ * - buoi7_25_9:type=Server,name=<server>               -> Sessions, BytesSent, FramesSent, StageNames
+ * - buoi7_25_9:type=Stage,server=<server>,name=<stage>  -> Count, MeanMs, P50Ms, P90Ms, P99Ms, MaxMs
+ * - buoi7_25_9:type=Viewer,server=<server>,viewer=<địa chỉ>,name=<tên> -> như Stage, riêng 1 viewer
+ *   (vd độ trễ Receipt received / decoded / painted của v3), chỉ tồn tại khi viewer còn kết nối
+ * Mỗi stage là 1 LatencyHistogram (ghi lock-free trên mọi frame); stage() / viewer() lấy hoặc tạo theo tên.
+ */
+public final class ServerMetrics {
+    public static final String CAPTURE = "capture";
+    public static final String SCALE = "scale";
+    public static final String DIFF = "diff";
+    public static final String ENCODE = "encode";
+    public static final String ENQUEUE = "enqueue";
+    public static final String WRITE = "write";
+    public static final String RECORD = "record";   // chép 1 frame vào log ghi phiên (thread riêng)
+    public static final String HASH = "hash";       // hash từng tile 1 lần / frame ở producer (thay diff pixel của từng viewer)
+    public static final String DELIVER = "deliver"; // tsNanos của frame -> gửi xong tới 1 viewer (relay: độ trễ thêm của chặng)
+
+    private static final String DOMAIN = "buoi7_25_9";
+
+    /** Thuộc tính của 1 stage trên JMX. */
+    public interface StageMXBean {
+        long getCount();
+
+        double getMeanMs();
+
+        double getP50Ms();
+
+        double getP90Ms();
+
+        double getP99Ms();
+
+        double getMaxMs();
+
+        void reset();
+    }
+
+    /** Thuộc tính tổng của server trên JMX. */
+    public interface ServerMXBean {
+        int getSessions();
+
+        long getBytesSent();
+
+        long getFramesSent();
+
+        String[] getStageNames();
+
+        void resetStages();
+    }
+
+    private final String server;
+    private final Map<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, LatencyHistogram>> viewers = new ConcurrentHashMap<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+
+    public ServerMetrics(String server) {
+        this.server = server;
+        register("type=Server,name=" + server, new StandardMBean(new ServerView(), ServerMXBean.class, true));
+    }
+
+    /** Histogram của stage (tạo + đăng ký JMX lần đầu gọi). */
+    public LatencyHistogram stage(String name) {
+        return stages.computeIfAbsent(name, this::newStage);
+    }
+
+    /** Đăng ký 1 histogram đã có sẵn (vd timing của PipelineStage) dưới tên stage. */
+    public void stage(String name, LatencyHistogram h) {
+        if (stages.putIfAbsent(name, h) == null) registerStage(name, h);
+    }
+
+    /** Histogram riêng của 1 viewer (tạo + đăng ký JMX lần đầu gọi); gỡ bằng viewerClosed khi viewer ngắt. */
+    public LatencyHistogram viewer(String viewer, String name) {
+        return viewers.computeIfAbsent(viewer, v -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, n -> {
+                    LatencyHistogram h = new LatencyHistogram();
+                    register(viewerKeys(viewer, n), new StandardMBean(new StageView(h), StageMXBean.class, true));
+                    return h;
+                });
+    }
+
+    public void viewerClosed(String viewer) {
+        Map<String, LatencyHistogram> hs = viewers.remove(viewer);
+        if (hs == null) return;
+        for (String name : hs.keySet()) unregister(viewerKeys(viewer, name));
+    }
+
+    public void sessionOpened() {
+        sessions.incrementAndGet();
+    }
+
+    public void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    public void bytesSent(long n) {
+        bytesSent.add(n);
+    }
+
+    public void frameSent() {
+        framesSent.increment();
+    }
+
+    /** Nhiều dòng: tổng + từng stage (in kèm các report định kỳ khác). */
+    public String report() {
+        StringBuilder sb = new StringBuilder("[Metrics ").append(server).append("] sessions=").append(sessions.get())
+                .append(" frames=").append(framesSent.sum())
+                .append(String.format(" sent=%.1fMB", bytesSent.sum() / 1e6));
+        stages.forEach((name, h) -> sb.append("\n  ").append(name).append(" | ").append(h.summary()));
+        viewers.forEach((viewer, hs) -> hs.forEach((name, h) ->
+                sb.append("\n  ").append(viewer).append(' ').append(name).append(" | ").append(h.summary())));
+        return sb.toString();
+    }
+
+    private LatencyHistogram newStage(String name) {
+        LatencyHistogram h = new LatencyHistogram();
+        registerStage(name, h);
+        return h;
+    }
+
+    private void registerStage(String name, LatencyHistogram h) {
+        try {
+            register("type=Stage,server=" + server + ",name=" + name, new StandardMBean(new StageView(h), StageMXBean.class, true));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Metrics] " + e.getMessage());
+        }
+    }
+
+    // địa chỉ viewer có ':' / '/' -> quote
+    private String viewerKeys(String viewer, String name) {
+        return "type=Viewer,server=" + server + ",viewer=" + ObjectName.quote(viewer) + ",name=" + name;
+    }
+
+    // JMX lỗi (tên trùng khi chạy 2 server cùng JVM...) chỉ log, server vẫn chạy
+    private void register(String keys, Object mbean) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(DOMAIN + ":" + keys);
+            if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+            mbs.registerMBean(mbean, on);
+        } catch (JMException e) {
+            System.err.println("[Metrics] JMX register " + keys + " failed: " + e.getMessage());
+        }
+    }
+
+    private void unregister(String keys) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(DOMAIN + ":" + keys);
+            if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+        } catch (JMException e) {
+            System.err.println("[Metrics] JMX unregister " + keys + " failed: " + e.getMessage());
+        }
+    }
+
+    private final class ServerView implements ServerMXBean {
+        @Override public int getSessions() {
+            return sessions.get();
+        }
+
+        @Override public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override public long getFramesSent() {
+            return framesSent.sum();
+        }
+
+        @Override public String[] getStageNames() {
+            return stages.keySet().toArray(new String[0]);
+        }
+
+        @Override public void resetStages() {
+            stages.values().forEach(LatencyHistogram::reset);
+        }
+    }
+
+    private static final class StageView implements StageMXBean {
+        private final LatencyHistogram h;
+
+        StageView(LatencyHistogram h) {
+            this.h = h;
+        }
+
+        @Override public long getCount() {
+            return h.count();
+        }
+
+        @Override public double getMeanMs() {
+            return h.meanMs();
+        }
+
+        @Override public double getP50Ms() {
+            return h.percentileMs(50);
+        }
+
+        @Override public double getP90Ms() {
+            return h.percentileMs(90);
+        }
+
+        @Override public double getP99Ms() {
+            return h.percentileMs(99);
+        }
+
+        @Override public double getMaxMs() {
+            return h.maxMs();
+        }
+
+        @Override public void reset() {
+            h.reset();
+        }
+    }
+}
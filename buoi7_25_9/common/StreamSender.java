@@ -0,0 +1,46 @@
+package buoi7_25_9.common;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Viewer của PacketStream: chỉ ghi packet đã mã hoá sẵn ra socket (không scale / diff / encode).
+ * Viewer chậm chỉ chặn thread của chính nó; tụt quá 1 GOP thì Cursor tự nhảy tới KEY mới nhất.
+ */
+public final class StreamSender implements Runnable {
+    private final Socket socket;
+    private final PacketStream stream;
+    private final ServerMetrics metrics;
+    private final LatencyHistogram writeTiming;
+
+    public StreamSender(Socket socket, PacketStream stream, ServerMetrics metrics) {
+        this.socket = socket;
+        this.stream = stream;
+        this.metrics = metrics;
+        this.writeTiming = metrics.stage(ServerMetrics.WRITE);
+    }
+
+    @Override
+    public void run() {
+        metrics.sessionOpened();
+        try (PacketStream.Cursor cursor = stream.open("sender-" + socket.getRemoteSocketAddress());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+            while (!socket.isClosed()) {
+                PacketStream.Packet p = cursor.await();
+                long t0 = System.nanoTime();
+                out.write(p.data);
+                out.flush();
+                writeTiming.recordNanos(System.nanoTime() - t0);
+                cursor.sent();
+                metrics.bytesSent(p.data.length);
+                if (p.kind != PacketStream.PREAMBLE) metrics.frameSent();
+            }
+        } catch (Exception e) {
+            // viewer ngắt kết nối
+        } finally {
+            metrics.sessionClosed();
+            try { socket.close(); } catch (Exception ignored) {}
+        }
+    }
+}
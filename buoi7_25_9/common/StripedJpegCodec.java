@@ -0,0 +1,127 @@
+package buoi7_25_9.common;
+
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Mã hoá JPEG song song theo dải ngang (stripe):
+ * - Chia ảnh thành N dải, chiều cao bội số 16 (MCU của JPEG 4:2:0) -> mép dải không bị lệch block
+ * - Mỗi dải mã hoá độc lập trên ForkJoinPool, ghép thành 1 payload multi-part
+ * - Client nhận ra payload multi-part qua FrameHeader.FLAG_STRIPED; MAGIC chỉ để decode kiểm tra
+ *
+ * Payload: [int MAGIC][short N][short W][short H]  N x { [short y][int len][bytes JPEG] }
+ */
+public final class StripedJpegCodec {
+    public static final int MAGIC = 0x53545250; // "STRP"
+    private static final int MCU = 16;
+
+    private final ForkJoinPool pool;
+    private final int stripes;
+    private ByteSink[] parts = new ByteSink[0]; // mỗi dải 1 sink, dùng lại giữa các frame
+
+    public StripedJpegCodec(ForkJoinPool pool, int stripes) {
+        this.pool = pool;
+        this.stripes = Math.max(1, stripes);
+    }
+
+    /** Mã hoá img vào out (reset trước khi ghi). Không gọi đồng thời trên cùng 1 codec. */
+    public void encode(BufferedImage img, float q, ByteSink out) throws IOException {
+        int w = img.getWidth(), h = img.getHeight();
+        int n = Math.max(1, Math.min(stripes, (h + MCU - 1) / MCU));
+        int stripeH = ((h + n - 1) / n + MCU - 1) / MCU * MCU;
+        n = (h + stripeH - 1) / stripeH;
+        if (parts.length < n) {
+            ByteSink[] grown = new ByteSink[n];
+            System.arraycopy(parts, 0, grown, 0, parts.length);
+            for (int i = parts.length; i < n; i++) grown[i] = new ByteSink(64 * 1024);
+            parts = grown;
+        }
+
+        List<Callable<Void>> jobs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final int y = i * stripeH;
+            final int sh = Math.min(stripeH, h - y);
+            final ByteSink sink = parts[i];
+            jobs.add(() -> {
+                encodeJpeg(img.getSubimage(0, y, w, sh), q, sink);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(jobs)) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Stripe encode interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Stripe encode failed: " + e.getCause(), e.getCause());
+        }
+
+        out.reset();
+        out.writeInt(MAGIC);
+        out.writeShort(n);
+        out.writeShort(w);
+        out.writeShort(h);
+        for (int i = 0; i < n; i++) {
+            out.writeShort(i * stripeH);
+            out.writeInt(parts[i].size());
+            out.write(parts[i].array(), 0, parts[i].size());
+        }
+    }
+
+    public static BufferedImage decode(byte[] b, int len) throws IOException {
+        return decode(b, 0, len);
+    }
+
+    /** Giải mã các dải song song (common pool) rồi ghép vào 1 ảnh TYPE_INT_RGB. */
+    public static BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(b, off, len);
+        if (in.getInt() != MAGIC) throw new IOException("Not a striped frame");
+        int n = in.getShort() & 0xFFFF;
+        int w = in.getShort() & 0xFFFF;
+        int h = in.getShort() & 0xFFFF;
+        int[] ys = new int[n], offs = new int[n], lens = new int[n];
+        for (int i = 0; i < n; i++) {
+            ys[i] = in.getShort() & 0xFFFF;
+            lens[i] = in.getInt();
+            offs[i] = in.position();
+            if (lens[i] < 0 || lens[i] > in.remaining()) throw new IOException("Bad stripe length: " + lens[i]);
+            in.position(offs[i] + lens[i]);
+        }
+
+        BufferedImage canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        BufferedImage[] decoded = new BufferedImage[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            try {
+                decoded[i] = ImageIO.read(new ByteArrayInputStream(b, offs[i], lens[i]));
+            } catch (IOException ignored) {
+                // dải hỏng -> để đen, frame sau sẽ vẽ lại
+            }
+        });
+        Graphics2D g2 = canvas.createGraphics();
+        for (int i = 0; i < n; i++) {
+            if (decoded[i] != null) g2.drawImage(decoded[i], 0, ys[i], null);
+        }
+        g2.dispose();
+        return canvas;
+    }
+
+    private static void encodeJpeg(BufferedImage img, float q, ByteSink sink) throws IOException {
+        // Mỗi ForkJoin worker có EncoderSession riêng -> ImageWriter dùng lại giữa các dải/frame
+        sink.reset();
+        EncoderSession.current().encodeTo(Codecs.JPEG, img, q, sink);
+    }
+}
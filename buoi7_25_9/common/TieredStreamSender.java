@@ -0,0 +1,87 @@
+package buoi7_25_9.common;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Viewer của simulcast: server mã hoá sẵn vài tầng chất lượng (mỗi tầng 1 PacketStream, encode 1 lần / frame),
+ * ABR chỉ CHỌN tầng cho viewer thay vì encode riêng cho viewer:
+ * - Mỗi ABR_WINDOW_MS: ghi socket chậm (> badWriteMs, buffer gửi đầy) hoặc bị nhảy GOP -> xuống 1 tầng
+ * - UP_WINDOWS cửa sổ liền tốt -> lên 1 tầng (trễ lên để không dao động)
+ * - Đổi tầng giữa 2 packet: mở Cursor của tầng mới -> bắt đầu từ KEY trong cache của tầng đó
+ *   (KEY + các DELTA sau nó gửi liền một lượt nên viewer đuổi kịp ngay, không phải chờ KEY sau)
+ * tiers.get(0) là tầng tốt nhất.
+ */
+public final class TieredStreamSender implements Runnable {
+    private static final long ABR_WINDOW_MS = 2_000;
+    private static final int UP_WINDOWS = 3;
+
+    private final Socket socket;
+    private final List<PacketStream> tiers;
+    private final ServerMetrics metrics;
+    private final LatencyHistogram writeTiming;
+    private final long badWriteNanos;
+
+    public TieredStreamSender(Socket socket, List<PacketStream> tiers, ServerMetrics metrics, long badWriteMs) {
+        this.socket = socket;
+        this.tiers = tiers;
+        this.metrics = metrics;
+        this.writeTiming = metrics.stage(ServerMetrics.WRITE);
+        this.badWriteNanos = badWriteMs * 1_000_000L;
+    }
+
+    @Override
+    public void run() {
+        String name = "sender-" + socket.getRemoteSocketAddress();
+        int tier = 0;
+        PacketStream.Cursor cursor = tiers.get(tier).open(name);
+        metrics.sessionOpened();
+        try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+            long windowStart = System.currentTimeMillis();
+            long maxWriteNanos = 0, skipsAtWindowStart = 0;
+            int goodWindows = 0;
+            while (!socket.isClosed()) {
+                PacketStream.Packet p = cursor.await();
+                long t0 = System.nanoTime();
+                out.write(p.data);
+                out.flush();
+                long writeNanos = System.nanoTime() - t0;
+                writeTiming.recordNanos(writeNanos);
+                cursor.sent();
+                metrics.bytesSent(p.data.length);
+                if (p.kind != PacketStream.PREAMBLE) metrics.frameSent();
+                maxWriteNanos = Math.max(maxWriteNanos, writeNanos);
+
+                long now = System.currentTimeMillis();
+                if (now - windowStart < ABR_WINDOW_MS) continue;
+                boolean congested = maxWriteNanos > badWriteNanos || cursor.gopSkips() > skipsAtWindowStart;
+                int target = tier;
+                if (congested) {
+                    goodWindows = 0;
+                    target = Math.min(tiers.size() - 1, tier + 1);
+                } else if (++goodWindows >= UP_WINDOWS) {
+                    goodWindows = 0;
+                    target = Math.max(0, tier - 1);
+                }
+                if (target != tier) {
+                    System.out.println("[Simulcast] " + socket.getRemoteSocketAddress() + " tier " + tier + " -> " + target
+                            + String.format(" (max write %.1fms)", maxWriteNanos / 1e6));
+                    cursor.close();
+                    tier = target;
+                    cursor = tiers.get(tier).open(name);
+                }
+                windowStart = now;
+                maxWriteNanos = 0;
+                skipsAtWindowStart = cursor.gopSkips();
+            }
+        } catch (Exception e) {
+            // viewer ngắt kết nối
+        } finally {
+            cursor.close();
+            metrics.sessionClosed();
+            try { socket.close(); } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package buoi7_25_9.common;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU các tile client đã hiển thị, khoá theo hash nội dung (TileHashes), dùng ở cả 2 đầu của v3 / patch2:
+ * - client: hash -> tile đã giải mã; server: cùng lớp (value Boolean) làm bản sao cache của từng client
+ * - 2 đầu áp dụng đúng cùng chuỗi thao tác (put / touch theo thứ tự record trên dây) với cùng capacity
+ *   -> nội dung 2 bên luôn giống nhau, server biết client còn giữ tile nào mà client không phải báo lại
+ * - Tile đổi mà hash đã có trong cache -> server gửi record "dùng tile hash X tại (tx, ty)" (len = CACHED + 8 byte hash)
+ *   thay cho byte JPEG: alt-tab qua lại / cuộn ngược chỉ tốn vài byte / tile, không encode lại
+ * Bắt tay: client gửi writeUTF("CACHE:<capacity>") (-Dscreen.tileCache=N, mặc định 0 = tắt, client cũ không gửi);
+ * server đọc không chặn giữa các frame (ClientHello), bật từ KEY kế tiếp: KEY đó mang capacity đã chọn (<= MAX_CAPACITY) + hash lưới tile.
+ * Chỉ có ở chế độ encode riêng từng viewer: packet dùng chung (shared / simulcast / ghi phiên) không có cache của 1 client.
+ */
+public final class TileCache<V> {
+    public static final String HELLO = "CACHE:";
+    public static final int MAX_CAPACITY = 4096;
+    public static final long NO_HASH = 0; // tile không có hash (ABR hạ scale): không cache
+    public static final int CACHED = -1;  // len của record "dùng tile trong cache"
+
+    private final int capacity;
+    private final LinkedHashMap<Long, V> map;
+
+    public TileCache(int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<>(Math.min(capacity, 1024) * 2, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+                return size() > TileCache.this.capacity;
+            }
+        };
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Có hash không (không tính là truy cập, thứ tự LRU giữ nguyên). */
+    public boolean contains(long hash) {
+        return map.containsKey(hash);
+    }
+
+    /** Lấy + đánh dấu vừa dùng; null nếu không có. */
+    public V touch(long hash) {
+        return map.get(hash);
+    }
+
+    public void put(long hash, V value) {
+        map.put(hash, value);
+    }
+
+    /** Capacity client xin (-Dscreen.tileCache), 0 = không dùng cache. */
+    public static int requested() {
+        return Math.max(0, Math.min(MAX_CAPACITY, Integer.getInteger("screen.tileCache", 0)));
+    }
+
+    /** Client: cắt KEY vừa vẽ thành tile (bản copy, canvas còn bị vẽ đè) và cache theo hash lưới (index = ty * nx + tx). */
+    public static void putKeyTiles(TileCache<BufferedImage> cache, BufferedImage canvas, int tw, int th, long[] hashes) {
+        int W = canvas.getWidth(), H = canvas.getHeight(), nx = (W + tw - 1) / tw;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] == NO_HASH) continue;
+            int x = (i % nx) * tw, y = (i / nx) * th;
+            if (x >= W || y >= H) break;
+            BufferedImage tile = new BufferedImage(Math.min(tw, W - x), Math.min(th, H - y), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tile.createGraphics();
+            g.drawImage(canvas, -x, -y, null);
+            g.dispose();
+            cache.put(hashes[i], tile);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package buoi7_25_9.common;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Hash 64-bit của từng tile, tính 1 lần / frame ở producer và publish kèm frame:
+ * - Sender giữ hash các tile đã gửi, tile đổi = hash khác -> so nx*ny số long thay vì diff cả frame pixel theo pixel
+ *   với reference riêng của từng viewer (chi phí diff theo viewer gần như bằng 0)
+ * - So exact theo nội dung nguồn (không có ngưỡng MAD): thay đổi nhỏ như con trỏ nhập chữ cũng được gửi
+ * - Hash không phụ thuộc chỗ đặt tile trong frame: 2 tile giống nhau có cùng hash (dùng được làm khoá cache)
+ * Quét theo dòng (mỗi dòng cộng dồn vào hash của các tile nó đi qua), các hàng tile chạy song song qua ParallelTiles.
+ * -Dscreen.diff=hash (mặc định) | pixel (diff pixel + ngưỡng MAD của từng viewer như trước, producer không tính hash).
+ */
+public final class TileHashes {
+    public static final boolean ENABLED = !"pixel".equalsIgnoreCase(System.getProperty("screen.diff", "hash"));
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    public final int width, height;
+    public final int tileW, tileH;
+    public final int nx, ny;
+    private final long[] hash; // index = ty * nx + tx, không đổi sau khi tạo
+
+    private TileHashes(int width, int height, int tileW, int tileH) {
+        this.width = width;
+        this.height = height;
+        this.tileW = tileW;
+        this.tileH = tileH;
+        this.nx = (width + tileW - 1) / tileW;
+        this.ny = (height + tileH - 1) / tileH;
+        this.hash = new long[nx * ny];
+    }
+
+    public static TileHashes of(BufferedImage img, int tileW, int tileH) {
+        RasterDiff.Plane p = RasterDiff.plane(img);
+        TileHashes t = new TileHashes(p.width, p.height, tileW, tileH);
+        try {
+            ParallelTiles.forEach(t.ny, ty -> t.hashRow(p, ty));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // hashRow không làm IO
+        }
+        return t;
+    }
+
+    private void hashRow(RasterDiff.Plane p, int ty) {
+        int y0 = ty * tileH, y1 = Math.min(height, y0 + tileH), base = ty * nx;
+        long[] h = new long[nx];
+        for (int y = y0; y < y1; y++) {
+            int row = p.offset + y * p.stride;
+            for (int tx = 0; tx < nx; tx++) {
+                int x0 = tx * tileW, x1 = Math.min(width, x0 + tileW);
+                long acc = h[tx];
+                for (int x = x0; x < x1; x++) acc = (acc ^ (p.px[row + x] & 0xFFFFFFL)) * PRIME;
+                h[tx] = Long.rotateLeft(acc, 29); // dòng mới trộn khác cùng dữ liệu dịch ngang
+            }
+        }
+        for (int tx = 0; tx < nx; tx++) {
+            int w = Math.min(width, (tx + 1) * tileW) - tx * tileW;
+            long v = mix(h[tx] ^ ((long) w << 32 | (y1 - y0))); // kích thước tile là 1 phần của nội dung
+            hash[base + tx] = v != TileCache.NO_HASH ? v : 1;
+        }
+    }
+
+    // fmix64 của MurmurHash3
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public long hash(int index) {
+        return hash[index];
+    }
+
+    public int tiles() {
+        return hash.length;
+    }
+
+    /** Bản sao hash để sender giữ làm "đã gửi". */
+    public long[] copy() {
+        return hash.clone();
+    }
+
+    /** Cờ đổi từng tile so với hash đã gửi; sent null hoặc khác lưới -> mọi tile đều đổi. */
+    public boolean[] dirty(long[] sent) {
+        boolean[] d = new boolean[hash.length];
+        for (int i = 0; i < hash.length; i++) d[i] = sent == null || sent.length != hash.length || sent[i] != hash[i];
+        return d;
+    }
+}
@@ -0,0 +1,89 @@
+package buoi7_25_9.common;
+
+import java.lang.reflect.Method;
+
+/**
+ * Thread cho mỗi viewer của các server thread-per-viewer (v2, patch2, v3), chọn qua -Dscreen.threads:
+ * - platform (mặc định): new Thread như trước, stack mặc định (~1MB/viewer, giới hạn vài trăm viewer)
+ * - virtual: virtual thread (JDK 21+). Project build --release 17 nên gọi Thread.ofVirtual() qua reflection;
+ *   chạy trên JDK cũ hơn thì báo 1 lần rồi dùng "small"
+ * - small: platform thread với stack nhỏ (-Dscreen.threads.stackKB, mặc định 256)
+ * Viewer chờ frame qua FrameHub / PacketStream (ReentrantLock + Condition, không synchronized) -> virtual thread
+ * chờ frame hay chờ socket đều nhả carrier thread, không bị ghim.
+ */
+public final class ViewerThreads {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+    public static final String SMALL = "small";
+
+    private static final long SMALL_STACK_BYTES = Integer.getInteger("screen.threads.stackKB", 256) * 1024L;
+
+    // Thread.ofVirtual / Thread.Builder.name / unstarted, tìm 1 lần trong virtualSupported()
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+
+    private static final String MODE = resolve(System.getProperty("screen.threads", PLATFORM));
+
+    private ViewerThreads() {
+    }
+
+    /** Chế độ thực sự dùng (virtual -> small nếu JVM không hỗ trợ). */
+    public static String mode() {
+        return MODE;
+    }
+
+    /** Tạo và start thread chạy r theo chế độ hiện tại. */
+    public static Thread start(String name, Runnable r) {
+        Thread t = create(MODE, name, r);
+        t.start();
+        return t;
+    }
+
+    /** Như start() nhưng chưa start, mode chỉ định (dùng cho benchmark so sánh các chế độ). */
+    public static Thread create(String mode, String name, Runnable r) {
+        switch (mode) {
+            case VIRTUAL:
+                if (virtualSupported()) {
+                    try {
+                        Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                        return (Thread) builderUnstarted.invoke(builder, r);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("Cannot create virtual thread", e);
+                    }
+                }
+                return create(SMALL, name, r);
+            case SMALL:
+                return new Thread(null, r, name, SMALL_STACK_BYTES);
+            case PLATFORM:
+                return new Thread(r, name);
+            default:
+                throw new IllegalArgumentException("Unknown thread mode: " + mode);
+        }
+    }
+
+    /** JVM đang chạy có virtual thread không (JDK 21+). */
+    public static synchronized boolean virtualSupported() {
+        if (ofVirtual != null) return true;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static String resolve(String mode) {
+        mode = mode.toLowerCase();
+        if (VIRTUAL.equals(mode) && !virtualSupported()) {
+            System.err.println("[Threads] Virtual threads need JDK 21+ (running " + Runtime.version().feature()
+                    + "), using " + SMALL + " platform threads");
+            return SMALL;
+        }
+        create(mode, "check", () -> { }); // báo lỗi sớm nếu tên chế độ sai
+        return mode;
+    }
+}
@@ -0,0 +1,55 @@
+package buoi7_25_9.common.codec;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Danh sách codec + chọn theo id (trên dây) hoặc tên (-Dscreen.codec=jpeg|png|rle|palette).
+ * decode(): nhận diện codec theo magic bytes, để client cũ (chỉ có [len][payload]) vẫn giải được mọi codec.
+ */
+public final class Codecs {
+    public static final int JPEG_ID = 0;
+    public static final int PNG_ID = 1;
+    public static final int RLE_ID = 2;
+    public static final int PALETTE_ID = 3;
+    static final int MAX_ID = 15;
+
+    public static final FrameCodec JPEG = new ImageIOCodec(JPEG_ID, "jpeg", true);
+    public static final FrameCodec PNG = new ImageIOCodec(PNG_ID, "png", false);
+    public static final FrameCodec RLE = new RleCodec();
+    public static final FrameCodec PALETTE = new PaletteCodec();
+
+    private static final FrameCodec[] BY_ID = {JPEG, PNG, RLE, PALETTE};
+
+    private Codecs() {
+    }
+
+    public static FrameCodec byId(int id) {
+        if (id < 0 || id >= BY_ID.length) throw new IllegalArgumentException("Unknown codec id " + id);
+        return BY_ID[id];
+    }
+
+    public static FrameCodec byName(String name) {
+        for (FrameCodec c : BY_ID) {
+            if (c.name().equalsIgnoreCase(name) || ("jpg".equalsIgnoreCase(name) && c == JPEG)) return c;
+        }
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+    /** Codec cấu hình qua system property (mặc định JPEG). */
+    public static FrameCodec fromSystemProperty() {
+        return byName(System.getProperty("screen.codec", "jpeg"));
+    }
+
+    /** Nhận diện theo magic: RLE1 -> RLE, PAL1 -> PALETTE, còn lại để ImageIO tự nhận (JPEG FF D8, PNG 89 50 4E 47). */
+    public static FrameCodec sniff(byte[] b, int off, int len) {
+        if (len >= 4 && RleCodec.readInt(b, off) == RleCodec.MAGIC) return RLE;
+        if (len >= 4 && RleCodec.readInt(b, off) == PaletteCodec.MAGIC) return PALETTE;
+        if (len >= 4 && (b[off] & 0xFF) == 0x89 && b[off + 1] == 'P') return PNG;
+        return JPEG;
+    }
+
+    public static BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        return sniff(b, off, len).decode(b, off, len);
+    }
+}
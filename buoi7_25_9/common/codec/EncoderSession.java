@@ -0,0 +1,61 @@
+package buoi7_25_9.common.codec;
+
+import buoi7_25_9.common.ByteSink;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Trạng thái encode của 1 thread, dùng lại giữa các frame/tile:
+ * - 1 encoder / codec (ImageWriter + ImageWriteParam + ImageOutputStream giữ nguyên, không lookup lại)
+ * - 1 buffer staging có thể grow, reset() mỗi lần encode
+ * Lấy qua current() (ThreadLocal) -> sender thread, ForkJoin worker... mỗi thread 1 session.
+ */
+public final class EncoderSession {
+    private static final ThreadLocal<EncoderSession> CURRENT = ThreadLocal.withInitial(EncoderSession::new);
+
+    private final FrameCodec.Encoder[] encoders = new FrameCodec.Encoder[Codecs.MAX_ID + 1];
+    private final ByteSink staging = new ByteSink(64 * 1024);
+
+    private EncoderSession() {
+    }
+
+    public static EncoderSession current() {
+        return CURRENT.get();
+    }
+
+    /** Mã hoá vào buffer staging của session; kết quả hợp lệ tới lần encode kế tiếp trên thread này. */
+    public ByteSink encode(FrameCodec codec, BufferedImage img, float quality) throws IOException {
+        staging.reset();
+        encoder(codec).encode(img, quality, staging);
+        return staging;
+    }
+
+    /** Mã hoá rồi copy ra mảng đúng kích thước (cho dữ liệu cần giữ lại lâu, vd tile packet). */
+    public byte[] encodeToArray(FrameCodec codec, BufferedImage img, float quality) throws IOException {
+        ByteSink s = encode(codec, img, quality);
+        return Arrays.copyOf(s.array(), s.size());
+    }
+
+    /** Mã hoá ghi nối thẳng vào out (không qua staging). */
+    public void encodeTo(FrameCodec codec, BufferedImage img, float quality, ByteSink out) throws IOException {
+        encoder(codec).encode(img, quality, out);
+    }
+
+    /** PALETTE từ pixel + bảng màu TileClassifier vừa xây cho tile w x h (không đọc lại tile, không build bảng lần 2). */
+    byte[] encodePaletteToArray(int[] px, int w, int h, PaletteCodec.ColorTable colors) {
+        staging.reset();
+        ((PaletteCodec.PaletteEncoder) encoder(Codecs.PALETTE)).encode(px, w, h, colors, staging);
+        return Arrays.copyOf(staging.array(), staging.size());
+    }
+
+    private FrameCodec.Encoder encoder(FrameCodec codec) {
+        FrameCodec.Encoder e = encoders[codec.id()];
+        if (e == null) {
+            e = codec.newEncoder();
+            encoders[codec.id()] = e;
+        }
+        return e;
+    }
+}
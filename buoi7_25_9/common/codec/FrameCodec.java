@@ -0,0 +1,28 @@
+package buoi7_25_9.common.codec;
+
+import buoi7_25_9.common.ByteSink;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Codec ảnh cắm được (JPEG, PNG, RLE...):
+ * - id(): mã codec trên dây (1 byte)
+ * - newEncoder(): encoder có trạng thái (writer, param, buffer) -> mỗi thread giữ 1 cái qua EncoderSession
+ * - decode(): không trạng thái, gọi từ thread nào cũng được
+ */
+public interface FrameCodec {
+
+    int id();
+
+    String name();
+
+    Encoder newEncoder();
+
+    BufferedImage decode(byte[] b, int off, int len) throws IOException;
+
+    /** Encoder của 1 thread; encode() GHI NỐI vào out (không reset). */
+    interface Encoder {
+        void encode(BufferedImage img, float quality, ByteSink out) throws IOException;
+    }
+}
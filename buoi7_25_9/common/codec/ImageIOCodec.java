@@ -0,0 +1,91 @@
+package buoi7_25_9.common.codec;
+
+import buoi7_25_9.common.ByteSink;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Codec dựa trên ImageIO (JPEG, PNG). Encoder giữ nguyên ImageWriter, ImageWriteParam và
+ * 1 ImageOutputStream ghi qua stream trung gian đổi được đích -> không tạo lại gì mỗi frame/tile.
+ */
+final class ImageIOCodec implements FrameCodec {
+    private final int id;
+    private final String format;
+    private final boolean lossy;
+
+    ImageIOCodec(int id, String format, boolean lossy) {
+        this.id = id;
+        this.format = format;
+        this.lossy = lossy;
+    }
+
+    @Override public int id() {
+        return id;
+    }
+
+    @Override public String name() {
+        return format;
+    }
+
+    @Override public Encoder newEncoder() {
+        return new WriterEncoder();
+    }
+
+    @Override public BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(b, off, len));
+    }
+
+    private final class WriterEncoder implements Encoder {
+        private final ImageWriter writer;
+        private final ImageWriteParam param;
+        private final RetargetStream target = new RetargetStream();
+        private final ImageOutputStream ios = new MemoryCacheImageOutputStream(target);
+        private float lastQuality = -1f;
+
+        WriterEncoder() {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+            if (!it.hasNext()) throw new IllegalStateException("No " + format + " writer");
+            writer = it.next();
+            param = writer.getDefaultWriteParam();
+        }
+
+        @Override public void encode(BufferedImage img, float quality, ByteSink out) throws IOException {
+            if (lossy && param.canWriteCompressed() && quality != lastQuality) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(Math.max(0f, Math.min(1f, quality)));
+                lastQuality = quality;
+            }
+            target.out = out;
+            try {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(img, null, null), param);
+                ios.flush(); // đẩy hết cache xuống out, bỏ phần đã ghi khỏi cache
+            } finally {
+                target.out = null;
+            }
+        }
+    }
+
+    // OutputStream chuyển tiếp tới sink hiện tại (đổi được giữa các lần encode)
+    private static final class RetargetStream extends OutputStream {
+        ByteSink out;
+
+        @Override public void write(int b) {
+            out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package buoi7_25_9.common.codec;
+
+import buoi7_25_9.common.ByteSink;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec lossless cho tile chữ / giao diện: [int MAGIC][short W][short H][byte mode] rồi
+ * - MODE_PALETTE (<= 256 màu): [byte n-1][n x RGB] rồi các run { [varint len-1][byte index] } theo thứ tự quét dòng
+ * - MODE_PALETTE_DEFLATE: như trên nhưng phần run nén Deflate (glyph chữ lặp lại -> LZ77 bắt được), chỉ dùng khi nhỏ hơn
+ * - MODE_DEFLATE (nhiều màu hơn, vd chữ khử răng cưa trên nền gradient): RGB trừ pixel bên trái rồi nén Deflate
+ * Khác RleCodec: run dài tuỳ ý, 2 byte / run thay vì 4, không phình ra khi ít màu nhưng ít run dài.
+ */
+final class PaletteCodec implements FrameCodec {
+    static final int MAGIC = 0x50414C31; // "PAL1"
+    static final int MAX_COLORS = 256;
+    static final int MODE_PALETTE = 0;
+    static final int MODE_DEFLATE = 1;
+    static final int MODE_PALETTE_DEFLATE = 2;
+    private static final int DEFLATE_MIN = 256; // phần run ngắn hơn: nén không bõ
+
+    @Override public int id() {
+        return Codecs.PALETTE_ID;
+    }
+
+    @Override public String name() {
+        return "palette";
+    }
+
+    @Override public PaletteEncoder newEncoder() {
+        return new PaletteEncoder();
+    }
+
+    /** Encoder của 1 thread; encode(px, ...) nhận pixel + bảng màu đã có sẵn (TileClassifier), không quét ảnh lần 2. */
+    static final class PaletteEncoder implements Encoder {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final ColorTable colors = new ColorTable();
+        private final byte[] chunk = new byte[16 * 1024];
+        private final ByteSink runs = new ByteSink(16 * 1024);
+        private final ByteSink packed = new ByteSink(16 * 1024);
+        private int[] px = new int[0];
+        private byte[] rgb = new byte[0];
+
+        @Override public void encode(BufferedImage img, float quality, ByteSink out) {
+            int w = img.getWidth(), h = img.getHeight(), n = w * h;
+            if (px.length < n) px = new int[n];
+            pixels(img, px);
+            encode(px, w, h, colors.build(px, n, MAX_COLORS) ? colors : null, out);
+        }
+
+        /** px[0, w*h) đã đọc sẵn; colors = bảng màu đã build() cho đúng px, null nếu quá MAX_COLORS màu. */
+        void encode(int[] px, int w, int h, ColorTable colors, ByteSink out) {
+            int n = w * h;
+            out.writeInt(MAGIC);
+            out.writeShort(w);
+            out.writeShort(h);
+            if (colors != null) {
+                runs.reset();
+                int runColor = px[0] & 0xFFFFFF, runLen = 0;
+                for (int i = 0; i < n; i++) {
+                    int c = px[i] & 0xFFFFFF;
+                    if (c != runColor) {
+                        writeRun(runs, runLen, colors.indexOf(runColor));
+                        runColor = c;
+                        runLen = 0;
+                    }
+                    runLen++;
+                }
+                writeRun(runs, runLen, colors.indexOf(runColor));
+                packed.reset();
+                if (runs.size() >= DEFLATE_MIN) deflate(runs.array(), runs.size(), packed);
+                boolean pack = packed.size() > 0 && packed.size() < runs.size();
+                out.write(pack ? MODE_PALETTE_DEFLATE : MODE_PALETTE);
+                out.write(colors.size() - 1);
+                for (int i = 0; i < colors.size(); i++) writeRgb(out, colors.color(i));
+                ByteSink body = pack ? packed : runs;
+                out.write(body.array(), 0, body.size());
+            } else {
+                out.write(MODE_DEFLATE);
+                if (rgb.length < n * 3) rgb = new byte[n * 3];
+                int w3 = w * 3;
+                for (int i = 0, p = 0; i < n; i++, p += 3) {
+                    int c = px[i];
+                    rgb[p] = (byte) (c >>> 16);
+                    rgb[p + 1] = (byte) (c >>> 8);
+                    rgb[p + 2] = (byte) c;
+                }
+                // lọc "sub" như PNG: trừ pixel bên trái (đi từ phải sang để còn giá trị gốc)
+                for (int row = 0; row < n * 3; row += w3) {
+                    for (int p = row + w3 - 1; p >= row + 3; p--) rgb[p] -= rgb[p - 3];
+                }
+                deflate(rgb, n * 3, out);
+            }
+        }
+
+        private void deflate(byte[] src, int len, ByteSink dst) {
+            deflater.reset();
+            deflater.setInput(src, 0, len);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int k = deflater.deflate(chunk);
+                dst.write(chunk, 0, k);
+            }
+        }
+    }
+
+    private static void writeRun(ByteSink out, int len, int index) {
+        int v = len - 1;
+        while (v >= 0x80) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+        out.write(index);
+    }
+
+    private static void writeRgb(ByteSink out, int rgb) {
+        out.write(rgb >>> 16);
+        out.write(rgb >>> 8);
+        out.write(rgb);
+    }
+
+    /** Pixel RGB của img vào px[0, w*h) (TYPE_INT_RGB: đọc thẳng raster, không qua ColorModel). */
+    static void pixels(BufferedImage img, int[] px) {
+        int w = img.getWidth(), h = img.getHeight();
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) img.getRaster().getDataElements(0, 0, w, h, px);
+        else img.getRGB(0, 0, w, h, px, 0, w);
+    }
+
+    @Override public BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        if (len < 9 || RleCodec.readInt(b, off) != MAGIC) throw new IOException("Not a palette image");
+        int w = ((b[off + 4] & 0xFF) << 8) | (b[off + 5] & 0xFF);
+        int h = ((b[off + 6] & 0xFF) << 8) | (b[off + 7] & 0xFF);
+        int mode = b[off + 8];
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int p = off + 9, end = off + len, total = w * h;
+        if (mode == MODE_PALETTE || mode == MODE_PALETTE_DEFLATE) {
+            if (p >= end) throw new IOException("Truncated palette image");
+            int n = (b[p++] & 0xFF) + 1;
+            if (p + n * 3 > end) throw new IOException("Truncated palette");
+            int[] palette = new int[n];
+            for (int i = 0; i < n; i++, p += 3) {
+                palette[i] = ((b[p] & 0xFF) << 16) | ((b[p + 1] & 0xFF) << 8) | (b[p + 2] & 0xFF);
+            }
+            if (mode == MODE_PALETTE_DEFLATE) {
+                // mỗi run tốn <= 2 byte / pixel
+                ByteSink runs = new ByteSink(Math.min(total * 2 + 16, Math.max(256, (end - p) * 4)));
+                inflate(b, p, end - p, runs, total * 2 + 16);
+                b = runs.array();
+                p = 0;
+                end = runs.size();
+            }
+            int i = 0;
+            while (i < total && p < end) {
+                int run = 0, shift = 0, v;
+                do {
+                    v = b[p++] & 0xFF;
+                    run |= (v & 0x7F) << shift;
+                    shift += 7;
+                } while ((v & 0x80) != 0 && p < end && shift < 32);
+                if (p >= end) throw new IOException("Truncated palette run");
+                int index = b[p++] & 0xFF;
+                if (index >= n) throw new IOException("Palette index out of range: " + index);
+                int stop = i + run + 1;
+                if (stop > total) throw new IOException("Palette run past end of image");
+                java.util.Arrays.fill(px, i, stop, palette[index]);
+                i = stop;
+            }
+            if (i != total) throw new IOException("Truncated palette image");
+        } else if (mode == MODE_DEFLATE) {
+            ByteSink out = new ByteSink(total * 3);
+            inflate(b, p, end - p, out, total * 3);
+            if (out.size() != total * 3) throw new IOException("Truncated deflate image");
+            byte[] rgb = out.array();
+            for (int row = 0, w3 = w * 3; row < total * 3; row += w3) {
+                for (int q = row + 3; q < row + w3; q++) rgb[q] += rgb[q - 3];
+            }
+            for (int i = 0, q = 0; i < total; i++, q += 3) {
+                px[i] = ((rgb[q] & 0xFF) << 16) | ((rgb[q + 1] & 0xFF) << 8) | (rgb[q + 2] & 0xFF);
+            }
+        } else {
+            throw new IOException("Unknown palette mode " + mode);
+        }
+        return img;
+    }
+
+    // Giải nén b[off, off+len) vào out, tối đa limit byte (chặn dữ liệu hỏng / cố ý phình to)
+    private static void inflate(byte[] b, int off, int len, ByteSink out, int limit) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] chunk = new byte[16 * 1024];
+        try {
+            inflater.setInput(b, off, len);
+            while (!inflater.finished()) {
+                int k = inflater.inflate(chunk);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                if (out.size() + k > limit) throw new IOException("Deflate data larger than image");
+                out.write(chunk, 0, k);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Bảng băm mở màu -> index, tối đa limit màu (dùng lại giữa các tile, không cấp phát).
+     * TileClassifier xây 1 lần khi phân loại, encoder PALETTE dùng lại bảng đó (TileClassifier.Choice.encode).
+     */
+    static final class ColorTable {
+        private static final int SLOTS = 1024; // > 2 x MAX_COLORS, luỹ thừa 2
+        private final int[] keys = new int[SLOTS];
+        private final int[] values = new int[SLOTS];
+        private final int[] order = new int[MAX_COLORS + 1];
+        private int size;
+
+        /** Xây bảng màu cho px[0, n); false nếu vượt quá limit màu (bảng khi đó không dùng được). */
+        boolean build(int[] px, int n, int limit) {
+            java.util.Arrays.fill(values, -1);
+            size = 0;
+            int last = -1;
+            for (int i = 0; i < n; i++) {
+                int c = px[i] & 0xFFFFFF;
+                if (c == last) continue;
+                last = c;
+                if (slot(c) < 0) {
+                    if (size == limit) return false;
+                    int s = ~slot(c);
+                    keys[s] = c;
+                    values[s] = size;
+                    order[size++] = c;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int color(int index) {
+            return order[index];
+        }
+
+        int indexOf(int c) {
+            return values[slot(c)];
+        }
+
+        // >= 0: slot chứa c; < 0: ~slot trống đầu tiên trên đường dò
+        private int slot(int c) {
+            int s = (c * 0x9E3779B1) >>> 22; // 10 bit cao
+            while (values[s] >= 0) {
+                if (keys[s] == c) return s;
+                s = (s + 1) & (SLOTS - 1);
+            }
+            return ~s;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package buoi7_25_9.common.codec;
+
+import buoi7_25_9.common.ByteSink;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+
+/**
+ * Codec raw/RLE lossless cho ảnh RGB:
+ * [int MAGIC][short W][short H] rồi các run { [byte len-1][R][G][B] } theo thứ tự quét dòng.
+ * Rẻ CPU, chính xác từng pixel: hợp với tile UI/text nhiều vùng màu phẳng.
+ */
+final class RleCodec implements FrameCodec {
+    static final int MAGIC = 0x524C4531; // "RLE1"
+    private static final int MAX_RUN = 256;
+
+    @Override public int id() {
+        return Codecs.RLE_ID;
+    }
+
+    @Override public String name() {
+        return "rle";
+    }
+
+    @Override public Encoder newEncoder() {
+        return new Encoder() {
+            private int[] row = new int[0];
+
+            @Override public void encode(BufferedImage img, float quality, ByteSink out) {
+                int w = img.getWidth(), h = img.getHeight();
+                if (row.length < w) row = new int[w];
+                out.writeInt(MAGIC);
+                out.writeShort(w);
+                out.writeShort(h);
+                int runColor = 0, runLen = 0;
+                for (int y = 0; y < h; y++) {
+                    img.getRGB(0, y, w, 1, row, 0, w);
+                    for (int x = 0; x < w; x++) {
+                        int c = row[x] & 0xFFFFFF;
+                        if (runLen > 0 && (c != runColor || runLen == MAX_RUN)) {
+                            writeRun(out, runColor, runLen);
+                            runLen = 0;
+                        }
+                        runColor = c;
+                        runLen++;
+                    }
+                }
+                if (runLen > 0) writeRun(out, runColor, runLen);
+            }
+        };
+    }
+
+    private static void writeRun(ByteSink out, int rgb, int len) {
+        out.write(len - 1);
+        out.write(rgb >>> 16);
+        out.write(rgb >>> 8);
+        out.write(rgb);
+    }
+
+    @Override public BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        if (len < 8 || readInt(b, off) != MAGIC) throw new IOException("Not an RLE image");
+        int w = ((b[off + 4] & 0xFF) << 8) | (b[off + 5] & 0xFF);
+        int h = ((b[off + 6] & 0xFF) << 8) | (b[off + 7] & 0xFF);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int p = off + 8, end = off + len, i = 0, total = w * h;
+        while (p + 4 <= end && i < total) {
+            int run = (b[p] & 0xFF) + 1;
+            int rgb = ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+            p += 4;
+            int stop = Math.min(total, i + run);
+            while (i < stop) px[i++] = rgb;
+        }
+        if (i != total) throw new IOException("Truncated RLE image");
+        return img;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,77 @@
+package buoi7_25_9.common.codec;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Chọn codec cho từng tile theo nội dung (1 lượt qua pixel, không encode thử):
+ * - <= PaletteCodec.MAX_COLORS màu, hoặc phần lớn pixel trùng pixel bên trái (vùng phẳng, chữ, UI) -> PALETTE (lossless)
+ * - còn lại (ảnh, video: nhiều màu, ít vùng phẳng) -> JPEG
+ * -Dscreen.tileCodec=auto (mặc định) | jpeg (luôn JPEG như trước, để so sánh).
+ * Kết quả (Choice) giữ pixel + bảng màu vừa xây -> encode PALETTE không quét tile / build bảng màu lần 2.
+ */
+public final class TileClassifier {
+    private static final boolean AUTO = "auto".equalsIgnoreCase(System.getProperty("screen.tileCodec", "auto"));
+    private static final double FLAT_RATIO = 0.6;
+
+    private static final ThreadLocal<Choice> SCRATCH = ThreadLocal.withInitial(Choice::new);
+
+    private TileClassifier() {
+    }
+
+    /**
+     * Codec cho tile (JPEG hoặc PALETTE) + dữ liệu phân loại để encode.
+     * Choice là scratch của thread: chỉ hợp lệ tới lần choose() kế tiếp trên thread này (như staging của EncoderSession).
+     */
+    public static Choice choose(BufferedImage tile) {
+        Choice s = SCRATCH.get();
+        s.tile = tile;
+        s.paletted = false;
+        if (!AUTO) {
+            s.codec = Codecs.JPEG;
+            return s;
+        }
+        int n = tile.getWidth() * tile.getHeight();
+        if (s.px.length < n) s.px = new int[n];
+        PaletteCodec.pixels(tile, s.px);
+        s.paletted = s.colors.build(s.px, n, PaletteCodec.MAX_COLORS);
+        if (s.paletted) {
+            s.codec = Codecs.PALETTE;
+            return s;
+        }
+        int same = 0;
+        for (int i = 1; i < n; i++) {
+            if (((s.px[i] ^ s.px[i - 1]) & 0xFFFFFF) == 0) same++;
+        }
+        s.codec = same >= n * FLAT_RATIO ? Codecs.PALETTE : Codecs.JPEG;
+        return s;
+    }
+
+    /** true nếu codec giữ nguyên từng pixel (reference cập nhật thẳng từ tile nguồn, không cần decode lại). */
+    public static boolean lossless(FrameCodec codec) {
+        return codec != Codecs.JPEG;
+    }
+
+    /** Kết quả choose(): codec đã chọn; PALETTE giữ luôn pixel + bảng màu (null nếu quá MAX_COLORS màu -> MODE_DEFLATE). */
+    public static final class Choice {
+        private FrameCodec codec;
+        private BufferedImage tile;
+        private boolean paletted; // colors đã build() xong cho đúng px của tile
+        private int[] px = new int[0];
+        private final PaletteCodec.ColorTable colors = new PaletteCodec.ColorTable();
+
+        private Choice() {
+        }
+
+        public FrameCodec codec() {
+            return codec;
+        }
+
+        /** Mã hoá tile bằng EncoderSession của thread hiện tại (cùng thread đã gọi choose). */
+        public byte[] encode(float quality) throws IOException {
+            EncoderSession session = EncoderSession.current();
+            if (codec != Codecs.PALETTE) return session.encodeToArray(codec, tile, quality);
+            return session.encodePaletteToArray(px, tile.getWidth(), tile.getHeight(), paletted ? colors : null);
+        }
+    }
+}
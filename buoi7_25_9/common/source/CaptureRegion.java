@@ -0,0 +1,70 @@
+package buoi7_25_9.common.source;
+
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1 luồng chụp có tên: id + vùng chụp trên màn hình. Server mở 1 FrameSource cho mỗi vùng:
+ * Robot chỉ chụp đúng hình chữ nhật đó (chi phí chụp / encode tỉ lệ với số pixel của vùng).
+ * Cấu hình: -Dscreen.streams=<id>=<spec>;<id>=<spec>...   (luồng đầu tiên là mặc định)
+ *   spec: full (toàn màn hình chính) | x,y,WxH | screen:N (màn hình thứ N khi có nhiều màn hình)
+ *   vd:   -Dscreen.streams=main=full;code=0,0,960x1080;mon2=screen:1
+ * Không đặt: 1 luồng "main" = full (như trước).
+ */
+public final class CaptureRegion {
+    public static final String DEFAULT_ID = "main";
+
+    public final String id;
+    public final Rectangle area; // null = full
+
+    public CaptureRegion(String id, Rectangle area) {
+        if (id.isEmpty()) throw new IllegalArgumentException("Stream id must not be empty");
+        this.id = id;
+        this.area = area;
+    }
+
+    public static List<CaptureRegion> fromSystemProperty() {
+        String spec = System.getProperty("screen.streams", "");
+        List<CaptureRegion> res = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            if (part.isBlank()) continue;
+            int eq = part.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("screen.streams entry must be id=spec: " + part);
+            res.add(new CaptureRegion(part.substring(0, eq).trim(), area(part.substring(eq + 1).trim())));
+        }
+        if (res.isEmpty()) res.add(new CaptureRegion(DEFAULT_ID, null));
+        return res;
+    }
+
+    static Rectangle area(String spec) {
+        if ("full".equalsIgnoreCase(spec)) return null;
+        if (spec.startsWith("screen:")) {
+            GraphicsDevice[] screens = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+            int n = Integer.parseInt(spec.substring(7));
+            if (n < 0 || n >= screens.length) {
+                throw new IllegalArgumentException("No screen " + n + " (" + screens.length + " screens)");
+            }
+            return screens[n].getDefaultConfiguration().getBounds();
+        }
+        String[] p = spec.split(",");
+        int x = p.length == 3 ? p[2].indexOf('x') : -1;
+        if (x <= 0) throw new IllegalArgumentException("Region must be full, screen:N or x,y,WxH: " + spec);
+        Rectangle r = new Rectangle(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()),
+                Integer.parseInt(p[2].substring(0, x).trim()), Integer.parseInt(p[2].substring(x + 1).trim()));
+        if (r.width <= 0 || r.height <= 0) throw new IllegalArgumentException("Empty region: " + spec);
+        return r;
+    }
+
+    /** Nguồn frame của vùng này (loại nguồn theo -Dscreen.source như FrameSources.fromSystemProperty). */
+    public FrameSource open() throws AWTException {
+        return FrameSources.fromSystemProperty(area);
+    }
+
+    @Override public String toString() {
+        return area == null ? id + "=full" : id + "=" + area.x + "," + area.y + "," + area.width + "x" + area.height;
+    }
+}
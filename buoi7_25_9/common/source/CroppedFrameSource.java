@@ -0,0 +1,40 @@
+package buoi7_25_9.common.source;
+
+import buoi7_25_9.common.ImageOps;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/** Vùng con của nguồn giả lập (nguồn vẫn vẽ cả màn hình, chỉ để thử luồng theo vùng khi headless). */
+final class CroppedFrameSource implements FrameSource {
+    private final FrameSource full;
+    private final Rectangle area;
+
+    CroppedFrameSource(FrameSource full, Rectangle area) {
+        if (!new Rectangle(full.width(), full.height()).contains(area)) {
+            throw new IllegalArgumentException("Region " + area + " outside " + full.width() + "x" + full.height());
+        }
+        this.full = full;
+        this.area = area;
+    }
+
+    @Override
+    public String name() {
+        return full.name() + "@" + area.x + "," + area.y;
+    }
+
+    @Override
+    public int width() {
+        return area.width;
+    }
+
+    @Override
+    public int height() {
+        return area.height;
+    }
+
+    @Override
+    public BufferedImage capture() throws Exception {
+        return ImageOps.deepCopy(full.capture().getSubimage(area.x, area.y, area.width, area.height));
+    }
+}
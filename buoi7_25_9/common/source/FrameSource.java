@@ -0,0 +1,19 @@
+package buoi7_25_9.common.source;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Nguồn frame cho server (Robot chụp màn hình thật hoặc kịch bản giả lập chạy headless):
+ * - capture(): trả về 1 ảnh MỚI mỗi lần gọi (người nhận được giữ lại làm reference, nguồn không ghi đè)
+ * - Không tự giới hạn FPS: server vẫn tự pacing như trước
+ */
+public interface FrameSource {
+
+    String name();
+
+    int width();
+
+    int height();
+
+    BufferedImage capture() throws Exception;
+}
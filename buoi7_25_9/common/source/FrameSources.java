@@ -0,0 +1,47 @@
+package buoi7_25_9.common.source;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+
+/**
+ * Chọn nguồn frame theo tên: robot (mặc định) | scroll | typing | drag | video | alttab.
+ * Cấu hình qua system property:
+ *   -Dscreen.source=typing  -Dscreen.source.size=1920x1080  -Dscreen.source.seed=1
+ * Vùng chụp theo luồng: xem CaptureRegion (-Dscreen.streams).
+ */
+public final class FrameSources {
+
+    private FrameSources() {
+    }
+
+    public static FrameSource byName(String name, int width, int height, long seed) throws AWTException {
+        if ("robot".equalsIgnoreCase(name)) return new RobotFrameSource();
+        for (SyntheticFrameSource.Scenario s : SyntheticFrameSource.Scenario.values()) {
+            if (s.name().equalsIgnoreCase(name)) return new SyntheticFrameSource(s, width, height, seed);
+        }
+        throw new IllegalArgumentException("Unknown frame source " + name);
+    }
+
+    /** Nguồn cấu hình qua system property; kích thước chỉ áp dụng cho nguồn giả lập. */
+    public static FrameSource fromSystemProperty() throws AWTException {
+        return fromSystemProperty(null);
+    }
+
+    /** Như fromSystemProperty() nhưng chỉ vùng area (null = cả màn hình): Robot chụp đúng vùng, nguồn giả lập thì cắt. */
+    public static FrameSource fromSystemProperty(Rectangle area) throws AWTException {
+        if (area != null && "robot".equalsIgnoreCase(System.getProperty("screen.source", "robot"))) {
+            return new RobotFrameSource(area);
+        }
+        FrameSource full = fullFromSystemProperty();
+        return area == null ? full : new CroppedFrameSource(full, area);
+    }
+
+    private static FrameSource fullFromSystemProperty() throws AWTException {
+        String size = System.getProperty("screen.source.size", "1920x1080");
+        int x = size.indexOf('x');
+        if (x <= 0) throw new IllegalArgumentException("screen.source.size must be WxH: " + size);
+        return byName(System.getProperty("screen.source", "robot"),
+                Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)),
+                Long.getLong("screen.source.seed", 1L));
+    }
+}
@@ -0,0 +1,42 @@
+package buoi7_25_9.common.source;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+
+/** Chụp toàn màn hình (hoặc 1 vùng) bằng java.awt.Robot (cần màn hình thật, không chạy được headless). */
+final class RobotFrameSource implements FrameSource {
+    private final Robot robot;
+    private final Rectangle area;
+
+    RobotFrameSource() throws AWTException {
+        this(new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
+    }
+
+    RobotFrameSource(Rectangle area) throws AWTException {
+        this.robot = new Robot();
+        this.area = new Rectangle(area);
+    }
+
+    @Override
+    public String name() {
+        return "robot";
+    }
+
+    @Override
+    public int width() {
+        return area.width;
+    }
+
+    @Override
+    public int height() {
+        return area.height;
+    }
+
+    @Override
+    public BufferedImage capture() {
+        return robot.createScreenCapture(area);
+    }
+}
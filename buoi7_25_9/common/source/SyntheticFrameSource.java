@@ -0,0 +1,223 @@
+package buoi7_25_9.common.source;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+/**
+ * Màn hình giả lập, chạy được trên máy headless. Frame thứ i chỉ phụ thuộc (kịch bản, kích thước, seed, i)
+ * -> 2 lần chạy cùng tham số cho đúng cùng chuỗi frame (so sánh được giữa các phiên bản server).
+ * Nền desktop (gradient + taskbar + cửa sổ chữ) vẽ 1 lần, mỗi frame copy int[] rồi vẽ phần động:
+ * - SCROLL: cửa sổ chữ cuộn đều (mỗi frame nửa dòng) -> gần như toàn bộ cửa sổ đổi
+ * - TYPING: mỗi frame thêm 2 ký tự -> chỉ 1-2 tile đổi
+ * - DRAG: cửa sổ bị kéo theo đường cong qua desktop -> vùng đổi dịch chuyển
+ * - VIDEO: 1/4 màn hình là khối màu chuyển động + nhiễu -> khó nén, MAD lớn
+ * - ALTTAB: 3 cửa sổ chữ gần full màn hình, mỗi ALT_TAB_FRAMES frame chuyển sang cửa sổ kế tiếp (vòng lại)
+ *   -> gần như mọi tile đổi, nhưng sang nội dung client đã từng thấy
+ */
+final class SyntheticFrameSource implements FrameSource {
+
+    enum Scenario { SCROLL, TYPING, DRAG, VIDEO, ALTTAB }
+
+    private static final int CHARS_PER_FRAME = 2;
+    private static final int ALT_TAB_FRAMES = 20;
+
+    private final Scenario scenario;
+    private final int width, height;
+    private final long seed;
+    private final int fontPx, lineH;
+    private final Font font;
+    private final int[] desktop;          // nền đã vẽ sẵn (TYPE_INT_RGB)
+    private final BufferedImage document; // SCROLL: tài liệu cao gấp 3 cửa sổ
+    private final String text;            // TYPING: nội dung gõ lần lượt
+    private final BufferedImage[] windows; // ALTTAB: các cửa sổ vẽ sẵn
+    private long index = 0;
+
+    SyntheticFrameSource(Scenario scenario, int width, int height, long seed) {
+        this.scenario = scenario;
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.fontPx = Math.max(12, height / 60);
+        this.lineH = fontPx + 4;
+        this.font = new Font(Font.MONOSPACED, Font.PLAIN, fontPx);
+        Random rnd = new Random(seed);
+        this.desktop = pixels(renderDesktop(rnd));
+        this.document = scenario == Scenario.SCROLL ? renderDocument(rnd) : null;
+        this.text = scenario == Scenario.TYPING ? randomText(rnd, 8192) : null;
+        this.windows = scenario == Scenario.ALTTAB ? renderWindows(rnd, 3) : null;
+    }
+
+    @Override
+    public String name() {
+        return scenario.name().toLowerCase();
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public synchronized BufferedImage capture() {
+        long i = index++;
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(desktop, 0, pixels(img), 0, desktop.length);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(font);
+        switch (scenario) {
+            case SCROLL: drawScroll(g, i); break;
+            case TYPING: drawTyping(g, i); break;
+            case DRAG: drawDrag(g, i); break;
+            case VIDEO: drawVideo(img, i); break;
+            case ALTTAB: g.drawImage(windows[(int) (i / ALT_TAB_FRAMES % windows.length)], width / 40, height / 40, null); break;
+        }
+        g.dispose();
+        return img;
+    }
+
+    // ===== Kịch bản =====
+
+    private void drawScroll(Graphics2D g, long i) {
+        int x = width / 10, y = height / 10, ww = width * 4 / 5, wh = height * 4 / 5;
+        drawWindowFrame(g, x, y, ww, wh, "scroll");
+        int body = wh - lineH - 4;
+        int maxOff = document.getHeight() - body;
+        int off = (int) ((i * lineH / 2) % Math.max(1, maxOff));
+        g.drawImage(document, x, y + lineH + 4, x + ww, y + wh, 0, off, ww, off + body, null);
+    }
+
+    private void drawTyping(Graphics2D g, long i) {
+        int x = width / 6, y = height / 6, ww = width * 2 / 3, wh = height * 2 / 3;
+        drawWindowFrame(g, x, y, ww, wh, "editor");
+        int cols = Math.max(1, (ww - 12) / (fontPx * 3 / 5 + 1));
+        int rows = Math.max(1, (wh - lineH - 8) / lineH);
+        int pageChars = cols * rows;
+        int typed = (int) ((i * CHARS_PER_FRAME) % (pageChars + 1)); // đầy trang -> trang mới
+        int start = (int) (((i * CHARS_PER_FRAME) / (pageChars + 1)) * pageChars % text.length());
+        g.setColor(Color.BLACK);
+        for (int r = 0, done = 0; done < typed; r++, done += cols) {
+            int n = Math.min(cols, typed - done);
+            int s = (start + done) % (text.length() - cols);
+            g.drawString(text.substring(s, s + n), x + 6, y + lineH + 4 + (r + 1) * lineH);
+        }
+    }
+
+    private void drawDrag(Graphics2D g, long i) {
+        int ww = width / 3, wh = height / 3;
+        double t = i * 0.05;
+        int x = (int) ((width - ww) / 2.0 * (1 + Math.sin(t)));
+        int y = (int) ((height - wh) / 2.0 * (1 + Math.sin(t * 0.7 + 1)));
+        drawWindowFrame(g, x, y, ww, wh, "drag");
+        g.setColor(Color.DARK_GRAY);
+        for (int r = 0, ly = y + 2 * lineH + 4; ly < y + wh; r++, ly += lineH) {
+            g.drawString("window content line " + r, x + 6, ly);
+        }
+    }
+
+    private void drawVideo(BufferedImage img, long i) {
+        int vx = width / 4, vy = height / 4, vw = width / 2, vh = height / 2;
+        int[] px = pixels(img);
+        Random noise = new Random(seed * 31 + i);
+        int block = 16;
+        for (int by = 0; by < vh; by += block) {
+            for (int bx = 0; bx < vw; bx += block) {
+                // khối màu trôi chéo theo thời gian + nhiễu nhẹ từng pixel
+                int phase = (int) (i * 3) + bx / block * 7 + by / block * 5;
+                int base = ((phase * 5) & 255) << 16 | ((phase * 3 + 80) & 255) << 8 | ((200 - phase) & 255);
+                for (int y = by; y < Math.min(vh, by + block); y++) {
+                    int row = (vy + y) * width + vx;
+                    for (int x = bx; x < Math.min(vw, bx + block); x++) {
+                        px[row + x] = base ^ (noise.nextInt() & 0x0F0F0F);
+                    }
+                }
+            }
+        }
+    }
+
+    // ===== Vẽ sẵn =====
+
+    private BufferedImage renderDesktop(Random rnd) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 110), width, height, new Color(90, 30, 80)));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(35, 35, 40));
+        g.fillRect(0, height - height / 20, width, height / 20);
+        g.setFont(font);
+        // 1 cửa sổ nền cố định (không đổi giữa các frame)
+        int x = width / 2, y = height / 2, ww = width * 2 / 5, wh = height * 2 / 5;
+        drawWindowFrame(g, x, y, ww, wh, "background");
+        g.setColor(Color.DARK_GRAY);
+        for (int ly = y + 2 * lineH + 4; ly < y + wh; ly += lineH) {
+            g.drawString(randomText(rnd, ww / (fontPx / 2 + 1)), x + 6, ly);
+        }
+        g.dispose();
+        return img;
+    }
+
+    private BufferedImage renderDocument(Random rnd) {
+        int ww = width * 4 / 5, dh = height * 4 / 5 * 3;
+        BufferedImage doc = new BufferedImage(ww, dh, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = doc.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, ww, dh);
+        g.setFont(font);
+        g.setColor(Color.DARK_GRAY);
+        for (int ly = lineH; ly < dh; ly += lineH) {
+            g.drawString(randomText(rnd, ww / (fontPx / 2 + 1)), 6, ly);
+        }
+        g.dispose();
+        return doc;
+    }
+
+    private BufferedImage[] renderWindows(Random rnd, int n) {
+        int ww = width - width / 20, wh = height - height / 20 - height / 40;
+        BufferedImage[] res = new BufferedImage[n];
+        for (int k = 0; k < n; k++) {
+            res[k] = new BufferedImage(ww, wh, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = res[k].createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setFont(font);
+            drawWindowFrame(g, 0, 0, ww, wh, "app " + (k + 1));
+            g.setColor(Color.DARK_GRAY);
+            for (int ly = 2 * lineH + 4; ly < wh; ly += lineH) {
+                g.drawString(randomText(rnd, ww / (fontPx / 2 + 1)), 6, ly);
+            }
+            g.dispose();
+        }
+        return res;
+    }
+
+    private void drawWindowFrame(Graphics2D g, int x, int y, int ww, int wh, String title) {
+        g.setColor(new Color(245, 245, 245));
+        g.fillRect(x, y, ww, wh);
+        g.setColor(new Color(60, 120, 200));
+        g.fillRect(x, y, ww, lineH + 4);
+        g.setColor(Color.WHITE);
+        g.drawString(title, x + 6, y + lineH);
+    }
+
+    private static String randomText(Random rnd, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append(rnd.nextInt(6) == 0 ? ' ' : (char) ('a' + rnd.nextInt(26)));
+        return sb.toString();
+    }
+
+    private static int[] pixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,335 @@
+package buoi7_25_9.load;
+
+import buoi7_25_9.common.FrameHeader;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.MoveDetector;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.StripedJpegCodec;
+import buoi7_25_9.common.TileCache;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.multicast.McastPacket;
+import buoi7_25_9.multicast.MulticastReceiver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client tải headless: mở N kết nối tới server v1 / v2 / patch2 / v3, đọc đúng giao thức của từng bản
+ * (không cần màn hình), in mỗi giây FPS nhận / viewer và băng thông, cuối cùng in phân vị:
+ * - interval: khoảng cách giữa 2 frame liên tiếp của 1 viewer (giật = p99 lớn)
+ * - first:    từ lúc connect tới lúc nhận xong frame đầu
+ * - decode:   thời gian giải mã (chỉ khi -Dload.decode=true, tốn CPU phía máy đo)
+ * Với v1, viewer gửi Receipt received (và decoded) như client thật -> lệnh "stats" của server có số liệu;
+ * v3 cũng vậy (bật bằng Receipt.HELLO) -> histogram từng viewer trong JMX buoi7_25_9:type=Viewer,server=v3.
+ * mcast: mỗi viewer join group multicast của v1 (-Dscreen.multicast), host/port = địa chỉ group;
+ * in thêm số frame mất / NACK / KEY; băng thông ra của server xem ở dòng [Multicast] phía server.
+ *
+ * v3 nhiều luồng: -Dscreen.stream=<id> -> mọi viewer chọn luồng đó (không đặt: luồng mặc định của server).
+ * v3 / patch2: -Dscreen.tileCache=N -> viewer xin cache tile như client thật (chỉ đọc record, không giữ ảnh);
+ * viewer nhận record copy-rect như client thật (-Dscreen.copyRect=false để so với khi không có).
+ *
+ * Dùng: java buoi7_25_9.load.LoadGenerator <v1|v2|patch2|v3|mcast> [host] [port] [viewers] [seconds]
+ * Server chạy headless với nguồn giả lập, vd: -Djava.awt.headless=true -Dscreen.source=typing
+ */
+public final class LoadGenerator {
+    private static final int MAX_PAYLOAD = 50 * 1024 * 1024;
+
+    enum Protocol { V1, V2, PATCH2, V3, MCAST }
+
+    private final Protocol protocol;
+    private final String host;
+    private final int port;
+    private final boolean decode = Boolean.getBoolean("load.decode");
+    private final String stream = System.getProperty("screen.stream");
+    private final int tileCache = TileCache.requested();
+    private final boolean copyRect = MoveDetector.requested();
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final LatencyHistogram first = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final List<MulticastReceiver> receivers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    LoadGenerator(Protocol protocol, String host, int port) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Protocol protocol = Protocol.valueOf((args.length > 0 ? args[0] : "v1").toUpperCase());
+        InetSocketAddress def = protocol == Protocol.MCAST
+                ? McastPacket.group(McastPacket.DEFAULT_GROUP) : new InetSocketAddress("localhost", 2345);
+        String host = args.length > 1 ? args[1] : def.getHostString();
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : def.getPort();
+        int viewers = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+        new LoadGenerator(protocol, host, port).run(viewers, seconds);
+    }
+
+    void run(int viewers, int seconds) throws InterruptedException {
+        System.out.println("[Load] " + protocol + " " + host + ":" + port + " viewers=" + viewers + " for " + seconds + "s");
+        List<Thread> threads = new ArrayList<>(viewers);
+        for (int i = 0; i < viewers; i++) {
+            Thread t = new Thread(protocol == Protocol.MCAST ? this::mcastViewerLoop : this::viewerLoop, "viewer-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        long start = System.nanoTime();
+        long lastFrames = 0, lastBytes = 0;
+        for (int s = 1; s <= seconds; s++) {
+            Thread.sleep(1000);
+            long f = frames.sum(), b = bytes.sum();
+            int live = Math.max(1, connected.get());
+            System.out.printf("[Load] t=%ds viewers=%d/%d fps/viewer=%.1f MB/s=%.2f%n",
+                    s, connected.get(), viewers, (f - lastFrames) / (double) live, (b - lastBytes) / 1e6);
+            lastFrames = f;
+            lastBytes = b;
+        }
+        running = false;
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("[Load] ===== " + protocol + " summary =====");
+        System.out.printf("  frames=%d  fps/viewer=%.1f  MB/s=%.2f  failed=%d%n", frames.sum(),
+                frames.sum() / secs / Math.max(1, viewers), bytes.sum() / secs / 1e6, failed.get());
+        System.out.println("  interval | " + interval.summary()
+                + String.format(" p90=%.2fms p999=%.2fms", interval.percentileMs(90), interval.percentileMs(99.9)));
+        System.out.println("  first    | " + first.summary());
+        if (decode) System.out.println("  decode   | " + decodeTime.summary());
+        if (protocol == Protocol.MCAST) {
+            long lost = 0, nacks = 0, keys = 0, repairs = 0;
+            for (MulticastReceiver rx : receivers) {
+                lost += rx.framesLost();
+                nacks += rx.nacksSent();
+                keys += rx.keysSent();
+                repairs += rx.repairsReceived();
+            }
+            System.out.printf("  multicast | lost=%d nacks=%d keys=%d repairs=%d%n", lost, nacks, keys, repairs);
+        }
+    }
+
+    private void mcastViewerLoop() {
+        long t0 = System.nanoTime();
+        try (MulticastReceiver rx = new MulticastReceiver(McastPacket.group(host + ":" + port),
+                McastPacket.interfaceFromSystemProperty())) {
+            connected.incrementAndGet();
+            receivers.add(rx);
+            long last = 0;
+            while (running) {
+                byte[] buf = rx.next();
+                bytes.add(buf.length);
+                if (decode) decodeFrame(buf, buf.length, FrameHeader.read(buf, buf.length));
+                long now = System.nanoTime();
+                if (last == 0) first.recordNanos(now - t0);
+                else interval.recordNanos(now - last);
+                last = now;
+                frames.increment();
+            }
+        } catch (IOException e) {
+            if (running) {
+                failed.incrementAndGet();
+                System.err.println("[Load] " + Thread.currentThread().getName() + ": " + e.getMessage());
+            }
+        } finally {
+            connected.decrementAndGet();
+        }
+    }
+
+    private void viewerLoop() {
+        long t0 = System.nanoTime();
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(host, port), 5000);
+            s.setReceiveBufferSize(512 * 1024);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new CountingInputStream(s.getInputStream()), 64 * 1024));
+            connected.incrementAndGet();
+            if (protocol == Protocol.V3 && stream != null) {
+                new DataOutputStream(s.getOutputStream()).writeUTF("STREAM:" + stream);
+            }
+            if ((protocol == Protocol.V3 || protocol == Protocol.PATCH2) && tileCache > 0) {
+                new DataOutputStream(s.getOutputStream()).writeUTF(TileCache.HELLO + tileCache);
+            }
+            if ((protocol == Protocol.V3 || protocol == Protocol.PATCH2) && copyRect) {
+                new DataOutputStream(s.getOutputStream()).writeUTF(MoveDetector.HELLO);
+            }
+            if (protocol == Protocol.V3) {
+                new DataOutputStream(s.getOutputStream()).writeUTF(Receipt.HELLO); // lệnh cuối, sau đó chỉ còn Receipt
+            }
+            if (protocol == Protocol.V2 || protocol == Protocol.PATCH2) {
+                in.readInt(); // kích thước màn hình gốc
+                in.readInt();
+            }
+            OutputStream receipts = s.getOutputStream();
+            long last = 0;
+            while (running) {
+                readFrame(in, receipts);
+                long now = System.nanoTime();
+                if (last == 0) first.recordNanos(now - t0);
+                else interval.recordNanos(now - last);
+                last = now;
+                frames.increment();
+            }
+        } catch (IOException e) {
+            if (running) {
+                failed.incrementAndGet();
+                System.err.println("[Load] " + Thread.currentThread().getName() + ": " + e.getMessage());
+            }
+        } finally {
+            connected.decrementAndGet();
+        }
+    }
+
+    /** Đọc trọn 1 frame theo giao thức (KEY hoặc DELTA với mọi tile của nó). */
+    private void readFrame(DataInputStream in, OutputStream receipts) throws IOException {
+        switch (protocol) {
+            case V1: {
+                // [int len][FrameHeader][payload] -> gửi Receipt như client thật để server có số liệu độ trễ
+                int len = in.readInt();
+                if (len < FrameHeader.BYTES || len > MAX_PAYLOAD) throw new IOException("Invalid frame size: " + len);
+                byte[] buf = in.readNBytes(len);
+                FrameHeader hdr = FrameHeader.read(buf, len);
+                receipts.write(Receipt.encode(Receipt.RECEIVED, hdr.seq, hdr.captureNanos));
+                if (decode) {
+                    decodeFrame(buf, len, hdr);
+                    receipts.write(Receipt.encode(Receipt.DECODED, hdr.seq, hdr.captureNanos));
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Not a TCP protocol: " + protocol);
+            case V2:
+                // [bool full][int seq] full: [int len][jpeg] | delta: [int x,y,w,h][int len][jpeg]
+                boolean full = in.readBoolean();
+                in.readInt();
+                if (!full) in.skipNBytes(16);
+                readPayload(in);
+                break;
+            case PATCH2: {
+                // [byte type: 1 key, 0 delta, 2 / 3 có cache tile][int seq][int w][int h] key: [int len][jpeg]
+                // delta: [int tw][int th][int n] n x {[int x,y,w,h][int len][jpeg]}
+                // có cache: key thêm [int cap][int tw][int th][int n] n x [long], mỗi tile delta thêm [long hash]
+                // delta + 4: trước [int tw] có [int m] m x [int x,y,w,h,dx,dy] (copy-rect)
+                int type = in.readByte();
+                boolean cached = (type & 3) >= 2;
+                in.skipNBytes(12);
+                if (type == 1 || type == 2) {
+                    readPayload(in);
+                    if (cached) {
+                        in.skipNBytes(12);
+                        in.skipNBytes(8L * in.readInt());
+                    }
+                } else {
+                    if ((type & 4) != 0) in.skipNBytes(24L * in.readInt());
+                    in.skipNBytes(8);
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        in.skipNBytes(16);
+                        readTile(in, cached);
+                    }
+                }
+                break;
+            }
+            case V3: {
+                // [byte type][int seq][short w][short h][float q] key: [int len][jpeg]
+                // delta: [short tw][short th][int n] n x {[short tx][short ty][int len][jpeg]}
+                // type 2 / 3 (có cache): key thêm [int cap][short tw][short th][int n] n x [long], mỗi tile thêm [long hash]
+                // delta + 4: trước [short tw] có [short m] m x [short x,y,w,h,dx,dy] (copy-rect)
+                // type + 8: sau [float q] có [long captureNanos] -> gửi Receipt như client thật
+                byte type = in.readByte();
+                boolean cached = (type & 2) != 0;
+                int seq = in.readInt();
+                in.skipNBytes(8);
+                long captureNanos = (type & 8) != 0 ? in.readLong() : 0;
+                if ((type & 1) == 0) {
+                    readPayload(in);
+                    if (cached) {
+                        in.skipNBytes(8);
+                        in.skipNBytes(8L * in.readInt());
+                    }
+                } else {
+                    if ((type & 4) != 0) in.skipNBytes(12L * in.readUnsignedShort());
+                    in.skipNBytes(4);
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        in.skipNBytes(4);
+                        readTile(in, cached);
+                    }
+                }
+                if ((type & 8) != 0) {
+                    receipts.write(Receipt.encode(Receipt.RECEIVED, seq, captureNanos));
+                    if (decode) receipts.write(Receipt.encode(Receipt.DECODED, seq, captureNanos));
+                }
+                break;
+            }
+        }
+    }
+
+    // frame v1 buf[0, len) = [FrameHeader][payload]
+    private void decodeFrame(byte[] buf, int len, FrameHeader hdr) throws IOException {
+        long t0 = System.nanoTime();
+        if (hdr.striped()) StripedJpegCodec.decode(buf, FrameHeader.BYTES, len - FrameHeader.BYTES);
+        else Codecs.byId(hdr.codecId).decode(buf, FrameHeader.BYTES, len - FrameHeader.BYTES);
+        decodeTime.recordNanos(System.nanoTime() - t0);
+    }
+
+    private void readPayload(DataInputStream in) throws IOException {
+        readPayload(in, in.readInt());
+    }
+
+    // tile delta v3 / patch2: len = TileCache.CACHED -> không có byte ảnh; có cache -> thêm [long hash]
+    private void readTile(DataInputStream in, boolean cached) throws IOException {
+        int len = in.readInt();
+        if (len != TileCache.CACHED) readPayload(in, len);
+        if (cached) in.skipNBytes(8);
+    }
+
+    private void readPayload(DataInputStream in, int len) throws IOException {
+        if (len < 0 || len > MAX_PAYLOAD) throw new IOException("Invalid payload size: " + len);
+        if (!decode) {
+            in.skipNBytes(len);
+            return;
+        }
+        byte[] buf = in.readNBytes(len);
+        long t0 = System.nanoTime();
+        Codecs.decode(buf, 0, len);
+        decodeTime.recordNanos(System.nanoTime() - t0);
+    }
+
+    /** Đếm byte thật nhận từ socket (trước BufferedInputStream). */
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytes.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytes.add(n);
+            return n;
+        }
+    }
+}
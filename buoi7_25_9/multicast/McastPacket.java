@@ -0,0 +1,73 @@
+package buoi7_25_9.multicast;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Định dạng datagram của transport multicast (mỗi datagram <= MAX_DATAGRAM, vừa MTU Ethernet):
+ * - DATA  (server -> group): [byte type=1][byte flags][short index][short count][short 0][int seq][int frameLen][chunk]
+ *   frame v1 = [FrameHeader][payload] (như TCP, bỏ [int length]) cắt thành count mảnh FRAGMENT byte
+ * - NACK  (viewer -> server): [byte type=2][byte 0][short n][int seq] n x [short index]
+ * - KEY   (viewer -> server): [byte type=3][byte 0][short 0][int lastSeq]  xin phát lại frame mới nhất
+ * Viewer gửi NACK/KEY về đúng địa chỉ nguồn của DATA (socket của server), không cần cấu hình thêm.
+ */
+public final class McastPacket {
+    public static final int DATA = 1;
+    public static final int NACK = 2;
+    public static final int KEY = 3;
+
+    public static final int FLAG_REPAIR = 1; // mảnh phát lại (do NACK/KEY)
+
+    public static final int MAX_DATAGRAM = 1400;
+    public static final int DATA_HEADER = 1 + 1 + 2 + 2 + 2 + 4 + 4;
+    public static final int FRAGMENT = MAX_DATAGRAM - DATA_HEADER;
+    public static final int CONTROL_HEADER = 1 + 1 + 2 + 4;
+    public static final int MAX_NACK_INDEXES = (MAX_DATAGRAM - CONTROL_HEADER) / 2;
+
+    public static final String DEFAULT_GROUP = "239.255.42.99:5000";
+
+    private McastPacket() {
+    }
+
+    public static int fragments(int frameLen) {
+        return Math.max(1, (frameLen + FRAGMENT - 1) / FRAGMENT);
+    }
+
+    public static void writeData(ByteBuffer b, int flags, int index, int count, int seq, int frameLen) {
+        b.put((byte) DATA).put((byte) flags).putShort((short) index).putShort((short) count).putShort((short) 0);
+        b.putInt(seq).putInt(frameLen);
+    }
+
+    public static void writeControl(ByteBuffer b, int type, int n, int seq) {
+        b.put((byte) type).put((byte) 0).putShort((short) n).putInt(seq);
+    }
+
+    /** "239.255.42.99:5000" -> địa chỉ group (phải là địa chỉ multicast). */
+    public static InetSocketAddress group(String spec) throws IOException {
+        int c = spec.lastIndexOf(':');
+        if (c <= 0) throw new IllegalArgumentException("Multicast group must be host:port: " + spec);
+        InetAddress addr = InetAddress.getByName(spec.substring(0, c));
+        if (!addr.isMulticastAddress()) throw new IllegalArgumentException(addr + " is not a multicast address");
+        return new InetSocketAddress(addr, Integer.parseInt(spec.substring(c + 1)));
+    }
+
+    /** -Dscreen.multicast: "group:port" | "on" (DEFAULT_GROUP) | trống / "off" -> null (không dùng multicast). */
+    public static InetSocketAddress groupFromSystemProperty() throws IOException {
+        String spec = System.getProperty("screen.multicast");
+        if (spec == null || spec.isEmpty() || "off".equalsIgnoreCase(spec)) return null;
+        return group("on".equalsIgnoreCase(spec) ? DEFAULT_GROUP : spec);
+    }
+
+    /** Interface từ -Dscreen.multicast.if (vd "lo" để thử trên 1 máy); null -> để OS chọn. */
+    public static NetworkInterface interfaceFromSystemProperty() throws SocketException {
+        String name = System.getProperty("screen.multicast.if");
+        if (name == null || name.isEmpty()) return null;
+        NetworkInterface ni = NetworkInterface.getByName(name);
+        if (ni == null) throw new SocketException("Unknown network interface " + name);
+        return ni;
+    }
+}
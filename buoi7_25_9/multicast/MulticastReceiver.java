@@ -0,0 +1,195 @@
+package buoi7_25_9.multicast;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Phía viewer của transport multicast: join group, ghép mảnh DATA thành frame v1 ([FrameHeader][payload]).
+ * - Frame chưa đủ mảnh quá NACK_DELAY_NS (hoặc đã có mảnh của frame mới hơn) -> gửi NACK các mảnh thiếu
+ * - NACK MAX_NACKS lần vẫn thiếu, hoặc frame mới hơn đã ghép xong -> bỏ frame (v1 mỗi frame là ảnh đầy đủ)
+ * - Quá KEY_AFTER_NS không ghép được frame nào (mất trọn frame, mới join...) -> gửi KEY xin frame mới nhất
+ * next() chỉ trả frame mới hơn frame đã trả trước đó. Không thread-safe: 1 thread đọc.
+ */
+public final class MulticastReceiver implements AutoCloseable {
+    private static final int MAX_PARTIALS = 4;
+    private static final int MAX_NACKS = 3;
+    private static final long NACK_DELAY_NS = 10_000_000L;
+    private static final long KEY_AFTER_NS = 500_000_000L;
+    private static final int POLL_MS = 5;
+    private static final int SO_RCVBUF = 4 * 1024 * 1024;
+
+    private final MulticastSocket socket;
+    private final DatagramPacket packet = new DatagramPacket(new byte[McastPacket.MAX_DATAGRAM], McastPacket.MAX_DATAGRAM);
+    private final ByteBuffer ctrl = ByteBuffer.allocate(McastPacket.MAX_DATAGRAM);
+    private final TreeMap<Integer, Partial> partials = new TreeMap<>();
+    private SocketAddress server;  // nguồn của DATA = socket control của server
+    private int lastSeq = 0;       // seq frame đã trả gần nhất
+    private int newestSeen = 0;
+    private long lastFrameNanos = System.nanoTime();
+    private long lastKeyNanos = 0;
+
+    private volatile long framesLost, nacksSent, keysSent, repairsReceived; // đọc được từ thread khác (thống kê)
+
+    /** Frame đang ghép. */
+    private static final class Partial {
+        final byte[] data;
+        final int count;
+        final BitSet got;
+        int missing;
+        long lastPacketNanos;
+        long lastNackNanos;
+        int nacks;
+
+        Partial(int frameLen, int count, long now) {
+            this.data = new byte[frameLen];
+            this.count = count;
+            this.got = new BitSet(count);
+            this.missing = count;
+            this.lastPacketNanos = now;
+        }
+    }
+
+    public MulticastReceiver(InetSocketAddress group, NetworkInterface iface) throws IOException {
+        socket = new MulticastSocket(group.getPort()); // SO_REUSEADDR: nhiều viewer trên 1 máy
+        try {
+            socket.setReceiveBufferSize(SO_RCVBUF);
+        } catch (IOException ignored) {}
+        socket.setSoTimeout(POLL_MS);
+        socket.joinGroup(group, iface);
+    }
+
+    /** Chặn tới khi ghép xong 1 frame mới; trả về [FrameHeader][payload]. */
+    public byte[] next() throws IOException {
+        while (true) {
+            long now;
+            try {
+                socket.receive(packet);
+                now = System.nanoTime();
+                byte[] done = onPacket(now);
+                if (done != null) return done;
+            } catch (SocketTimeoutException e) {
+                now = System.nanoTime();
+            }
+            checkMissing(now);
+        }
+    }
+
+    private byte[] onPacket(long now) {
+        ByteBuffer in = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        if (in.remaining() < McastPacket.DATA_HEADER || in.get() != McastPacket.DATA) return null;
+        int flags = in.get();
+        int index = in.getShort() & 0xFFFF;
+        int count = in.getShort() & 0xFFFF;
+        in.getShort();
+        int seq = in.getInt();
+        int frameLen = in.getInt();
+        server = packet.getSocketAddress();
+        if ((flags & McastPacket.FLAG_REPAIR) != 0) repairsReceived++;
+        if (seq <= lastSeq || index >= count || count != McastPacket.fragments(frameLen)) return null;
+        newestSeen = Math.max(newestSeen, seq);
+
+        Partial p = partials.get(seq);
+        if (p == null) {
+            if (partials.size() >= MAX_PARTIALS) {
+                partials.pollFirstEntry();
+                framesLost++;
+            }
+            p = new Partial(frameLen, count, now);
+            partials.put(seq, p);
+        }
+        p.lastPacketNanos = now;
+        if (p.got.get(index)) return null;
+        int off = index * McastPacket.FRAGMENT;
+        int len = Math.min(McastPacket.FRAGMENT, frameLen - off);
+        if (in.remaining() < len) return null;
+        in.get(p.data, off, len);
+        p.got.set(index);
+        if (--p.missing > 0) return null;
+
+        // Xong: bỏ mọi frame cũ hơn còn dở
+        Iterator<Map.Entry<Integer, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            int s = it.next().getKey();
+            if (s > seq) break;
+            it.remove();
+            if (s < seq) framesLost++;
+        }
+        lastSeq = seq;
+        lastFrameNanos = now;
+        return p.data;
+    }
+
+    private void checkMissing(long now) throws IOException {
+        if (server == null) return;
+        Iterator<Map.Entry<Integer, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Partial> e = it.next();
+            Partial p = e.getValue();
+            boolean overtaken = e.getKey() < newestSeen;
+            if (!overtaken && now - p.lastPacketNanos < NACK_DELAY_NS) continue;
+            if (now - p.lastNackNanos < NACK_DELAY_NS) continue;
+            if (p.nacks >= MAX_NACKS) {
+                it.remove();
+                framesLost++;
+                continue;
+            }
+            sendNack(e.getKey(), p);
+            p.nacks++;
+            p.lastNackNanos = now;
+        }
+        if (now - lastFrameNanos > KEY_AFTER_NS && now - lastKeyNanos > KEY_AFTER_NS) {
+            ctrl.clear();
+            McastPacket.writeControl(ctrl, McastPacket.KEY, 0, lastSeq);
+            send();
+            keysSent++;
+            lastKeyNanos = now;
+        }
+    }
+
+    private void sendNack(int seq, Partial p) throws IOException {
+        ctrl.clear();
+        int n = Math.min(p.missing, McastPacket.MAX_NACK_INDEXES);
+        McastPacket.writeControl(ctrl, McastPacket.NACK, n, seq);
+        for (int i = p.got.nextClearBit(0), k = 0; i < p.count && k < n; i = p.got.nextClearBit(i + 1), k++) {
+            ctrl.putShort((short) i);
+        }
+        send();
+        nacksSent++;
+    }
+
+    private void send() throws IOException {
+        socket.send(new DatagramPacket(ctrl.array(), ctrl.position(), server));
+    }
+
+    /** Frame bỏ vì thiếu mảnh (hết lượt NACK hoặc frame mới hơn đã xong). */
+    public long framesLost() {
+        return framesLost;
+    }
+
+    public long nacksSent() {
+        return nacksSent;
+    }
+
+    public long keysSent() {
+        return keysSent;
+    }
+
+    /** Mảnh phát lại nhận được (của mình hoặc viewer khác xin). */
+    public long repairsReceived() {
+        return repairsReceived;
+    }
+
+    @Override public void close() {
+        socket.close();
+    }
+}
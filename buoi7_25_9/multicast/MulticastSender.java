@@ -0,0 +1,223 @@
+package buoi7_25_9.multicast;
+
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.PooledFrame;
+import buoi7_25_9.common.ServerMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Phát mỗi frame đã mã hoá ĐÚNG 1 LẦN tới 1 group multicast (thay vì N bản unicast):
+ * - Thread "mcast-sender": subscriber của FrameHub (latest-wins), cắt frame thành các mảnh DATA rồi gửi
+ * - Thread "mcast-control": nhận NACK / KEY từ viewer, phát lại mảnh thiếu (hoặc cả frame mới nhất) vào group
+ * - Giữ HISTORY frame gần nhất (mỗi frame 1 ref PooledFrame) để phát lại, frame cũ hơn coi như mất
+ * - 1 mảnh đã phát lại trong REPAIR_HOLDOFF_NS không phát lại nữa: 60 viewer cùng mất 1 mảnh -> chỉ 1 lần gửi
+ * Băng thông ra của server không phụ thuộc số viewer (chỉ phần phát lại tăng theo tỉ lệ mất gói).
+ */
+public final class MulticastSender {
+    private static final int HISTORY = 8;
+    private static final long REPAIR_HOLDOFF_NS = 20_000_000L;
+    private static final long KEY_HOLDOFF_NS = 200_000_000L;
+    private static final int SO_SNDBUF = 1024 * 1024;
+
+    private final InetSocketAddress group;
+    private final DatagramChannel ch;
+    private final ServerMetrics metrics;
+    private final LatencyHistogram sendTiming;
+
+    // Chỉ đọc/ghi khi giữ lock history
+    private final Sent[] history = new Sent[HISTORY];
+    private int head = 0;
+    private long lastKeyNanos = 0;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder repairs = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder keyRequests = new LongAdder();
+
+    /** Frame đã phát + lần phát lại gần nhất của từng mảnh. */
+    private static final class Sent {
+        final PooledFrame frame;
+        final long[] repairedAt;
+
+        Sent(PooledFrame frame, int count) {
+            this.frame = frame;
+            this.repairedAt = new long[count];
+        }
+    }
+
+    public MulticastSender(InetSocketAddress group, NetworkInterface iface, int controlPort, ServerMetrics metrics) throws IOException {
+        this.group = group;
+        this.metrics = metrics;
+        this.sendTiming = metrics.stage("multicast");
+        ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        ch.setOption(StandardSocketOptions.SO_SNDBUF, SO_SNDBUF);
+        ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // viewer cùng máy (thử trên loopback)
+        if (iface != null) ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, iface);
+        ch.bind(new InetSocketAddress(controlPort));
+    }
+
+    /**
+     * Cấu hình qua system property, null nếu không bật:
+     *   -Dscreen.multicast=239.255.42.99:5000  -Dscreen.multicast.if=lo  -Dscreen.multicast.ctrl=5001
+     */
+    public static MulticastSender fromSystemProperty(ServerMetrics metrics) throws IOException {
+        InetSocketAddress group = McastPacket.groupFromSystemProperty();
+        if (group == null) return null;
+        return new MulticastSender(group, McastPacket.interfaceFromSystemProperty(),
+                Integer.getInteger("screen.multicast.ctrl", 5001), metrics);
+    }
+
+    public InetSocketAddress group() {
+        return group;
+    }
+
+    /** Chạy thread gửi (đọc frames) + thread nhận NACK/KEY, cả 2 là daemon. */
+    public void start(FrameHub<PooledFrame> frames) {
+        Thread sender = new Thread(() -> runSender(frames), "mcast-sender");
+        sender.setDaemon(true);
+        sender.start();
+        Thread control = new Thread(this::runControl, "mcast-control");
+        control.setDaemon(true);
+        control.start();
+    }
+
+    private void runSender(FrameHub<PooledFrame> frames) {
+        FrameHub<PooledFrame>.Subscriber sub = frames.subscribe("multicast");
+        ByteBuffer out = ByteBuffer.allocateDirect(McastPacket.MAX_DATAGRAM);
+        while (true) {
+            try {
+                PooledFrame f = sub.await();
+                Sent s;
+                synchronized (history) {
+                    // history nhận ref của await(); frame bị đẩy ra khỏi history -> trả ref
+                    s = new Sent(f, McastPacket.fragments(f.size() - 4));
+                    Sent old = history[head];
+                    history[head] = s;
+                    head = (head + 1) % HISTORY;
+                    if (old != null) old.frame.release();
+                }
+                long t0 = System.nanoTime();
+                sendFragments(out, f, 0, s.repairedAt.length, 0);
+                sendTiming.recordNanos(System.nanoTime() - t0);
+                framesSent.increment();
+                metrics.frameSent();
+                sub.sent();
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                System.err.println("[Multicast] " + e.getMessage());
+                try { Thread.sleep(5); } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+
+    // Gửi các mảnh [from, to) của frame (bỏ [int length] đầu buffer, độ dài đã có trong header DATA)
+    private void sendFragments(ByteBuffer out, PooledFrame f, int from, int to, int flags) throws IOException {
+        int frameLen = f.size() - 4;
+        int count = McastPacket.fragments(frameLen);
+        ByteBuffer src = f.duplicateBuffer();
+        for (int i = from; i < to; i++) {
+            int off = i * McastPacket.FRAGMENT;
+            int len = Math.min(McastPacket.FRAGMENT, frameLen - off);
+            out.clear();
+            McastPacket.writeData(out, flags, i, count, f.seq, frameLen);
+            src.limit(4 + off + len).position(4 + off);
+            out.put(src).flip();
+            int n = ch.send(out, group);
+            datagrams.increment();
+            bytes.add(n);
+            metrics.bytesSent(n);
+        }
+    }
+
+    private void runControl() {
+        ByteBuffer in = ByteBuffer.allocate(McastPacket.MAX_DATAGRAM);
+        ByteBuffer out = ByteBuffer.allocateDirect(McastPacket.MAX_DATAGRAM);
+        while (ch.isOpen()) {
+            try {
+                in.clear();
+                SocketAddress from = ch.receive(in);
+                in.flip();
+                if (from == null || in.remaining() < McastPacket.CONTROL_HEADER) continue;
+                int type = in.get();
+                in.get();
+                int n = in.getShort() & 0xFFFF;
+                int seq = in.getInt();
+                if (type == McastPacket.NACK) {
+                    nacks.increment();
+                    n = Math.min(n, in.remaining() / 2);
+                    int[] idx = new int[n];
+                    for (int i = 0; i < n; i++) idx[i] = in.getShort() & 0xFFFF;
+                    repair(out, seq, idx);
+                } else if (type == McastPacket.KEY) {
+                    keyRequests.increment();
+                    resendLatest(out);
+                }
+            } catch (IOException e) {
+                if (ch.isOpen()) System.err.println("[Multicast] control: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Phát lại các mảnh được NACK của frame seq (nếu còn trong history và chưa vừa phát lại). */
+    private void repair(ByteBuffer out, int seq, int[] idx) throws IOException {
+        PooledFrame f = null;
+        long now = System.nanoTime();
+        int[] due = new int[idx.length];
+        int m = 0;
+        synchronized (history) {
+            for (Sent s : history) {
+                if (s == null || s.frame.seq != seq) continue;
+                for (int i : idx) {
+                    if (i >= s.repairedAt.length || now - s.repairedAt[i] < REPAIR_HOLDOFF_NS) continue;
+                    s.repairedAt[i] = now;
+                    due[m++] = i;
+                }
+                if (m > 0) f = s.frame.retain(); // giữ frame trong lúc gửi ngoài lock
+                break;
+            }
+        }
+        if (f == null) return;
+        try {
+            for (int k = 0; k < m; k++) sendFragments(out, f, due[k], due[k] + 1, McastPacket.FLAG_REPAIR);
+            repairs.add(m);
+        } finally {
+            f.release();
+        }
+    }
+
+    /** KEY: phát lại trọn frame mới nhất (v1 mỗi frame là ảnh đầy đủ), tối đa 1 lần / KEY_HOLDOFF_NS. */
+    private void resendLatest(ByteBuffer out) throws IOException {
+        PooledFrame f;
+        synchronized (history) {
+            long now = System.nanoTime();
+            Sent s = history[(head + HISTORY - 1) % HISTORY];
+            if (s == null || now - lastKeyNanos < KEY_HOLDOFF_NS) return;
+            lastKeyNanos = now;
+            f = s.frame.retain();
+        }
+        try {
+            int count = McastPacket.fragments(f.size() - 4);
+            sendFragments(out, f, 0, count, McastPacket.FLAG_REPAIR);
+            repairs.add(count);
+        } finally {
+            f.release();
+        }
+    }
+
+    public String report() {
+        return String.format("[Multicast %s] frames=%d datagrams=%d sent=%.1fMB repairs=%d nacks=%d keyRequests=%d",
+                group, framesSent.sum(), datagrams.sum(), bytes.sum() / 1e6, repairs.sum(), nacks.sum(), keyRequests.sum());
+    }
+}
@@ -0,0 +1,154 @@
+package buoi7_25_9.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log ghi phiên chia segment, mỗi segment là 1 file cấp sẵn SEGMENT_BYTES và map vào bộ nhớ (mmap):
+ * ghi 1 record = copy vào page cache, không syscall, kernel tự flush xuống đĩa.
+ *
+ * Thư mục log:
+ *   segment-000000.log ...  [int MAGIC][byte VERSION][byte protocol][short 0][long createdMillis]  rồi các record:
+ *                           [int bodyLen][byte kind][int seq][long tsMillis][body = đúng byte gửi trên dây]
+ *                           bodyLen == 0: hết dữ liệu của segment (phần cấp sẵn còn toàn 0)
+ *   index.idx               chỉ mục thưa: mỗi INDEX_INTERVAL_MS tối đa 1 KEY -> [long tsMillis][int seq][int segment][long offset]
+ * bodyLen ghi SAU CÙNG -> reader (kể cả process khác đang phát lại log đang ghi) không bao giờ thấy record dở.
+ * Chỉ 1 thread ghi (recorder), không nằm trên đường gửi live.
+ */
+public final class FrameLog implements Closeable {
+    public static final int MAGIC = 0x534C4F47; // "SLOG"
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER = 4 + 1 + 1 + 2 + 8;
+    public static final int RECORD_HEADER = 4 + 1 + 4 + 8;
+    public static final int INDEX_ENTRY = 8 + 4 + 4 + 8;
+
+    // Loại record (cùng giá trị với PacketStream.PREAMBLE / KEY / DELTA)
+    public static final int PREAMBLE = 0; // byte gửi 1 lần đầu kết nối (vd kích thước màn hình của patch2)
+    public static final int KEY = 1;      // frame giải mã độc lập được -> điểm seek
+    public static final int DELTA = 2;
+
+    // Giao thức của byte trên dây
+    public static final int PROTOCOL_V1 = 1;
+    public static final int PROTOCOL_PATCH2 = 2;
+    public static final int PROTOCOL_V3 = 3;
+
+    private static final long INDEX_INTERVAL_MS = 1_000;
+
+    private final Path dir;
+    private final int protocol;
+    private final long segmentBytes;
+    private final FileChannel index;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private MappedByteBuffer seg;
+    private int segNo = -1;
+    private long lastIndexedMillis = 0;
+    private long records = 0;
+    private long bytes = 0;
+
+    public FrameLog(Path dir, int protocol, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.protocol = protocol;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve("index.idx"))) throw new IOException("Log already exists in " + dir);
+        this.index = FileChannel.open(dir.resolve("index.idx"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Bật ghi qua -Dscreen.record=<thư mục gốc> (mỗi lần chạy 1 thư mục con theo thời điểm), null nếu không bật.
+     * -Dscreen.record.segmentMB=64
+     */
+    public static FrameLog fromSystemProperty(int protocol) throws IOException {
+        return fromSystemProperty(protocol, null);
+    }
+
+    /** Server nhiều luồng (v3 -Dscreen.streams): mỗi luồng 1 thư mục session-<millis>-<stream>. */
+    public static FrameLog fromSystemProperty(int protocol, String stream) throws IOException {
+        String root = System.getProperty("screen.record");
+        if (root == null || root.isEmpty()) return null;
+        Path dir = Path.of(root, "session-" + System.currentTimeMillis() + (stream == null ? "" : "-" + stream));
+        return new FrameLog(dir, protocol, Integer.getInteger("screen.record.segmentMB", 64) * 1024L * 1024L);
+    }
+
+    public Path dir() {
+        return dir;
+    }
+
+    public static Path segmentPath(Path dir, int segNo) {
+        return dir.resolve(String.format("segment-%06d.log", segNo));
+    }
+
+    /** Ghi body[position, limit) (không đổi position của body). */
+    public void append(int kind, int seq, ByteBuffer body) throws IOException {
+        int len = body.remaining();
+        int start = reserve(len);
+        seg.position(start + RECORD_HEADER);
+        seg.put(body.duplicate());
+        commit(kind, seq, start, len);
+    }
+
+    public void append(int kind, int seq, byte[] body, int off, int len) throws IOException {
+        int start = reserve(len);
+        seg.position(start + RECORD_HEADER);
+        seg.put(body, off, len);
+        commit(kind, seq, start, len);
+    }
+
+    public long records() {
+        return records;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    // Chỗ cho 1 record (+ 4 byte bodyLen == 0 đánh dấu hết); không đủ -> sang segment mới
+    private int reserve(int len) throws IOException {
+        long need = RECORD_HEADER + (long) len + 4;
+        if (seg == null || seg.position() + need > seg.capacity()) {
+            nextSegment(SEGMENT_HEADER + need);
+        }
+        return seg.position();
+    }
+
+    private void commit(int kind, int seq, int start, int len) throws IOException {
+        long now = System.currentTimeMillis();
+        int end = start + RECORD_HEADER + len;
+        seg.put(start + 4, (byte) kind);
+        seg.putInt(start + 5, seq);
+        seg.putLong(start + 9, now);
+        seg.putInt(start, len); // cuối cùng: record hiện ra với reader
+        seg.position(end);
+        records++;
+        bytes += RECORD_HEADER + len;
+        if (kind == KEY && now - lastIndexedMillis >= INDEX_INTERVAL_MS) {
+            indexEntry.clear();
+            indexEntry.putLong(now).putInt(seq).putInt(segNo).putLong(start).flip();
+            while (indexEntry.hasRemaining()) index.write(indexEntry);
+            lastIndexedMillis = now;
+        }
+    }
+
+    private void nextSegment(long minBytes) throws IOException {
+        if (seg != null) seg.force();
+        segNo++;
+        long size = Math.max(segmentBytes, minBytes);
+        if (size > Integer.MAX_VALUE) throw new IOException("Record too large: " + minBytes);
+        try (FileChannel fc = FileChannel.open(segmentPath(dir, segNo),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            seg = fc.map(FileChannel.MapMode.READ_WRITE, 0, size); // mapping sống tiếp sau khi đóng channel
+        }
+        seg.putInt(MAGIC).put((byte) VERSION).put((byte) protocol).putShort((short) 0).putLong(System.currentTimeMillis());
+    }
+
+    @Override public void close() throws IOException {
+        if (seg != null) seg.force();
+        index.close();
+    }
+}
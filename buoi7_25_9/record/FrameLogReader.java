@@ -0,0 +1,176 @@
+package buoi7_25_9.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Đọc log của FrameLog (kể cả log đang được ghi): đọc header record bằng pread, body gửi thẳng
+ * file -> socket bằng FileChannel.transferTo (sendfile, không copy qua heap của JVM).
+ * next() trả null khi đã tới record cuối hiện có -> caller chờ rồi gọi lại để bám theo live.
+ * Mỗi viewer phát lại dùng 1 reader riêng (có vị trí riêng).
+ */
+public final class FrameLogReader implements Closeable {
+
+    /** 1 record: body nằm ở [bodyPos, bodyPos + bodyLen) của segment. */
+    public static final class Record {
+        public final int kind;
+        public final int seq;
+        public final long tsMillis;
+        final int segment;
+        final long bodyPos;
+        public final int bodyLen;
+
+        Record(int kind, int seq, long tsMillis, int segment, long bodyPos, int bodyLen) {
+            this.kind = kind;
+            this.seq = seq;
+            this.tsMillis = tsMillis;
+            this.segment = segment;
+            this.bodyPos = bodyPos;
+            this.bodyLen = bodyLen;
+        }
+    }
+
+    /** 1 dòng của index.idx. */
+    public static final class IndexEntry {
+        public final long tsMillis;
+        public final int seq;
+        final int segment;
+        final long offset;
+
+        IndexEntry(long tsMillis, int seq, int segment, long offset) {
+            this.tsMillis = tsMillis;
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private final Path dir;
+    private final int protocol;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameLog.RECORD_HEADER);
+    private FileChannel seg;
+    private int segNo;
+    private long pos;
+
+    public FrameLogReader(Path dir) throws IOException {
+        this.dir = dir;
+        open(0);
+        ByteBuffer h = ByteBuffer.allocate(FrameLog.SEGMENT_HEADER);
+        seg.read(h, 0);
+        h.flip();
+        if (h.remaining() < FrameLog.SEGMENT_HEADER || h.getInt() != FrameLog.MAGIC) {
+            throw new IOException("Not a frame log: " + FrameLog.segmentPath(dir, 0));
+        }
+        int version = h.get();
+        if (version != FrameLog.VERSION) throw new IOException("Unsupported log version " + version);
+        protocol = h.get();
+        pos = FrameLog.SEGMENT_HEADER; // next() chưa seek: đọc từ record đầu tiên
+    }
+
+    /** FrameLog.PROTOCOL_*: giao thức của byte đã ghi (replay phải nói đúng giao thức đó). */
+    public int protocol() {
+        return protocol;
+    }
+
+    /** Đọc lại toàn bộ index (log đang ghi thì index dài thêm theo thời gian). */
+    public List<IndexEntry> index() throws IOException {
+        List<IndexEntry> res = new ArrayList<>();
+        try (FileChannel fc = FileChannel.open(dir.resolve("index.idx"), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate((int) fc.size() / FrameLog.INDEX_ENTRY * FrameLog.INDEX_ENTRY);
+            while (b.hasRemaining() && fc.read(b) > 0) {
+                // đọc hết
+            }
+            b.flip();
+            while (b.remaining() >= FrameLog.INDEX_ENTRY) {
+                res.add(new IndexEntry(b.getLong(), b.getInt(), b.getInt(), b.getLong()));
+            }
+        }
+        return res;
+    }
+
+    /** Record PREAMBLE ở đầu log (phải gửi trước mọi frame, bất kể seek tới đâu). */
+    public List<Record> preambles() throws IOException {
+        int savedSeg = segNo;
+        long savedPos = pos;
+        seekStart();
+        List<Record> res = new ArrayList<>();
+        Record r;
+        while ((r = next()) != null && r.kind == FrameLog.PREAMBLE) res.add(r);
+        open(savedSeg);
+        pos = savedPos;
+        return res;
+    }
+
+    public void seekStart() throws IOException {
+        open(0);
+        pos = FrameLog.SEGMENT_HEADER;
+    }
+
+    /** Tới KEY được index gần nhất có tsMillis <= ts (chưa có thì về đầu log). */
+    public void seek(long tsMillis) throws IOException {
+        IndexEntry best = null;
+        for (IndexEntry e : index()) {
+            if (e.tsMillis > tsMillis) break;
+            best = e;
+        }
+        if (best == null) {
+            seekStart();
+        } else {
+            open(best.segment);
+            pos = best.offset;
+        }
+    }
+
+    /** Record kế tiếp, null nếu chưa có (log đang ghi) hoặc đã hết. */
+    public Record next() throws IOException {
+        while (true) {
+            header.clear();
+            seg.read(header, pos);
+            header.flip();
+            int len = header.remaining() >= 4 ? header.getInt() : 0;
+            if (len > 0 && header.remaining() >= FrameLog.RECORD_HEADER - 4) {
+                Record r = new Record(header.get(), header.getInt(), header.getLong(), segNo, pos + FrameLog.RECORD_HEADER, len);
+                pos = r.bodyPos + len;
+                return r;
+            }
+            // Hết segment này: writer chỉ mở segment sau khi segment trước đã đầy -> có file sau là sang được
+            if (!Files.exists(FrameLog.segmentPath(dir, segNo + 1))) return null;
+            open(segNo + 1);
+            pos = FrameLog.SEGMENT_HEADER;
+        }
+    }
+
+    /** Gửi body của r ra out bằng transferTo (zero-copy với SocketChannel). */
+    public void transfer(Record r, WritableByteChannel out) throws IOException {
+        FileChannel fc = r.segment == segNo ? seg : FileChannel.open(FrameLog.segmentPath(dir, r.segment), StandardOpenOption.READ);
+        try {
+            long sent = 0;
+            while (sent < r.bodyLen) {
+                long n = fc.transferTo(r.bodyPos + sent, r.bodyLen - sent, out);
+                if (n <= 0) throw new IOException("transferTo stalled at " + sent + "/" + r.bodyLen);
+                sent += n;
+            }
+        } finally {
+            if (fc != seg) fc.close();
+        }
+    }
+
+    private void open(int no) throws IOException {
+        if (seg != null && no == segNo) return;
+        if (seg != null) seg.close();
+        seg = FileChannel.open(FrameLog.segmentPath(dir, no), StandardOpenOption.READ);
+        segNo = no;
+    }
+
+    @Override public void close() throws IOException {
+        if (seg != null) seg.close();
+    }
+}
@@ -0,0 +1,46 @@
+package buoi7_25_9.record;
+
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.PooledFrame;
+
+import java.io.IOException;
+
+/**
+ * Ghi hình cho v1: thêm 1 subscriber của FrameHub trên thread riêng, mỗi frame 1 record KEY
+ * (frame v1 nào cũng là ảnh đầy đủ). Body = đúng byte trên dây [int length][FrameHeader][payload],
+ * copy thẳng từ buffer của PooledFrame vào segment đã mmap.
+ * Broadcaster / reactor không chờ recorder: hub latest-wins, recorder chậm chỉ bỏ frame của chính nó.
+ */
+public final class FrameRecorder {
+
+    private FrameRecorder() {
+    }
+
+    public static void start(FrameHub<PooledFrame> frames, FrameLog log, LatencyHistogram timing) {
+        Thread t = new Thread(() -> {
+            FrameHub<PooledFrame>.Subscriber sub = frames.subscribe("recorder");
+            while (true) {
+                try {
+                    PooledFrame f = sub.await();
+                    long t0 = System.nanoTime();
+                    try {
+                        log.append(FrameLog.KEY, f.seq, f.duplicateBuffer());
+                    } finally {
+                        f.release();
+                    }
+                    timing.recordNanos(System.nanoTime() - t0);
+                    sub.sent();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("[Recorder] Stop recording " + log.dir() + ": " + e.getMessage());
+                    return;
+                }
+            }
+        }, "recorder");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("[Recorder] Recording to " + log.dir());
+    }
+}
@@ -0,0 +1,46 @@
+package buoi7_25_9.record;
+
+import buoi7_25_9.common.ByteSink;
+import buoi7_25_9.common.PacketStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream thay cho socket của 1 "viewer ghi hình" (v3 / patch2): sender ghi packet như với client thật,
+ * mỗi flush() = trọn 1 packet -> 1 record của FrameLog. Loại record (PREAMBLE / KEY / DELTA) do classifier
+ * quyết định theo số thứ tự packet và byte đầu của nó.
+ */
+public final class PacketRecorder extends OutputStream {
+
+    private final FrameLog log;
+    private final PacketStream.Classifier classifier;
+    private final ByteSink packet = new ByteSink(256 * 1024);
+    private long packets = 0;
+
+    public PacketRecorder(FrameLog log, PacketStream.Classifier classifier) {
+        this.log = log;
+        this.classifier = classifier;
+    }
+
+    @Override public void write(int b) {
+        packet.write(b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+        packet.write(b, off, len);
+    }
+
+    @Override public void flush() throws IOException {
+        if (packet.size() == 0) return;
+        int kind = classifier.kind(packets, packet.array(), packet.size());
+        log.append(kind, (int) packets, packet.array(), 0, packet.size());
+        packets++;
+        packet.reset();
+    }
+
+    @Override public void close() throws IOException {
+        flush();
+        log.close();
+    }
+}
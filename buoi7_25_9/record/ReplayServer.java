@@ -0,0 +1,135 @@
+package buoi7_25_9.record;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Phát lại 1 phiên đã ghi (FrameLog) cho client cũ của đúng giao thức đã ghi (v1 / patch2 / v3):
+ * - Gửi PREAMBLE (nếu có) -> seek tới KEY gần nhất qua index -> gửi record theo nhịp tsMillis gốc / speed
+ * - Body gửi bằng FileChannel.transferTo: file -> socket trong kernel, không copy qua heap
+ * - Log đang ghi: tới cuối thì chờ record mới (bám live); không có record mới IDLE_CLOSE_MS thì đóng
+ * - Mỗi viewer 1 thread + 1 reader riêng (seek độc lập); byte client gửi lên (receipt...) bị bỏ qua
+ *
+ * Dùng: java buoi7_25_9.record.ReplayServer <logDir | thư mục gốc -Dscreen.record> [port] [fromSeconds] [speed]
+ *   fromSeconds >= 0: tính từ đầu phiên; < 0: tính lùi từ KEY mới nhất (vd -5 = 5s trước "hiện tại")
+ */
+public class ReplayServer {
+    private static final int DEFAULT_PORT = 2350;
+    private static final long TAIL_POLL_MS = 20;
+    private static final long IDLE_CLOSE_MS = Long.getLong("screen.replay.idleMs", 10_000);
+
+    private final Path dir;
+    private final int port;
+    private final double fromSeconds;
+    private final double speed;
+
+    public ReplayServer(Path dir, int port, double fromSeconds, double speed) {
+        this.dir = dir;
+        this.port = port;
+        this.fromSeconds = fromSeconds;
+        this.speed = speed > 0 ? speed : 1.0;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayServer <logDir> [port=" + DEFAULT_PORT + "] [fromSeconds=0] [speed=1.0]");
+            return;
+        }
+        Path dir = resolveSession(Path.of(args[0]));
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        double from = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        new ReplayServer(dir, port, from, speed).start();
+    }
+
+    // Cho phép truyền thư mục gốc của -Dscreen.record: lấy phiên mới nhất
+    static Path resolveSession(Path p) throws IOException {
+        if (Files.exists(p.resolve("index.idx"))) return p;
+        try (Stream<Path> s = Files.list(p)) {
+            return s.filter(d -> Files.exists(d.resolve("index.idx")))
+                    .max(Comparator.comparing(Path::getFileName))
+                    .orElseThrow(() -> new IOException("No recorded session in " + p));
+        }
+    }
+
+    public void start() throws IOException {
+        try (FrameLogReader probe = new FrameLogReader(dir);
+             ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            System.out.println("[Replay] " + dir + " (protocol " + probe.protocol() + ", "
+                    + probe.index().size() + " index entries) on " + port + " from " + fromSeconds + "s x" + speed);
+            while (true) {
+                SocketChannel ch = ssc.accept();
+                Thread t = new Thread(() -> serve(ch), "replay-" + ch.socket().getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        String who = String.valueOf(ch.socket().getRemoteSocketAddress());
+        long sent = 0;
+        try (ch; FrameLogReader reader = new FrameLogReader(dir)) {
+            ch.socket().setTcpNoDelay(true);
+            startDrain(ch);
+            for (FrameLogReader.Record r : reader.preambles()) reader.transfer(r, ch);
+            reader.seek(startMillis(reader));
+            System.out.println("[Replay] " + who + " connected");
+
+            long baseTs = -1, baseWall = 0, idleSince = System.currentTimeMillis();
+            while (true) {
+                FrameLogReader.Record r = reader.next();
+                if (r == null) {
+                    if (System.currentTimeMillis() - idleSince > IDLE_CLOSE_MS) break;
+                    Thread.sleep(TAIL_POLL_MS);
+                    continue;
+                }
+                idleSince = System.currentTimeMillis();
+                if (r.kind == FrameLog.PREAMBLE) continue;
+                if (baseTs < 0) {
+                    baseTs = r.tsMillis;
+                    baseWall = System.currentTimeMillis();
+                }
+                long due = baseWall + (long) ((r.tsMillis - baseTs) / speed);
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) Thread.sleep(wait);
+                reader.transfer(r, ch);
+                sent++;
+            }
+        } catch (IOException e) {
+            // viewer ngắt kết nối
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("[Replay] " + who + " done, records=" + sent);
+    }
+
+    private long startMillis(FrameLogReader reader) throws IOException {
+        List<FrameLogReader.IndexEntry> index = reader.index();
+        if (index.isEmpty()) return Long.MIN_VALUE;
+        long ref = fromSeconds < 0 ? index.get(index.size() - 1).tsMillis : index.get(0).tsMillis;
+        return ref + (long) (fromSeconds * 1000);
+    }
+
+    // Đọc bỏ dữ liệu client gửi lên (receipt của v1) để buffer nhận của socket không đầy
+    private static void startDrain(SocketChannel ch) {
+        Thread t = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocate(4096);
+            try {
+                while (ch.read(sink) >= 0) sink.clear();
+            } catch (IOException ignored) {
+            }
+        }, "replay-drain");
+        t.setDaemon(true);
+        t.start();
+    }
+}
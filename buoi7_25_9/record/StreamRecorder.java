@@ -0,0 +1,38 @@
+package buoi7_25_9.record;
+
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.PacketStream;
+
+import java.io.IOException;
+
+/**
+ * Ghi phiên khi server chạy luồng mã hoá chung (PacketStream): recorder là 1 Cursor như viewer,
+ * chép packet đã mã hoá sẵn vào FrameLog -> không encode thêm lần nào cho việc ghi.
+ * Kind của packet giữ nguyên (PacketStream và FrameLog dùng cùng giá trị PREAMBLE / KEY / DELTA).
+ */
+public final class StreamRecorder {
+
+    private StreamRecorder() {
+    }
+
+    public static void start(PacketStream stream, FrameLog log, LatencyHistogram timing) {
+        Thread t = new Thread(() -> {
+            try (PacketStream.Cursor cursor = stream.open("recorder")) {
+                while (true) {
+                    PacketStream.Packet p = cursor.await();
+                    long t0 = System.nanoTime();
+                    log.append(p.kind, (int) p.index, p.data, 0, p.data.length);
+                    timing.recordNanos(System.nanoTime() - t0);
+                    cursor.sent();
+                }
+            } catch (InterruptedException e) {
+                // dừng
+            } catch (IOException e) {
+                System.err.println("[Recorder] Stop recording " + log.dir() + ": " + e.getMessage());
+            }
+        }, "recorder");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("[Recorder] Recording to " + log.dir());
+    }
+}
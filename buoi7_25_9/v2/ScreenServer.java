@@ -1,37 +1,51 @@
 package buoi7_25_9.v2;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.RasterDiff;
+import buoi7_25_9.common.ServerMetrics;
+import buoi7_25_9.common.ViewerThreads;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+import buoi7_25_9.common.source.FrameSource;
+import buoi7_25_9.common.source.FrameSources;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Collections;
+import java.util.List;
 public class ScreenServer {
     private static final int BLOCK_SIZE = 16;
     private static final float FULL_FRAME_THRESHOLD = 0.35f;
-    private final AtomicReference<ScreenFrame> latestFrame = new AtomicReference<>();
-    private final ArrayList<ClientHandler> clients = new ArrayList<>();
+    private static final long HUB_REPORT_MS = 10_000;
+    private final FrameHub<ScreenFrame> frames = new FrameHub<>("v2");
+    private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>()); // add/remove từ nhiều thread
+    // timing từng stage + số session/bytes qua JMX (buoi7_25_9:type=Stage,server=v2,...)
+    private final ServerMetrics metrics = new ServerMetrics("v2");
+    private final LatencyHistogram captureTiming = metrics.stage(ServerMetrics.CAPTURE);
+    private final LatencyHistogram enqueueTiming = metrics.stage(ServerMetrics.ENQUEUE);
+    private final LatencyHistogram diffTiming = metrics.stage(ServerMetrics.DIFF);
+    private final LatencyHistogram encodeTiming = metrics.stage(ServerMetrics.ENCODE);
+    private final LatencyHistogram writeTiming = metrics.stage(ServerMetrics.WRITE);
     public static void main(String[] args) throws Exception {
         new ScreenServer().start();
     }
     public void start() throws Exception {
-        System.out.println("khoi dong thanh cong");
+        System.out.println("khoi dong thanh cong, " + ViewerThreads.mode() + " threads");
         new Thread(new CaptureTask()).start();
+        frames.startReporter(HUB_REPORT_MS);
         ServerSocket server = new ServerSocket(2345);
         while (true) {
             Socket clientSocket = server.accept();
             ClientHandler handler = new ClientHandler(clientSocket);
             clients.add(handler);
-            new Thread(handler).start();
+            ViewerThreads.start("client-" + clientSocket.getRemoteSocketAddress(), handler);
             System.out.println("co ket noi moi, tong so: " + clients.size());
         }
     }
@@ -47,11 +61,14 @@ public class ScreenServer {
         private int sequence = 0;
         public void run() {
             try {
-                Robot robot = new Robot();
-                Rectangle screenRect = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+                FrameSource source = FrameSources.fromSystemProperty();
                 while (true) {
-                    BufferedImage screen = robot.createScreenCapture(screenRect);
-                    latestFrame.set(new ScreenFrame(screen, ++sequence));
+                    long t0 = System.nanoTime();
+                    BufferedImage screen = source.capture();
+                    long t1 = System.nanoTime();
+                    frames.publish(new ScreenFrame(screen, ++sequence));
+                    captureTiming.recordNanos(t1 - t0);
+                    enqueueTiming.recordNanos(System.nanoTime() - t1);
                     Thread.sleep(50);
                 }
             } catch (Exception e) {
@@ -68,16 +85,16 @@ public class ScreenServer {
             this.socket = socket;
         }
         public void run() {
-            try (DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            metrics.sessionOpened();
+            try (FrameHub<ScreenFrame>.Subscriber sub = frames.subscribe("client-" + socket.getRemoteSocketAddress());
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
                  DataInputStream in = new DataInputStream(socket.getInputStream())) {
                 System.out.println("ip: " + socket.getInetAddress());
-                ScreenFrame firstFrame;
-                while ((firstFrame = latestFrame.get()) == null) {
-                    Thread.sleep(100);
-                }
+                ScreenFrame firstFrame = sub.await();
                 out.writeInt(firstFrame.rawImage.getWidth());
                 out.writeInt(firstFrame.rawImage.getHeight());
                 sendFullFrame(out, firstFrame);
+                sub.sent();
                 while (!socket.isClosed()) {
                     if (in.available() > 0) {
                         String command = in.readUTF();
@@ -88,10 +105,13 @@ public class ScreenServer {
                                     (int) (quality * 100) + "%");
                         }
                     }
-                    ScreenFrame currentFrame = latestFrame.get();
-                    if (currentFrame != null && currentFrame.sequence > lastSentSeq) {
+                    // Chặn tới khi CaptureTask publish frame mới (không còn sleep 30ms)
+                    ScreenFrame currentFrame = sub.await();
+                    if (currentFrame.sequence > lastSentSeq) {
+                        long tDiff = System.nanoTime();
                         Rectangle changeBox = findChangeBoundingBox(lastSentImage,
                                 currentFrame.rawImage);
+                        diffTiming.recordNanos(System.nanoTime() - tDiff);
                         if (changeBox != null) {
                             float changedAreaRatio = (float) (changeBox.width * changeBox.height) /
                                     (lastSentImage.getWidth() * lastSentImage.getHeight());
@@ -103,13 +123,13 @@ public class ScreenServer {
                         }
 // Nếu không có gì thay đổi (changeBox == null), không gửi gì cả.
                     }
-// Nghỉ một chút để giảm tải CPU.
-                    Thread.sleep(30);
+                    sub.sent();
                 }
             } catch (Exception e) {
                 System.out.println("disconnect, ip: " + socket.getInetAddress());
             } finally {
                 clients.remove(this);
+                metrics.sessionClosed();
                 try {
                     socket.close();
                 } catch (IOException e) { /* Bỏ qua */ }
@@ -117,12 +137,15 @@ public class ScreenServer {
             }
         }
         private void sendFullFrame(DataOutputStream out, ScreenFrame frame) throws IOException {
+            long t0 = System.nanoTime();
             byte[] compressedData = compressImage(frame.rawImage, quality);
+            long t1 = System.nanoTime();
             out.writeBoolean(true); // isFullFrame = true
             out.writeInt(frame.sequence);
             out.writeInt(compressedData.length);
             out.write(compressedData);
             out.flush();
+            sent(t0, t1, 1 + 4 + 4 + compressedData.length);
             this.lastSentImage = frame.rawImage;
             this.lastSentSeq = frame.sequence;
             if (frame.sequence % 30 == 0) {
@@ -133,7 +156,9 @@ public class ScreenServer {
                 IOException {
             BufferedImage deltaImage = frame.rawImage.getSubimage(rect.x, rect.y, rect.width,
                     rect.height);
+            long t0 = System.nanoTime();
             byte[] compressedData = compressImage(deltaImage, quality);
+            long t1 = System.nanoTime();
             out.writeBoolean(false); // isFullFrame = false
             out.writeInt(frame.sequence);
             out.writeInt(rect.x);
@@ -143,66 +168,33 @@ public class ScreenServer {
             out.writeInt(compressedData.length);
             out.write(compressedData);
             out.flush();
+            sent(t0, t1, 1 + 4 + 16 + 4 + compressedData.length);
             this.lastSentImage = frame.rawImage;
             this.lastSentSeq = frame.sequence;
             if (frame.sequence % 30 == 0) {
                 System.out.println("DELTA " + frame.sequence + " (" + compressedData.length / 1024 + " KB) cho " + socket.getInetAddress());
             }
         }
+        // t0 -> t1: encode, t1 -> bây giờ: write + flush
+        private void sent(long t0, long t1, long bytes) {
+            encodeTiming.recordNanos(t1 - t0);
+            writeTiming.recordNanos(System.nanoTime() - t1);
+            metrics.bytesSent(bytes);
+            metrics.frameSent();
+        }
     }
     /**
      * Nén một ảnh BufferedImage thành mảng byte JPEG với chất lượng cho trước.
+     * Writer/param/buffer nằm trong EncoderSession của thread gọi (mỗi ClientHandler 1 session).
      */
     private byte[] compressImage(BufferedImage image, float quality) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        param.setCompressionQuality(quality);
-        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
-            writer.setOutput(ios);
-            writer.write(null, new IIOImage(image, null, null), param);
-        } finally {
-            writer.dispose();
-        }
-        return baos.toByteArray();
+        return EncoderSession.current().encodeToArray(Codecs.JPEG, image, quality);
     }
     private Rectangle findChangeBoundingBox(BufferedImage oldImg, BufferedImage newImg) {
         if (oldImg == null) {
             return new Rectangle(newImg.getWidth(), newImg.getHeight());
         }
-        int width = newImg.getWidth();
-        int height = newImg.getHeight();
-        int minX = width, minY = height, maxX = 0, maxY = 0;
-        boolean changed = false;
-        for (int y = 0; y < height; y += BLOCK_SIZE) {
-            for (int x = 0; x < width; x += BLOCK_SIZE) {
-                if (!isBlockSame(oldImg, newImg, x, y)) {
-                    if (x < minX) minX = x;
-                    if (y < minY) minY = y;
-                    if (x + BLOCK_SIZE > maxX) maxX = x + BLOCK_SIZE;
-                    if (y + BLOCK_SIZE > maxY) maxY = y + BLOCK_SIZE;
-                    changed = true;
-                }
-            }
-        }
-        if (changed) {
-            maxX = Math.min(width, maxX);
-            maxY = Math.min(height, maxY);
-            return new Rectangle(minX, minY, maxX - minX, maxY - minY);
-        }
-        return null;
-    }
-    private boolean isBlockSame(BufferedImage oldImg, BufferedImage newImg, int x, int y) {
-        int endX = Math.min(x + BLOCK_SIZE, newImg.getWidth());
-        int endY = Math.min(y + BLOCK_SIZE, newImg.getHeight());
-        for (int j = y; j < endY; j++) {
-            for (int i = x; i < endX; i++) {
-                if (oldImg.getRGB(i, j) != newImg.getRGB(i, j)) {
-                    return false; // Tìm thấy pixel khác nhau.
-                }
-            }
-        }
-        return true;
+        // so từng dòng của block trên int[] (Arrays.equals, SIMD) thay vì getRGB từng pixel
+        return RasterDiff.changedBounds(RasterDiff.plane(oldImg), RasterDiff.plane(newImg), BLOCK_SIZE);
     }
 }
@@ -2,6 +2,10 @@ package buoi7_25_9.v2.patch2;
 
 
 
+import buoi7_25_9.common.MoveDetector;
+import buoi7_25_9.common.TileCache;
+import buoi7_25_9.common.codec.Codecs;
+
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
@@ -15,6 +19,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ScreenClient extends JFrame {
     private static final String HOST = "localhost";
     private static final int PORT = 2345;
+    private static final int TILE_CACHE = TileCache.requested(); // -Dscreen.tileCache=N tile, 0 = tắt
+    private static final boolean COPY_RECT = MoveDetector.requested(); // -Dscreen.copyRect=false để tắt
 
     private volatile BufferedImage canvas = null;
     private final AtomicInteger framesThisSecond = new AtomicInteger(0);
@@ -75,8 +81,11 @@ public class ScreenClient extends JFrame {
              DataInputStream in = new DataInputStream(socket.getInputStream());
              DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
+            if (TILE_CACHE > 0) out.writeUTF(TileCache.HELLO + TILE_CACHE);
+            if (COPY_RECT) out.writeUTF(MoveDetector.HELLO);
             int srcW = in.readInt();
             int srcH = in.readInt();
+            TileCache<BufferedImage> cache = null; // tạo khi nhận KEY có cache đầu tiên
 //            System.out.println("[Client] Root image size: " + srcW + "x" + srcH);
 
             long lastQualityCheck = System.currentTimeMillis();
@@ -84,7 +93,9 @@ public class ScreenClient extends JFrame {
             while (!socket.isClosed()) {
                 long t0 = System.currentTimeMillis();
 
-                boolean isFull = in.readBoolean();
+                int type = in.readByte(); // 1 = KEY, 0 = DELTA, 2 / 3 = KEY / DELTA có cache tile, DELTA + 4 = có copy-rect
+                boolean isFull = type == 1 || type == 2;
+                boolean cached = (type & 3) >= 2;
                 int seq = in.readInt();
                 int w = in.readInt();
                 int h = in.readInt();
@@ -92,11 +103,25 @@ public class ScreenClient extends JFrame {
                 if (isFull) {
                     int len = in.readInt();
                     byte[] buf = in.readNBytes(len);
+                    long[] hashes = new long[0];
+                    int tileW = 0, tileH = 0;
+                    if (cached) {
+                        int capacity = in.readInt();
+                        tileW = in.readInt();
+                        tileH = in.readInt();
+                        hashes = new long[in.readInt()];
+                        for (int i = 0; i < hashes.length; i++) hashes[i] = in.readLong();
+                        if (cache == null || cache.capacity() != capacity) cache = new TileCache<>(capacity);
+                    }
                     BufferedImage img = ImageIO.read(new ByteArrayInputStream(buf));
                     if (img != null) {
                         canvas = ensureRGB(img);
+                        if (cached) TileCache.putKeyTiles(cache, canvas, tileW, tileH, hashes);
                     }
                 } else {
+                    // copy-rect: [x,y,w,h,dx,dy] mỗi record, blit trước khi vẽ tile
+                    int[] moves = new int[(type & 4) != 0 ? 6 * in.readInt() : 0];
+                    for (int i = 0; i < moves.length; i++) moves[i] = in.readInt();
                     int tileW = in.readInt();
                     int tileH = in.readInt();
                     int n = in.readInt();
@@ -109,14 +134,25 @@ public class ScreenClient extends JFrame {
                     }
 
                     Graphics2D g2 = canvas.createGraphics();
+                    for (int i = 0; i < moves.length; i += 6) {
+                        int dx = moves[i + 4], dy = moves[i + 5];
+                        g2.copyArea(moves[i] - dx, moves[i + 1] - dy, moves[i + 2], moves[i + 3], dx, dy);
+                    }
                     for (int i = 0; i < n; i++) {
                         int x = in.readInt();
                         int y = in.readInt();
                         int ww = in.readInt();
                         int hh = in.readInt();
                         int len = in.readInt();
-                        byte[] buf = in.readNBytes(len);
-                        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(buf));
+                        byte[] buf = len == TileCache.CACHED ? null : in.readNBytes(len);
+                        long hash = cached ? in.readLong() : TileCache.NO_HASH;
+                        BufferedImage tile;
+                        if (buf == null) {
+                            tile = cache != null ? cache.touch(hash) : null; // server đã biết chắc tile còn trong cache
+                        } else {
+                            tile = Codecs.decode(buf, 0, len); // JPEG hoặc PALETTE (lossless), theo magic
+                            if (cache != null && hash != TileCache.NO_HASH) cache.put(hash, tile);
+                        }
                         if (tile != null) {
                             g2.drawImage(tile, x, y, null);
                         }
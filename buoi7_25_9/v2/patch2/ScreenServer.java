@@ -1,11 +1,26 @@
 package buoi7_25_9.v2.patch2;
 
+import buoi7_25_9.common.ClientHello;
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.ImageOps;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.MoveDetector;
+import buoi7_25_9.common.PacketStream;
+import buoi7_25_9.common.RasterDiff;
+import buoi7_25_9.common.ServerMetrics;
+import buoi7_25_9.common.StreamSender;
+import buoi7_25_9.common.TileCache;
+import buoi7_25_9.common.TileHashes;
+import buoi7_25_9.common.ViewerThreads;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+import buoi7_25_9.common.codec.TileClassifier;
+import buoi7_25_9.common.source.FrameSource;
+import buoi7_25_9.common.source.FrameSources;
+import buoi7_25_9.record.FrameLog;
+import buoi7_25_9.record.PacketRecorder;
+import buoi7_25_9.record.StreamRecorder;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
@@ -13,7 +28,6 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
 
 public class ScreenServer {
     //const parameters
@@ -22,14 +36,33 @@ public class ScreenServer {
     private static final int GOP = 10;               // 1 key + (GOP-1) delta
     private static final int TILE_W = 96, TILE_H = 96;
     private static final float FULL_FRAME_THRESHOLD = 0.60f; // nếu >60% tile đổi -> gửi key
+    private static final float MOVE_MIN_CHANGED = 0.20f;     // từ 20% tile đổi mới dò cuộn / dịch (MoveDetector)
     private static final int DIFF_THR = 0;           // 0 = so pixel tuyệt đối; >0 = cho phép sai khác nhỏ
     private static final float Q_INIT = 0.70f, Q_MIN = 0.30f, Q_MAX = 0.90f;
     private static final double SCALE_INIT = 1.0, SCALE_MIN = 0.50, SCALE_MAX = 1.0;
     private static final long BAD_MS = 60;           // encode+flush > 60ms coi là xấu
+    private static final long HUB_REPORT_MS = 10_000; // in độ trễ wake->send của từng client
+    // "viewer": mỗi client tự diff/encode + ABR riêng; "shared": diff/encode 1 lần (Q_INIT), mọi client dùng chung packet
+    private static final boolean SHARED_ENCODE = "shared".equalsIgnoreCase(System.getProperty("screen.encode", "viewer"));
+    // packet đầu = [w][h]; sau đó packet[0] = 1 KEY / 0 DELTA, 2 / 3 = KEY / DELTA có cache tile (xem sendKey / sendDelta),
+    // DELTA + 4 (4 / 7) = có danh sách copy-rect
+    private static final PacketStream.Classifier PACKET_KIND = (i, b, n) ->
+            i == 0 ? PacketStream.PREAMBLE : b[0] == 1 || b[0] == 2 ? PacketStream.KEY : PacketStream.DELTA;
 
     // state
-    private final AtomicReference<ScreenFrame> latestFrame = new AtomicReference<>();
+    private final FrameHub<ScreenFrame> frames = new FrameHub<>("patch2");
     private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    private PacketStream stream; // != null: chế độ shared
+
+    // timing từng stage + số session/bytes, xem qua JMX (buoi7_25_9:type=Stage,server=patch2,...)
+    private final ServerMetrics metrics = new ServerMetrics("patch2");
+    private final LatencyHistogram captureTiming = metrics.stage(ServerMetrics.CAPTURE);
+    private final LatencyHistogram enqueueTiming = metrics.stage(ServerMetrics.ENQUEUE);
+    private final LatencyHistogram scaleTiming = metrics.stage(ServerMetrics.SCALE);
+    private final LatencyHistogram diffTiming = metrics.stage(ServerMetrics.DIFF);
+    private final LatencyHistogram hashTiming = metrics.stage(ServerMetrics.HASH);
+    private final LatencyHistogram encodeTiming = metrics.stage(ServerMetrics.ENCODE);
+    private final LatencyHistogram writeTiming = metrics.stage(ServerMetrics.WRITE);
 
     public static void main(String[] args) throws Exception {
         new ScreenServer().start();
@@ -38,25 +71,58 @@ public class ScreenServer {
     public void start() throws Exception {
         System.out.println("[Server] Starting server");
         new Thread(new CaptureTask(), "capture").start();
+        frames.startReporter(HUB_REPORT_MS);
+        if (SHARED_ENCODE) startSharedEncoder();
+        startRecorder();
 
         try (ServerSocket server = new ServerSocket(PORT)) {
-            System.out.println("[Server] Listening on " + PORT);
+            System.out.println("[Server] Listening on " + PORT + (SHARED_ENCODE ? " (shared encode)" : "")
+                    + ", " + ViewerThreads.mode() + " client threads");
             while (true) {
                 Socket clientSocket = server.accept();
+                if (stream != null) {
+                    ViewerThreads.start("sender-" + clientSocket.getRemoteSocketAddress(), new StreamSender(clientSocket, stream, metrics));
+                    continue;
+                }
                 ClientHandler handler = new ClientHandler(clientSocket);
                 clients.add(handler);
-                new Thread(handler, "sender-" + clientSocket.getRemoteSocketAddress()).start();
+                ViewerThreads.start("sender-" + clientSocket.getRemoteSocketAddress(), handler);
                 System.out.println("[Server] New connection, connection count: " + clients.size());
             }
         }
     }
 
+    // -Dscreen.encode=shared: 1 ClientHandler duy nhất encode vào PacketStream, client chỉ nhận packet dùng chung
+    private void startSharedEncoder() {
+        stream = new PacketStream("patch2");
+        stream.startReporter(HUB_REPORT_MS);
+        Thread t = new Thread(new ClientHandler(stream.writer(PACKET_KIND)), "shared-encoder");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // -Dscreen.record: shared -> ghi thẳng packet của stream; không thì thêm 1 ClientHandler ghi vào log thay cho socket
+    private void startRecorder() throws IOException {
+        FrameLog log = FrameLog.fromSystemProperty(FrameLog.PROTOCOL_PATCH2);
+        if (log == null) return;
+        if (stream != null) {
+            StreamRecorder.start(stream, log, metrics.stage(ServerMetrics.RECORD));
+            return;
+        }
+        Thread t = new Thread(new ClientHandler(new PacketRecorder(log, PACKET_KIND)), "recorder");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("[Server] Recording to " + log.dir());
+    }
+
     static class ScreenFrame {
         final BufferedImage rawImage; // TYPE_INT_RGB
         final int sequence;
-        ScreenFrame(BufferedImage rawImage, int sequence) {
+        final TileHashes tiles;       // hash từng tile của rawImage, tính 1 lần ở CaptureTask (null: -Dscreen.diff=pixel)
+        ScreenFrame(BufferedImage rawImage, int sequence, TileHashes tiles) {
             this.rawImage = rawImage;
             this.sequence = sequence;
+            this.tiles = tiles;
         }
     }
 
@@ -65,12 +131,12 @@ public class ScreenServer {
         private int sequence = 0;
         public void run() {
             try {
-                Robot robot = new Robot();
-                Rectangle screenRect = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+                FrameSource source = FrameSources.fromSystemProperty();
                 long frameIntervalNs = 1_000_000_000L / Math.max(1, TARGET_FPS);
                 while (true) {
                     long t0 = System.nanoTime();
-                    BufferedImage screen = robot.createScreenCapture(screenRect);
+                    BufferedImage screen = source.capture();
+                    captureTiming.recordNanos(System.nanoTime() - t0);
                     // Ép RGB (JPEG no need alpha color)
                     if (screen.getType() != BufferedImage.TYPE_INT_RGB) {
                         BufferedImage rgb = new BufferedImage(screen.getWidth(), screen.getHeight(), BufferedImage.TYPE_INT_RGB);
@@ -79,7 +145,12 @@ public class ScreenServer {
                         g.dispose();
                         screen = rgb;
                     }
-                    latestFrame.set(new ScreenFrame(screen, ++sequence));
+                    long tHash = System.nanoTime();
+                    TileHashes tiles = TileHashes.ENABLED ? TileHashes.of(screen, TILE_W, TILE_H) : null;
+                    hashTiming.recordNanos(System.nanoTime() - tHash);
+                    long tPub = System.nanoTime();
+                    frames.publish(new ScreenFrame(screen, ++sequence, tiles));
+                    enqueueTiming.recordNanos(System.nanoTime() - tPub);
 
                     long dt = System.nanoTime() - t0;
                     long sleep = frameIntervalNs - dt;
@@ -96,25 +167,44 @@ public class ScreenServer {
 
     // Send data for client : GOP ((group of pictúe) + delta tile
     class ClientHandler implements Runnable {
-        private final Socket socket;
+        private final Socket socket;        // null: encoder dùng chung / ghi phiên, ghi vào sink thay cho socket
+        private final OutputStream sink;
         private float quality = Q_INIT;
         private double scale = SCALE_INIT;
         private int lastSentSeq = -1;
         private int framesSinceKey = 0;
         private BufferedImage lastSentImage = null; // scaled reference
+        private long[] sentHashes = null;           // hash tile đã gửi khi scale 1 (null: diff pixel với lastSentImage)
+        private TileCache<Boolean> clientTiles;     // bản sao cache tile của client (null: client không bật cache)
+        private int pendingCache = -1;              // capacity client vừa xin, bật ở KEY kế tiếp
+        private boolean copyRect;                   // client nhận record copy-rect trong DELTA
 
         ClientHandler(Socket socket) {
             this.socket = socket;
+            this.sink = null;
+        }
+
+        // Ghi packet vào sink (PacketStream / PacketRecorder): chất lượng cố định Q_INIT / scale 1 (không ABR),
+        // không tính vào session/bytes của metrics (viewer của sink tự tính)
+        ClientHandler(OutputStream sink) {
+            this.socket = null;
+            this.sink = sink;
         }
 
         @Override
         public void run() {
-            System.out.println("[Client] " + socket.getRemoteSocketAddress());
-            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
-                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            boolean live = socket != null;
+            String name = live ? "sender-" + socket.getRemoteSocketAddress() : Thread.currentThread().getName();
+            if (live) {
+                System.out.println("[Client] " + socket.getRemoteSocketAddress());
+                metrics.sessionOpened();
+            }
+            try (FrameHub<ScreenFrame>.Subscriber sub = frames.subscribe(name);
+                 DataOutputStream out = new DataOutputStream(live ? new BufferedOutputStream(socket.getOutputStream(), 64 * 1024) : sink);
+                 DataInputStream in = live ? new DataInputStream(new BufferedInputStream(socket.getInputStream())) : null) {
+                ClientHello hello = in != null ? new ClientHello(in, null) : null; // patch2 không gửi captureNanos
 
-                ScreenFrame first;
-                while ((first = latestFrame.get()) == null) Thread.sleep(20);
+                ScreenFrame first = sub.await();
 
                 // raw frame size receive from server to client
                 out.writeInt(first.rawImage.getWidth());
@@ -123,8 +213,9 @@ public class ScreenServer {
 
                 // send first key frame
                 sendKey(out, first);
+                sub.sent();
 
-                while (!socket.isClosed()) {
+                while (!live || !socket.isClosed()) {
                     // receive quality report from client
 //                    if (in.available() > 0) {
 //                        String cmd = in.readUTF();
@@ -137,14 +228,17 @@ public class ScreenServer {
 //                        }
 //                    }
 
-                    ScreenFrame cur = latestFrame.get();
-                    if (cur == null || cur.sequence <= lastSentSeq) {
-                        Thread.sleep(2);
-                        continue;
+                    // block until CaptureTask publishes a newer frame (no sleep polling)
+                    ScreenFrame cur = sub.await();
+                    if (hello != null) {
+                        hello.poll();
+                        int cap = hello.takeCacheRequest();
+                        if (cap > 0) pendingCache = cap;
+                        copyRect = hello.copyRect();
                     }
 
                     boolean forceKey = framesSinceKey >= (GOP - 1)
-                            || lastSentImage == null;
+                            || lastSentImage == null || pendingCache > 0;
 
                     long tStart = System.nanoTime();
                     if (forceKey) {
@@ -153,74 +247,178 @@ public class ScreenServer {
                     } else {
 
                         // compare with scaled image for tile map
-                        BufferedImage scaled = resizeTo(cur.rawImage, scale);
-                        List<Rect> tiles = diffTiles(lastSentImage, scaled, TILE_W, TILE_H, DIFF_THR);
+                        long t0 = System.nanoTime();
+                        BufferedImage scaled = ImageOps.resize(cur.rawImage, scale);
+                        long t1 = System.nanoTime();
+                        // scale 1: so hash tile của CaptureTask thay cho diff pixel với reference riêng
+                        boolean hashed = scaled == cur.rawImage && sentHashes != null;
+                        boolean[] dirty = hashed ? cur.tiles.dirty(sentHashes) : null;
+                        List<Rect> tiles = hashed
+                                ? toRects(dirty, scaled, TILE_W, TILE_H, cur.tiles)
+                                : diffTiles(lastSentImage, scaled, TILE_W, TILE_H, DIFF_THR);
 
                         int totalTiles = ((scaled.getWidth() + TILE_W - 1) / TILE_W)
                                 * ((scaled.getHeight() + TILE_H - 1) / TILE_H);
 
+                        // tiles the client still has cached cost a few bytes -> only the rest count toward the KEY threshold
+                        int toEncode = countToEncode(tiles);
+                        // scrolled / moved region vs what the client shows -> 1 copy-rect record,
+                        // only the newly exposed strip and tiles cut by the region's edges are encoded
+                        List<MoveDetector.Move> moves = Collections.emptyList();
+                        if (copyRect && hashed && toEncode >= totalTiles * MOVE_MIN_CHANGED) {
+                            MoveDetector.Move m = MoveDetector.detect(lastSentImage, scaled);
+                            if (m != null) {
+                                moves = Collections.singletonList(m);
+                                // strip grid doesn't match the hash grid -> no tile cache for this frame (NO_HASH)
+                                int tw = m.gridW(TILE_W, scaled.getWidth()), th = m.gridH(TILE_H, scaled.getHeight());
+                                tiles = toRects(m.dirtyAfter(lastSentImage, scaled, dirty, TILE_W, TILE_H, tw, th), scaled, tw, th, null);
+                                toEncode = countToEncode(tiles);
+                                totalTiles = ((scaled.getWidth() + tw - 1) / tw) * ((scaled.getHeight() + th - 1) / th);
+                            }
+                        }
+                        scaleTiming.recordNanos(t1 - t0);
+                        diffTiming.recordNanos(System.nanoTime() - t1);
+
                         //if tile changed > threshold --> send whole key frame
-                        if ((float) tiles.size() / Math.max(1, totalTiles) > FULL_FRAME_THRESHOLD) {
+                        if ((float) toEncode / Math.max(1, totalTiles) > FULL_FRAME_THRESHOLD) {
                             sendKey(out, cur);
                             framesSinceKey = 0;
                         } else {
-                            sendDelta(out, cur.sequence, scaled.getWidth(), scaled.getHeight(), tiles, scaled);
+                            sendDelta(out, cur.sequence, scaled.getWidth(), scaled.getHeight(), moves, tiles, scaled);
                             lastSentImage = scaled;
+                            sentHashes = hashed ? cur.tiles.copy() : null; // mọi tile khác hash đã gửi -> khớp frame này
                             framesSinceKey++;
                         }
                     }
-                    long sendMs = (System.nanoTime() - tStart) / 1_000_000L;
-                    adaptABR(sendMs);
+                    sub.sent();
+                    if (live) {
+                        long sendMs = (System.nanoTime() - tStart) / 1_000_000L;
+                        adaptABR(sendMs);
+                    }
 
                 }
             } catch (Exception e) {
-                System.out.println("[Client] disconnect " + socket.getRemoteSocketAddress());
+                if (live) System.out.println("[Client] disconnect " + socket.getRemoteSocketAddress());
+                else System.err.println("[Server] " + Thread.currentThread().getName() + " stopped: " + e.getMessage());
             } finally {
-                clients.remove(this);
-                try { socket.close(); } catch (IOException ignore) {}
-                System.out.println("[Server] Tổng client: " + clients.size());
+                if (live) {
+                    clients.remove(this);
+                    metrics.sessionClosed();
+                    try { socket.close(); } catch (IOException ignore) {}
+                    System.out.println("[Server] Tổng client: " + clients.size());
+                }
             }
         }
 
         private void sendKey(DataOutputStream out, ScreenFrame frame) throws IOException {
-            BufferedImage scaled = resizeTo(frame.rawImage, scale);
+            long t0 = System.nanoTime();
+            BufferedImage scaled = ImageOps.resize(frame.rawImage, scale);
+            long t1 = System.nanoTime();
             byte[] jpeg = encodeJpeg(scaled, quality);
-
-
-            out.writeBoolean(true);
+            long t2 = System.nanoTime();
+            scaleTiming.recordNanos(t1 - t0);
+            encodeTiming.recordNanos(t2 - t1);
+
+            if (pendingCache > 0) {
+                clientTiles = new TileCache<>(pendingCache); // client creates the same cache on this KEY
+                System.out.println("[TileCache] " + socket.getRemoteSocketAddress() + " capacity " + pendingCache);
+                pendingCache = -1;
+            }
+            TileHashes hashes = scaled == frame.rawImage ? frame.tiles : null;
+            // type 1 = KEY (writeBoolean(true) of old servers), 2 = KEY with tile cache:
+            // + [int capacity][int tw][int th][int n] n x [long hash], both sides put the KEY's tiles in order
+            out.writeByte(clientTiles != null ? 2 : 1);
             out.writeInt(frame.sequence);
             out.writeInt(scaled.getWidth());
             out.writeInt(scaled.getHeight());
             out.writeInt(jpeg.length);
             out.write(jpeg);
+            long bytes = 1 + 4 * 4 + jpeg.length;
+            if (clientTiles != null) {
+                int n = hashes != null ? hashes.tiles() : 0;
+                out.writeInt(clientTiles.capacity());
+                out.writeInt(TILE_W);
+                out.writeInt(TILE_H);
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(hashes.hash(i));
+                    clientTiles.put(hashes.hash(i), Boolean.TRUE);
+                }
+                bytes += 4 * 4 + 8L * n;
+            }
             out.flush();
+            writeTiming.recordNanos(System.nanoTime() - t2);
+            if (socket != null) {
+                metrics.bytesSent(bytes);
+                metrics.frameSent();
+            }
 
             lastSentImage = scaled;
             lastSentSeq = frame.sequence;
+            sentHashes = scaled == frame.rawImage && frame.tiles != null ? frame.tiles.copy() : null;
         }
 
-        private void sendDelta(DataOutputStream out, int seq, int w, int h, List<Rect> tiles, BufferedImage scaled) throws IOException {
-
-            out.writeBoolean(false);
+        private void sendDelta(DataOutputStream out, int seq, int w, int h, List<MoveDetector.Move> moves,
+                               List<Rect> tiles, BufferedImage scaled) throws IOException {
+            // encode và ghi xen kẽ từng tile -> cộng dồn thời gian encode, phần còn lại là write
+            long tStart = System.nanoTime(), encodeNs = 0, bytes = 1 + 4 * 7;
+            // type 0 = DELTA, 3 = DELTA with tile cache: each tile + [long hash]; len CACHED -> client draws it from cache
+            // + 4 = copy-rect list after [h]: [int m] m x [int x][int y][int w][int h][int dx][int dy],
+            // client blits [x,y,w,h] from (x-dx, y-dy) of its canvas in order, before drawing the tiles
+            out.writeByte((clientTiles != null ? 3 : 0) | (copyRect ? 4 : 0));
             out.writeInt(seq);
             out.writeInt(w);
             out.writeInt(h);
+            if (copyRect) {
+                out.writeInt(moves.size());
+                for (MoveDetector.Move m : moves) {
+                    out.writeInt(m.x);
+                    out.writeInt(m.y);
+                    out.writeInt(m.w);
+                    out.writeInt(m.h);
+                    out.writeInt(m.dx);
+                    out.writeInt(m.dy);
+                }
+                bytes += 4 + 4 * 6L * moves.size();
+            }
             out.writeInt(TILE_W);
             out.writeInt(TILE_H);
             out.writeInt(tiles.size());
 
             for (Rect r : tiles) {
-                BufferedImage sub = scaled.getSubimage(r.x, r.y, r.w, r.h);
-                byte[] data = encodeJpeg(sub, quality);
-
                 out.writeInt(r.x);
                 out.writeInt(r.y);
                 out.writeInt(r.w);
                 out.writeInt(r.h);
+                boolean cacheable = clientTiles != null && r.hash != TileCache.NO_HASH;
+                if (cacheable && clientTiles.touch(r.hash) != null) {
+                    out.writeInt(TileCache.CACHED);
+                    out.writeLong(r.hash);
+                    bytes += 4 * 5 + 8;
+                    continue;
+                }
+                if (cacheable) clientTiles.put(r.hash, Boolean.TRUE);
+                BufferedImage sub = scaled.getSubimage(r.x, r.y, r.w, r.h);
+                long t0 = System.nanoTime();
+                // chữ / UI -> PALETTE lossless, ảnh -> JPEG (client nhận diện qua magic)
+                byte[] data = TileClassifier.choose(sub).encode(quality);
+                encodeNs += System.nanoTime() - t0;
+                bytes += 4 * 5 + data.length;
+
                 out.writeInt(data.length);
                 out.write(data);
+                if (clientTiles != null) {
+                    out.writeLong(r.hash);
+                    bytes += 8;
+                }
             }
             out.flush();
+            encodeTiming.recordNanos(encodeNs);
+            writeTiming.recordNanos(System.nanoTime() - tStart - encodeNs);
+            if (socket != null) {
+                metrics.bytesSent(bytes);
+                metrics.frameSent();
+            }
             lastSentSeq = seq;
 
             if (seq % 30 == 0) {
@@ -249,89 +447,42 @@ public class ScreenServer {
 
 //        private float clamp(float v, float lo, float hi) { return Math.max(lo, Math.min(hi, v)); }
 
-        private BufferedImage resizeTo(BufferedImage src, double s) {
-            if (s == 1.0) return src;
-            int w = Math.max(1, (int) Math.round(src.getWidth() * s));
-            int h = Math.max(1, (int) Math.round(src.getHeight() * s));
-            BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2 = dst.createGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g2.drawImage(src, 0, 0, w, h, null);
-            g2.dispose();
-            return dst;
+        private int countToEncode(List<Rect> tiles) {
+            int n = 0;
+            for (Rect r : tiles) if (clientTiles == null || !clientTiles.contains(r.hash)) n++;
+            return n;
         }
 
         private List<Rect> diffTiles(BufferedImage a, BufferedImage b, int tw, int th, int thr) {
+            // no reference image or different size -> dirtyTiles marks all tiles changed
+            boolean[] dirty = RasterDiff.dirtyTiles(a == null ? null : RasterDiff.plane(a), RasterDiff.plane(b), tw, th, thr);
+            return toRects(dirty, b, tw, th, null);
+        }
+
+        // hashes: tile hashes of b (null -> NO_HASH, never cached)
+        private List<Rect> toRects(boolean[] dirty, BufferedImage b, int tw, int th, TileHashes hashes) {
             ArrayList<Rect> res = new ArrayList<>();
-            if (a == null || a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
-
-                // if no reference image or different size -> all tiles changed
-                for (int y = 0; y < b.getHeight(); y += th) {
-                    for (int x = 0; x < b.getWidth(); x += tw) {
-                        int ww = Math.min(tw, b.getWidth() - x);
-                        int hh = Math.min(th, b.getHeight() - y);
-                        res.add(new Rect(x, y, ww, hh));
-                    }
-                }
-                return res;
-            }
             int H = b.getHeight(), W = b.getWidth();
-            for (int y = 0; y < H; y += th) {
-                for (int x = 0; x < W; x += tw) {
-                    int ww = Math.min(tw, W - x);
-                    int hh = Math.min(th, H - y);
-                    if (!isBlockSame(a, b, x, y, ww, hh, thr)) {
-                        res.add(new Rect(x, y, ww, hh));
-                    }
-                }
+            int nx = (W + tw - 1) / tw;
+            for (int i = 0; i < dirty.length; i++) {
+                if (!dirty[i]) continue;
+                int x = (i % nx) * tw, y = (i / nx) * th;
+                res.add(new Rect(x, y, Math.min(tw, W - x), Math.min(th, H - y),
+                        hashes != null ? hashes.hash(i) : TileCache.NO_HASH));
             }
             return res;
         }
 
-        private boolean isBlockSame(BufferedImage oldImg, BufferedImage newImg, int x, int y, int w, int h, int thr) {
-            // compare each pixel in block, allowing small difference if thr>0
-            if (thr <= 0) {
-                for (int j = 0; j < h; j++) {
-                    for (int i = 0; i < w; i++) {
-                        if (oldImg.getRGB(x + i, y + j) != newImg.getRGB(x + i, y + j)) return false;
-                    }
-                }
-                return true;
-            } else {
-                long sum = 0; int cnt = 0;
-                for (int j = 0; j < h; j++) {
-                    for (int i = 0; i < w; i++) {
-                        int a = oldImg.getRGB(x + i, y + j);
-                        int b = newImg.getRGB(x + i, y + j);
-                        int dr = Math.abs(((a>>16)&255) - ((b>>16)&255));
-                        int dg = Math.abs(((a>>8)&255)  - ((b>>8)&255));
-                        int db = Math.abs((a&255)        - (b&255));
-                        sum += (dr+dg+db)/3; cnt++;
-                    }
-                }
-                return (sum / Math.max(1, cnt)) <= thr;
-            }
-        }
-
+        // reuse this sender thread's writer/param/buffer instead of building them per tile
         private byte[] encodeJpeg(BufferedImage image, float q) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
-            ImageWriteParam param = writer.getDefaultWriteParam();
-            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            param.setCompressionQuality(q);
-            try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
-                writer.setOutput(ios);
-                writer.write(null, new IIOImage(image, null, null), param);
-            } finally {
-                writer.dispose();
-            }
-            return baos.toByteArray();
+            return EncoderSession.current().encodeToArray(Codecs.JPEG, image, q);
         }
     }
 
     static class Rect {
         final int x, y, w, h;
-        Rect(int x, int y, int w, int h) { this.x = x; this.y = y; this.w = w; this.h = h; }
+        final long hash; // TileCache.NO_HASH when not diffed by hash
+        Rect(int x, int y, int w, int h, long hash) { this.x = x; this.y = y; this.w = w; this.h = h; this.hash = hash; }
     }
 }
 
@@ -1,20 +1,32 @@
 package buoi7_25_9.v3;
 
+import buoi7_25_9.common.MoveDetector;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.ReceiptWriter;
+import buoi7_25_9.common.TileCache;
+import buoi7_25_9.common.codec.Codecs;
+
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.net.Socket;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ScreenClient extends JFrame {
     private static final String HOST = "localhost";
     private static final int PORT = 2345;
+    private static final String STREAM = System.getProperty("screen.stream"); // id luồng (-Dscreen.streams của server)
+    private static final int TILE_CACHE = TileCache.requested();               // -Dscreen.tileCache=N tile, 0 = tắt
+    private static final boolean COPY_RECT = MoveDetector.requested();         // -Dscreen.copyRect=false để tắt
+    private static final long NO_CAPTURE = Long.MIN_VALUE;                     // frame không có cờ 8 -> không gửi Receipt
 
     private final DisplayPanel display = new DisplayPanel();
     private final JLabel fpsLabel = new JLabel("FPS: --");
     private final AtomicInteger framesThisSecond = new AtomicInteger(0);
+    private volatile ReceiptWriter receipts;   // sau lệnh bắt tay luồng điều khiển chỉ còn Receipt (receiver + EDT cùng gửi, không chặn)
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(ScreenClient::new);
@@ -43,23 +55,49 @@ public class ScreenClient extends JFrame {
     private void receiveLoop() {
         try (Socket soc = new Socket(HOST, PORT);
              DataInputStream in = new DataInputStream(soc.getInputStream())) {
+            DataOutputStream control = new DataOutputStream(soc.getOutputStream());
+            if (STREAM != null) control.writeUTF("STREAM:" + STREAM);
+            if (TILE_CACHE > 0) control.writeUTF(TileCache.HELLO + TILE_CACHE);
+            if (COPY_RECT) control.writeUTF(MoveDetector.HELLO);
+            control.writeUTF(Receipt.HELLO); // luôn cuối cùng: sau lệnh này chỉ còn Receipt
+            receipts = new ReceiptWriter(control, "receipt-writer");
 
             BufferedImage canvas = null; // khung hiện tại
+            TileCache<BufferedImage> cache = null; // tạo khi nhận KEY có cache đầu tiên
             while (true) {
-                byte frameType = in.readByte(); // 0=KEY, 1=DELTA
+                // 0=KEY, 1=DELTA, 2/3 = KEY/DELTA có cache tile, DELTA + 4 = có copy-rect, + 8 = có captureNanos
+                byte frameType = in.readByte();
+                boolean cached = (frameType & 2) != 0;
                 int seq = in.readInt();
                 int w = in.readShort() & 0xFFFF;
                 int h = in.readShort() & 0xFFFF;
                 float q = in.readFloat();
+                long captureNanos = (frameType & 8) != 0 ? in.readLong() : NO_CAPTURE;
 
-                if (frameType == 0) {
+                if ((frameType & 1) == 0) {
                     int len = in.readInt();
                     byte[] buf = in.readNBytes(len);
+                    long[] hashes = new long[0];
+                    int tileW = 0, tileH = 0;
+                    if (cached) {
+                        int capacity = in.readInt();
+                        tileW = in.readShort() & 0xFFFF;
+                        tileH = in.readShort() & 0xFFFF;
+                        hashes = new long[in.readInt()];
+                        for (int i = 0; i < hashes.length; i++) hashes[i] = in.readLong();
+                        if (cache == null || cache.capacity() != capacity) cache = new TileCache<>(capacity);
+                    }
+                    sendReceipt(Receipt.RECEIVED, seq, captureNanos);
                     BufferedImage img = ImageIO.read(new java.io.ByteArrayInputStream(buf));
                     if (img == null) continue;
                     canvas = ensureType(img, BufferedImage.TYPE_INT_RGB);
-                    display.setFrame(canvas);
+                    if (cached) TileCache.putKeyTiles(cache, canvas, tileW, tileH, hashes);
+                    sendReceipt(Receipt.DECODED, seq, captureNanos);
+                    display.setFrame(canvas, seq, captureNanos);
                 } else {
+                    // copy-rect: [x,y,w,h,dx,dy] mỗi record, blit trước khi vẽ tile
+                    short[] moves = new short[(frameType & 4) != 0 ? 6 * (in.readShort() & 0xFFFF) : 0];
+                    for (int i = 0; i < moves.length; i++) moves[i] = in.readShort();
                     int tileW = in.readShort() & 0xFFFF;
                     int tileH = in.readShort() & 0xFFFF;
                     int n = in.readInt();
@@ -71,27 +109,50 @@ public class ScreenClient extends JFrame {
                         g2.dispose();
                     }
                     Graphics2D g2 = canvas.createGraphics();
+                    for (int i = 0; i < moves.length; i += 6) {
+                        int dx = moves[i + 4], dy = moves[i + 5];
+                        g2.copyArea(moves[i] - dx, moves[i + 1] - dy, moves[i + 2], moves[i + 3], dx, dy);
+                    }
                     for (int i = 0; i < n; i++) {
                         int tx = in.readShort() & 0xFFFF;
                         int ty = in.readShort() & 0xFFFF;
                         int len = in.readInt();
-                        byte[] buf = in.readNBytes(len);
-                        BufferedImage tile = ImageIO.read(new java.io.ByteArrayInputStream(buf));
+                        byte[] buf = len == TileCache.CACHED ? null : in.readNBytes(len);
+                        long hash = cached ? in.readLong() : TileCache.NO_HASH;
+                        BufferedImage tile;
+                        if (buf == null) {
+                            tile = cache != null ? cache.touch(hash) : null; // server đã biết chắc tile còn trong cache
+                        } else {
+                            tile = Codecs.decode(buf, 0, len); // JPEG hoặc PALETTE (lossless), theo magic
+                            if (cache != null && hash != TileCache.NO_HASH) cache.put(hash, tile);
+                        }
                         if (tile != null) {
                             int x = tx * tileW, y = ty * tileH;
                             g2.drawImage(tile, x, y, null);
                         }
                     }
                     g2.dispose();
-                    display.setFrame(canvas);
+                    // tile đọc xen với giải mã -> received / decoded gửi cùng lúc sau tile cuối
+                    sendReceipt(Receipt.RECEIVED, seq, captureNanos);
+                    sendReceipt(Receipt.DECODED, seq, captureNanos);
+                    display.setFrame(canvas, seq, captureNanos);
                 }
                 framesThisSecond.incrementAndGet();
             }
         } catch (Exception e) {
             // e.printStackTrace();
+        } finally {
+            ReceiptWriter r = receipts;
+            if (r != null) r.close();
         }
     }
 
+    // server không gửi captureNanos (server cũ / client chưa bật Receipt) -> không gửi Receipt
+    private void sendReceipt(int kind, int seq, long captureNanos) {
+        ReceiptWriter r = receipts;
+        if (r != null && captureNanos != NO_CAPTURE) r.send(kind, seq, captureNanos);
+    }
+
     private static BufferedImage ensureType(BufferedImage src, int type) {
         if (src.getType() == type) return src;
         BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), type);
@@ -101,20 +162,22 @@ public class ScreenClient extends JFrame {
         return dst;
     }
 
-    // Panel vẽ ảnh, fit center giữ tỉ lệ, mượt
-    static class DisplayPanel extends JPanel {
-        private volatile BufferedImage frame;
+    // Panel vẽ ảnh, fit center giữ tỉ lệ, mượt; vẽ xong frame mới -> Receipt painted
+    class DisplayPanel extends JPanel {
+        private volatile Shown frame;
+        private int lastPaintedSeq = -1; // chỉ EDT dùng
 
-        void setFrame(BufferedImage img) {
-            this.frame = img;
+        void setFrame(BufferedImage img, int seq, long captureNanos) {
+            this.frame = new Shown(img, seq, captureNanos);
             SwingUtilities.invokeLater(this::repaint);
         }
 
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            BufferedImage img = frame;
-            if (img == null) return;
+            Shown shown = frame;
+            if (shown == null) return;
+            BufferedImage img = shown.img;
 
             int pw = getWidth(), ph = getHeight();
             int iw = img.getWidth(), ih = img.getHeight();
@@ -127,6 +190,22 @@ public class ScreenClient extends JFrame {
             g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
             g2.drawImage(img, x, y, w, h, null);
             g2.dispose();
+            if (shown.seq != lastPaintedSeq) {
+                lastPaintedSeq = shown.seq;
+                sendReceipt(Receipt.PAINTED, shown.seq, shown.captureNanos);
+            }
+        }
+    }
+
+    private static final class Shown {
+        final BufferedImage img;
+        final int seq;
+        final long captureNanos;
+
+        Shown(BufferedImage img, int seq, long captureNanos) {
+            this.img = img;
+            this.seq = seq;
+            this.captureNanos = captureNanos;
         }
     }
 }
@@ -1,21 +1,45 @@
 package buoi7_25_9.v3;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
+import buoi7_25_9.common.ClientHello;
+import buoi7_25_9.common.FrameHub;
+import buoi7_25_9.common.ImageOps;
+import buoi7_25_9.common.LatencyHistogram;
+import buoi7_25_9.common.MoveDetector;
+import buoi7_25_9.common.PacketStream;
+import buoi7_25_9.common.ParallelTiles;
+import buoi7_25_9.common.RasterDiff;
+import buoi7_25_9.common.Receipt;
+import buoi7_25_9.common.ServerMetrics;
+import buoi7_25_9.common.StreamSender;
+import buoi7_25_9.common.TieredStreamSender;
+import buoi7_25_9.common.TileCache;
+import buoi7_25_9.common.TileHashes;
+import buoi7_25_9.common.ViewerThreads;
+import buoi7_25_9.common.codec.Codecs;
+import buoi7_25_9.common.codec.EncoderSession;
+import buoi7_25_9.common.codec.TileClassifier;
+import buoi7_25_9.common.source.CaptureRegion;
+import buoi7_25_9.common.source.FrameSource;
+import buoi7_25_9.record.FrameLog;
+import buoi7_25_9.record.PacketRecorder;
+import buoi7_25_9.record.StreamRecorder;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 public class ScreenServer {
     // ======= TUNABLES =======
@@ -24,52 +48,234 @@ public class ScreenServer {
     private static final int GOP = 10;                 // 1 key + (GOP-1) delta
     private static final int TILE_W = 96, TILE_H = 96; // size ô
     private static final int DIFF_THR = 12;            // ngưỡng MAD (0..255)
+    private static final double MOVE_MIN_CHANGED = 0.2; // tỉ lệ ô đổi từ đó mới dò cuộn / dịch (MoveDetector)
     private static final float Q_INIT = 0.65f, Q_MIN = 0.30f, Q_MAX = 0.85f;
     private static final double SCALE_INIT = 1.0, SCALE_MIN = 0.5, SCALE_MAX = 1.0;
     private static final long BAD_LATENCY_MS = 60;     // encode+send > 60ms coi là xấu
     private static final long ABR_WINDOW_MS = 2_000;   // đánh giá băng thông theo 2s
+    private static final long HUB_REPORT_MS = 10_000;  // in độ trễ wake->send (và Receipt) của từng sender
+    // -Dscreen.encode:
+    //   viewer:    mỗi viewer tự scale/diff/encode + ABR riêng
+    //   shared:    diff/encode 1 lần (Q_INIT, scale 1), mọi viewer dùng chung packet
+    //   simulcast: encode 1 lần cho mỗi tầng -Dscreen.tiers=scale:quality,... (tầng đầu tốt nhất),
+    //              ABR chỉ chuyển viewer giữa các tầng -> CPU encode giới hạn theo số tầng, không theo số viewer
+    private static final String ENCODE_MODE = System.getProperty("screen.encode", "viewer").toLowerCase();
+    private static final List<Tier> TIERS = tiers(ENCODE_MODE); // rỗng: viewer
+    // packet[0]: 0 = KEY, 1 = DELTA, 2 / 3 = KEY / DELTA có cache tile của client (xem writeKey / writeDelta, TileCache),
+    // DELTA + 4 = có danh sách copy-rect (MoveDetector), + 8 = có captureNanos (client bật Receipt)
+    // Nhiều luồng (-Dscreen.streams): client gửi writeUTF("STREAM:<id>") ngay sau khi nối; im lặng quá hạn -> luồng mặc định,
+    // lệnh bắt tay khác đọc được trong lúc chờ chuyển cho ClientHello của sender (xem select)
+    private static final int SELECT_TIMEOUT_MS = Integer.getInteger("screen.streams.selectMs", 300);
+    private static final PacketStream.Classifier PACKET_KIND = (i, b, n) -> (b[0] & 1) == 0 ? PacketStream.KEY : PacketStream.DELTA;
+
+    // timing từng stage + số session/bytes qua JMX (buoi7_25_9:type=Stage,server=v3,...)
+    private static final ServerMetrics METRICS = new ServerMetrics("v3");
+    private static final LatencyHistogram CAPTURE_TIMING = METRICS.stage(ServerMetrics.CAPTURE);
+    private static final LatencyHistogram ENQUEUE_TIMING = METRICS.stage(ServerMetrics.ENQUEUE);
+    private static final LatencyHistogram SCALE_TIMING = METRICS.stage(ServerMetrics.SCALE);
+    private static final LatencyHistogram DIFF_TIMING = METRICS.stage(ServerMetrics.DIFF);
+    private static final LatencyHistogram HASH_TIMING = METRICS.stage(ServerMetrics.HASH);
+    private static final LatencyHistogram ENCODE_TIMING = METRICS.stage(ServerMetrics.ENCODE);
+    private static final LatencyHistogram WRITE_TIMING = METRICS.stage(ServerMetrics.WRITE);
 
     public static void main(String[] args) {
         new ScreenServer().run();
     }
 
     private void run() {
-        FrameProducer producer = new FrameProducer(TARGET_FPS);
-        producer.start();
+        Map<String, Channel> channels = new LinkedHashMap<>(); // luồng đầu tiên = mặc định
+        for (CaptureRegion region : CaptureRegion.fromSystemProperty()) {
+            if (channels.put(region.id, new Channel(region)) != null) {
+                throw new IllegalArgumentException("Duplicate stream id " + region.id);
+            }
+        }
+        Channel fallback = channels.values().iterator().next();
 
         try (ServerSocket server = new ServerSocket(PORT)) {
-            System.out.println("Server started on " + PORT);
+            for (Channel c : channels.values()) c.start();
+            System.out.println("Server started on " + PORT + " (" + ENCODE_MODE + " encode" + (TIERS.size() > 1 ? " " + TIERS : "") + ")"
+                    + ", " + ViewerThreads.mode() + " viewer threads, " + ParallelTiles.threads() + " tile threads, streams " + channels.values());
             while (true) {
                 Socket soc = server.accept();
-                new FrameSender(soc, producer).start();
+                // chọn luồng trên thread của viewer: client chậm gửi lựa chọn không chặn acceptor
+                ViewerThreads.start("viewer-" + soc.getRemoteSocketAddress(), () -> {
+                    List<String> early = new ArrayList<>(); // lệnh bắt tay select() đã đọc thay cho sender
+                    select(soc, channels, fallback, early).serve(soc, early);
+                });
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    // ======= Frame Producer: chụp màn hình đều đặn, giữ reference mới nhất =======
+    // 1 luồng: không đọc gì (client cũ không gửi lựa chọn); nhiều luồng: đọc lệnh tới "STREAM:<id>", tổng cộng tối đa SELECT_TIMEOUT_MS.
+    // Lệnh khác đọc được trước đó (client không chọn luồng: CACHE / COPYRECT / RECEIPTS) cho vào early, sender chuyển cho ClientHello;
+    // dừng ở Receipt.HELLO vì sau nó chỉ còn Receipt nhị phân
+    private static Channel select(Socket soc, Map<String, Channel> channels, Channel fallback, List<String> early) {
+        if (channels.size() == 1) return fallback;
+        try {
+            DataInputStream in = new DataInputStream(soc.getInputStream());
+            long deadline = System.currentTimeMillis() + SELECT_TIMEOUT_MS;
+            for (long left = SELECT_TIMEOUT_MS; left > 0; left = deadline - System.currentTimeMillis()) {
+                soc.setSoTimeout((int) left);
+                String cmd = in.readUTF();
+                if (cmd.startsWith("STREAM:")) {
+                    Channel c = channels.get(cmd.substring(7));
+                    soc.setSoTimeout(0);
+                    if (c != null) return c;
+                    System.out.println("Unknown stream request '" + cmd + "' from " + soc.getRemoteSocketAddress()
+                            + ", using " + fallback.region.id);
+                    return fallback;
+                }
+                early.add(cmd);
+                if (cmd.equals(Receipt.HELLO)) break;
+            }
+        } catch (SocketTimeoutException e) {
+            // client không chọn -> mặc định
+        } catch (Exception e) {
+            // lỗi đọc: để sender tự phát hiện socket hỏng
+        }
+        try { soc.setSoTimeout(0); } catch (Exception ignored) {}
+        return fallback;
+    }
+
+    // 1 tầng simulcast: scale + quality cố định
+    static class Tier {
+        final double scale;
+        final float quality;
+
+        Tier(double scale, float quality) {
+            this.scale = scale;
+            this.quality = quality;
+        }
+
+        @Override public String toString() {
+            return scale + ":" + quality;
+        }
+    }
+
+    private static List<Tier> tiers(String mode) {
+        List<Tier> res = new ArrayList<>();
+        switch (mode) {
+            case "viewer":
+                break;
+            case "shared":
+                res.add(new Tier(SCALE_INIT, Q_INIT));
+                break;
+            case "simulcast":
+                for (String t : System.getProperty("screen.tiers", "1.0:0.75,0.75:0.6,0.5:0.45").split(",")) {
+                    int c = t.indexOf(':');
+                    if (c <= 0) throw new IllegalArgumentException("screen.tiers entry must be scale:quality: " + t);
+                    res.add(new Tier(Double.parseDouble(t.substring(0, c)), Float.parseFloat(t.substring(c + 1))));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("screen.encode must be viewer, shared or simulcast: " + mode);
+        }
+        return res;
+    }
+
+    // ======= 1 luồng có tên: vùng chụp + producer riêng (+ 1 PacketStream / tầng nếu shared / simulcast, + recorder) =======
+    static class Channel {
+        final CaptureRegion region;
+        final FrameProducer producer;
+        final List<PacketStream> tiers = new ArrayList<>(); // rỗng: mỗi viewer tự encode
+
+        Channel(CaptureRegion region) {
+            this.region = region;
+            for (int i = 0; i < TIERS.size(); i++) {
+                tiers.add(new PacketStream("v3/" + region.id + (TIERS.size() > 1 ? "/t" + i : "")));
+            }
+            this.producer = new FrameProducer(TARGET_FPS, region, this::watched);
+        }
+
+        // Không ai xem (kể cả recorder) -> producer nghỉ chụp, không tốn capture / encode cho vùng này
+        private boolean watched() {
+            if (tiers.isEmpty()) return producer.frames.consumers() > 0;
+            for (PacketStream s : tiers) if (s.viewers() > 0) return true;
+            return false;
+        }
+
+        void start() throws Exception {
+            producer.start();
+            producer.frames.startReporter(HUB_REPORT_MS);
+            for (int i = 0; i < tiers.size(); i++) {
+                PacketStream s = tiers.get(i);
+                Tier t = TIERS.get(i);
+                s.startReporter(HUB_REPORT_MS);
+                startDaemon(new FrameSender(s.writer(PACKET_KIND), producer, "encoder-" + region.id + "-t" + i, t.scale, t.quality));
+            }
+            FrameLog log = FrameLog.fromSystemProperty(FrameLog.PROTOCOL_V3, region.id);
+            if (log != null && !tiers.isEmpty()) {
+                StreamRecorder.start(tiers.get(0), log, METRICS.stage(ServerMetrics.RECORD)); // ghi tầng tốt nhất
+            } else if (log != null) {
+                startDaemon(new FrameSender(new PacketRecorder(log, PACKET_KIND), producer, "frame-recorder-" + region.id, SCALE_INIT, Q_INIT));
+                System.out.println("Recording " + region.id + " to " + log.dir());
+            }
+        }
+
+        // Chạy trên thread của viewer; early: lệnh bắt tay select() đã đọc (packet dùng chung không dùng lệnh nào)
+        void serve(Socket soc, List<String> early) {
+            if (tiers.isEmpty()) new FrameSender(soc, producer, early).run();
+            else if (tiers.size() == 1) new StreamSender(soc, tiers.get(0), METRICS).run();
+            else new TieredStreamSender(soc, tiers, METRICS, BAD_LATENCY_MS).run();
+        }
+
+        @Override public String toString() {
+            return region.toString();
+        }
+    }
+
+    // Encoder dùng chung / ghi phiên: platform thread daemon (1 cái, không cần virtual)
+    private static void startDaemon(FrameSender sender) {
+        Thread t = new Thread(sender, sender.name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Frame đã chụp + hash từng tile (tính 1 lần ở producer, mọi sender dùng chung)
+    static final class Captured {
+        final BufferedImage image; // TYPE_INT_RGB, không sửa sau khi publish
+        final TileHashes tiles;    // null nếu -Dscreen.diff=pixel
+        final long captureNanos;   // System.nanoTime() lúc bắt đầu chụp
+
+        Captured(BufferedImage image, TileHashes tiles, long captureNanos) {
+            this.image = image;
+            this.tiles = tiles;
+            this.captureNanos = captureNanos;
+        }
+    }
+
+    // ======= Frame Producer: chụp màn hình đều đặn, publish frame mới nhất (+ hash tile) qua FrameHub =======
     static class FrameProducer extends Thread {
         private final int fps;
-        volatile BufferedImage lastFull; // đã scale về kích thước truyền
-        final AtomicInteger seq = new AtomicInteger(0);
+        private final CaptureRegion region;
+        private final BooleanSupplier watched;
+        final FrameHub<Captured> frames; // seq của hub = seq frame
 
-        FrameProducer(int fps) {
+        FrameProducer(int fps, CaptureRegion region, BooleanSupplier watched) {
             this.fps = Math.max(1, fps);
-            setName("frame-producer");
+            this.region = region;
+            this.watched = watched;
+            this.frames = new FrameHub<>("v3/" + region.id);
+            setName("frame-producer-" + region.id);
             setDaemon(true);
         }
 
         @Override
         public void run() {
             try {
-                Robot r = new Robot();
-                Rectangle screen = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+                FrameSource source = region.open();
                 long frameIntervalNs = 1_000_000_000L / fps;
 
                 while (true) {
                     long t0 = System.nanoTime();
-                    BufferedImage raw = r.createScreenCapture(screen);
+                    if (!watched.getAsBoolean()) {
+                        Thread.sleep(frameIntervalNs / 1_000_000L);
+                        continue;
+                    }
+                    BufferedImage raw = source.capture();
+                    CAPTURE_TIMING.recordNanos(System.nanoTime() - t0);
                     // Giữ RGB để nén JPEG rẻ hơn
                     if (raw.getType() != BufferedImage.TYPE_INT_RGB) {
                         BufferedImage tmp = new BufferedImage(raw.getWidth(), raw.getHeight(), BufferedImage.TYPE_INT_RGB);
@@ -78,8 +284,12 @@ public class ScreenServer {
                         g2.dispose();
                         raw = tmp;
                     }
-                    lastFull = raw;
-                    seq.incrementAndGet();
+                    long tHash = System.nanoTime();
+                    TileHashes tiles = TileHashes.ENABLED ? TileHashes.of(raw, TILE_W, TILE_H) : null;
+                    HASH_TIMING.recordNanos(System.nanoTime() - tHash);
+                    long tPub = System.nanoTime();
+                    frames.publish(new Captured(raw, tiles, t0));
+                    ENQUEUE_TIMING.recordNanos(System.nanoTime() - tPub);
 
                     long dt = System.nanoTime() - t0;
                     long sleepNs = frameIntervalNs - dt;
@@ -94,83 +304,210 @@ public class ScreenServer {
     }
 
     // ======= Frame Sender: packet hoá KEY/DELTA, ABR, nén JPEG =======
-    static class FrameSender extends Thread {
-        private final Socket soc;
+    // Runnable (không extends Thread) để chạy được trên virtual thread, xem ViewerThreads
+    static class FrameSender implements Runnable {
+        private final String name;
+        private final Socket soc;          // null: encoder dùng chung / ghi phiên, ghi vào sink thay cho socket
+        private final OutputStream sink;
         private final FrameProducer producer;
+        private final List<String> early; // lệnh bắt tay select() đã đọc trước khi sender chạy
 
         // Trạng thái mỗi client
         private float quality = Q_INIT;
         private double scale = SCALE_INIT;
         private int frameIdx = 0;
-        private BufferedImage reference; // reference để so sánh delta
+        private BufferedImage reference; // reference để so sánh delta; scale 1: frame nguồn đã gửi (để dò cuộn)
+        private long[] sentHashes;       // hash các tile đã gửi khi scale 1; null: diff pixel với reference
+        private TileCache<Boolean> clientTiles; // bản sao cache tile của client (null: client không bật cache)
+        private int pendingCache = -1;          // capacity client vừa xin, bật ở KEY kế tiếp
+        private boolean copyRect;               // client nhận record copy-rect trong DELTA
+        private boolean receipts;               // client gửi Receipt -> frame mang captureNanos
+        // độ trễ Receipt theo kind (tạo khi nhận Receipt đầu tiên của kind đó), in mỗi HUB_REPORT_MS + JMX
+        private final LatencyHistogram[] receiptLatency = new LatencyHistogram[Receipt.PAINTED + 1];
+        private long receiptReportMs = System.currentTimeMillis();
         private long bytesInWindow = 0;
         private long windowStartMs = System.currentTimeMillis();
 
-        FrameSender(Socket soc, FrameProducer producer) {
+        FrameSender(Socket soc, FrameProducer producer, List<String> early) {
             this.soc = soc;
+            this.sink = null;
+            this.producer = producer;
+            this.early = early;
+            this.name = "frame-sender-" + soc.getRemoteSocketAddress();
+        }
+
+        // Ghi packet vào sink (PacketStream / PacketRecorder): scale / quality cố định (không ABR),
+        // không tính vào session/bytes của METRICS (viewer của sink tự tính)
+        FrameSender(OutputStream sink, FrameProducer producer, String name, double scale, float quality) {
+            this.soc = null;
+            this.sink = sink;
             this.producer = producer;
-            setName("frame-sender-" + soc.getRemoteSocketAddress());
+            this.early = Collections.emptyList();
+            this.name = name;
+            this.scale = scale;
+            this.quality = quality;
         }
 
         @Override
         public void run() {
-            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(soc.getOutputStream()))) {
-                int lastSeenSeq = -1;
-                while (!soc.isClosed()) {
-                    int curSeq = producer.seq.get();
-                    if (curSeq == lastSeenSeq) {
-                        Thread.sleep(1);
-                        continue;
+            boolean live = soc != null;
+            if (live) METRICS.sessionOpened();
+            try (FrameHub<Captured>.Subscriber sub = producer.frames.subscribe(name);
+                 DataOutputStream out = new DataOutputStream(live ? new BufferedOutputStream(soc.getOutputStream()) : sink)) {
+                // Receipt của viewer -> histogram riêng (buoi7_25_9:type=Viewer,server=v3,viewer=<địa chỉ>,name=<kind>)
+                ClientHello control = live ? new ClientHello(new DataInputStream(soc.getInputStream()),
+                        kind -> receiptLatency[kind] = METRICS.viewer(viewer(), Receipt.name(kind))) : null;
+                if (control != null) early.forEach(control::accept);
+                while (!live || !soc.isClosed()) {
+                    // Chặn tới khi producer publish frame mới (không sleep 1ms polling)
+                    Captured frame = sub.await();
+                    if (control != null) {
+                        control.poll();
+                        int cap = control.takeCacheRequest();
+                        if (cap > 0) pendingCache = cap;
+                        copyRect = control.copyRect();
+                        receipts = control.receipts();
                     }
-                    lastSeenSeq = curSeq;
+                    BufferedImage src = frame.image;
+                    int curSeq = (int) sub.seq();
 
-                    BufferedImage src = producer.lastFull;
-                    if (src == null) continue;
-
-                    BufferedImage cur = (scale == 1.0) ? src : resize(src, scale);
+                    long tScale = System.nanoTime();
+                    BufferedImage cur = ImageOps.resize(src, scale);
+                    SCALE_TIMING.recordNanos(System.nanoTime() - tScale);
+                    // scale 1: lưới tile của cur trùng lưới hash của producer -> so hash thay cho diff pixel
+                    boolean hashed = cur == src && frame.tiles != null;
 
                     long tEncodeStart = System.currentTimeMillis();
-                    boolean isKey = (frameIdx % GOP == 0) || reference == null ||
+                    boolean isKey = (frameIdx % GOP == 0) || reference == null || pendingCache > 0 ||
                             reference.getWidth() != cur.getWidth() || reference.getHeight() != cur.getHeight();
 
+                    long frameBytes;
                     if (isKey) {
-                        byte[] jpeg = encodeJpeg(cur, quality);
-                        writeKey(out, curSeq, cur.getWidth(), cur.getHeight(), quality, jpeg);
-                        bytesInWindow += 4 + jpeg.length + 1 + 4 + 2 + 2 + 4; // ước tính header
-                        reference = deepCopy(cur);
+                        frameBytes = sendKey(out, curSeq, frame.captureNanos, cur, hashed ? frame.tiles : null);
                     } else {
-                        List<TilePacket> tiles = diffTiles(reference, cur, TILE_W, TILE_H, DIFF_THR, quality);
+                        long tDiff = System.nanoTime();
+                        boolean[] dirty = hashed && sentHashes != null
+                                ? frame.tiles.dirty(sentHashes)
+                                : RasterDiff.dirtyTilesParallel(RasterDiff.plane(reference), RasterDiff.plane(cur), TILE_W, TILE_H, DIFF_THR);
+                        // ô client còn trong cache không cần encode -> không tính vào ngưỡng chuyển KEY
+                        TileCache<Boolean> cache = hashed ? clientTiles : null;
+                        int changed = countChanged(dirty, frame.tiles, cache);
+                        // nhiều ô đổi: thử tìm vùng bị cuộn / dịch so với frame client đang có -> 1 record copy-rect,
+                        // chỉ còn dải mới lộ ra phải encode (lưới dải của move không trùng lưới hash -> frame đó không dùng cache tile)
+                        List<MoveDetector.Move> moves = Collections.emptyList();
+                        int tw = TILE_W, th = TILE_H;
+                        TileHashes tileHashes = hashed ? frame.tiles : null;
+                        if (copyRect && hashed && sentHashes != null && changed >= dirty.length * MOVE_MIN_CHANGED) {
+                            MoveDetector.Move m = MoveDetector.detect(reference, cur);
+                            if (m != null) {
+                                moves = Collections.singletonList(m);
+                                tw = m.gridW(TILE_W, cur.getWidth());
+                                th = m.gridH(TILE_H, cur.getHeight());
+                                dirty = m.dirtyAfter(reference, cur, dirty, TILE_W, TILE_H, tw, th);
+                                tileHashes = null;
+                                cache = null;
+                                changed = countChanged(dirty, null, null);
+                            }
+                        }
+                        DIFF_TIMING.recordNanos(System.nanoTime() - tDiff);
                         // Nếu thay đổi quá nhiều ô, gửi KEY cho rẻ
-                        int totalTiles = ((cur.getWidth() + TILE_W - 1) / TILE_W) * ((cur.getHeight() + TILE_H - 1) / TILE_H);
-                        if (tiles.size() > totalTiles * 0.6) {
-                            byte[] jpeg = encodeJpeg(cur, quality);
-                            writeKey(out, curSeq, cur.getWidth(), cur.getHeight(), quality, jpeg);
-                            bytesInWindow += 4 + jpeg.length + 1 + 4 + 2 + 2 + 4;
-                            reference = deepCopy(cur);
+                        if (changed > dirty.length * 0.6) {
+                            frameBytes = sendKey(out, curSeq, frame.captureNanos, cur, hashed ? frame.tiles : null);
                         } else {
-                            writeDelta(out, curSeq, cur.getWidth(), cur.getHeight(), quality, TILE_W, TILE_H, tiles);
+                            long tEnc = System.nanoTime();
+                            List<TilePacket> tiles = encodeTiles(cur, dirty, tw, th, quality, tileHashes, cache);
+                            long tWrite = System.nanoTime();
+                            writeDelta(out, curSeq, frame.captureNanos, cur.getWidth(), cur.getHeight(), quality, moves, tw, th, tiles);
+                            out.flush();
+                            ENCODE_TIMING.recordNanos(tWrite - tEnc);
+                            WRITE_TIMING.recordNanos(System.nanoTime() - tWrite);
                             long sum = 1 + 4 + 2 + 2 + 4 + 2 + 2 + 4; // header cơ bản
-                            for (TilePacket t : tiles) sum += 2 + 2 + 4 + t.data.length;
-                            bytesInWindow += sum;
-                            // cập nhật reference theo các tile thay đổi
-                            applyTiles(reference, tiles, TILE_W, TILE_H);
+                            if (receipts) sum += 8;
+                            if (copyRect) sum += 2 + 12L * moves.size();
+                            for (TilePacket t : tiles) sum += 2 + 2 + 4 + (t.data != null ? t.data.length : 0) + (clientTiles != null ? 8 : 0);
+                            frameBytes = sum;
+                            if (hashed && sentHashes != null) {
+                                // chỉ cần nhớ hash đã gửi + frame nguồn (không copy) để dò cuộn ở frame sau;
+                                // đổi scale thì đổi kích thước -> KEY mới chép lại reference
+                                if (moves.isEmpty()) {
+                                    for (int i = 0; i < dirty.length; i++) if (dirty[i]) sentHashes[i] = frame.tiles.hash(i);
+                                } else {
+                                    // ô trong vùng move không gửi mà vẫn đổi hash: sau blit + các tile, client khớp cả frame
+                                    sentHashes = frame.tiles.copy();
+                                }
+                                reference = cur;
+                            } else {
+                                // cập nhật reference theo các tile thay đổi
+                                applyTiles(reference, tiles, tw, th);
+                            }
                         }
                     }
-                    out.flush();
+                    sub.sent();
+                    if (live) {
+                        bytesInWindow += frameBytes;
+                        METRICS.bytesSent(frameBytes);
+                        METRICS.frameSent();
 
-                    long tEncodeSend = System.currentTimeMillis() - tEncodeStart;
+                        long tEncodeSend = System.currentTimeMillis() - tEncodeStart;
 
-                    // ABR đơn giản
-                    adaptABR(tEncodeSend);
+                        // ABR đơn giản
+                        adaptABR(tEncodeSend);
+                        if (receipts && System.currentTimeMillis() - receiptReportMs >= HUB_REPORT_MS) {
+                            System.out.println("[Receipt] " + name + receiptStats());
+                            receiptReportMs = System.currentTimeMillis();
+                        }
+                    }
 
                     frameIdx++;
                 }
             } catch (Exception e) {
                 // client disconnect/network error
                 // e.printStackTrace();
+                if (soc == null) System.err.println(name + " stopped: " + e.getMessage());
             } finally {
-                try { soc.close(); } catch (Exception ignored) {}
+                if (soc != null) {
+                    METRICS.sessionClosed();
+                    METRICS.viewerClosed(viewer());
+                    try { soc.close(); } catch (Exception ignored) {}
+                }
+            }
+        }
+
+        // khoá của histogram viewer trong METRICS
+        private String viewer() {
+            return String.valueOf(soc.getRemoteSocketAddress());
+        }
+
+        // phân vị độ trễ từ lúc chụp theo kind, đo bằng đồng hồ server
+        private String receiptStats() {
+            StringBuilder sb = new StringBuilder();
+            for (int k = Receipt.RECEIVED; k <= Receipt.PAINTED; k++) {
+                LatencyHistogram h = receiptLatency[k];
+                sb.append(" | ").append(Receipt.name(k));
+                if (h == null || h.count() == 0) sb.append(" -");
+                else sb.append(String.format(" p50=%.1f p99=%.1f max=%.1fms", h.percentileMs(50), h.percentileMs(99), h.maxMs()));
             }
+            return sb.toString();
+        }
+
+        // encode + ghi KEY, reference = cur, hash đã gửi = hashes (null nếu scale != 1); trả về số byte (ước tính header)
+        private long sendKey(DataOutputStream out, int seq, long captureNanos, BufferedImage cur, TileHashes hashes) throws Exception {
+            long t0 = System.nanoTime();
+            byte[] jpeg = encodeJpeg(cur, quality);
+            long t1 = System.nanoTime();
+            if (pendingCache > 0) {
+                clientTiles = new TileCache<>(pendingCache); // client tạo cache cùng capacity khi nhận KEY này
+                System.out.println("[TileCache] " + name + " capacity " + pendingCache);
+                pendingCache = -1;
+            }
+            writeKey(out, seq, captureNanos, cur.getWidth(), cur.getHeight(), quality, jpeg, hashes);
+            out.flush();
+            ENCODE_TIMING.recordNanos(t1 - t0);
+            WRITE_TIMING.recordNanos(System.nanoTime() - t1);
+            // so hash: reference chỉ còn dùng để biết kích thước -> giữ luôn frame đã publish, không copy
+            reference = hashes != null ? cur : ImageOps.deepCopy(cur);
+            sentHashes = hashes != null ? hashes.copy() : null;
+            return 4 + jpeg.length + 1 + 4 + 2 + 2 + 4 + (receipts ? 8 : 0) + (clientTiles != null ? 4 + 2 + 2 + 4 + 8L * (hashes != null ? hashes.tiles() : 0) : 0);
         }
 
         private void adaptABR(long encodeSendMs) {
@@ -199,113 +536,131 @@ public class ScreenServer {
 
         // ======= Packet format =======
         // KEY frame: [byte type=0][int seq][short W][short H][float Q][int len][bytes JPEG]
-        private void writeKey(DataOutputStream out, int seq, int w, int h, float q, byte[] jpeg) throws Exception {
-            out.writeByte(0);
+        // có cache (type=2): thêm [int capacity][short tileW][short tileH][int N] N x [long hash] (N = 0 khi scale != 1);
+        // 2 đầu put lần lượt các tile của KEY vào cache
+        // client bật Receipt (type |= 8, cả KEY lẫn DELTA): sau [float Q] thêm [long captureNanos], client gửi lại trong Receipt
+        private void writeKey(DataOutputStream out, int seq, long captureNanos, int w, int h, float q, byte[] jpeg,
+                              TileHashes hashes) throws Exception {
+            out.writeByte((clientTiles != null ? 2 : 0) | (receipts ? 8 : 0));
             out.writeInt(seq);
             out.writeShort(w);
             out.writeShort(h);
             out.writeFloat(q);
+            if (receipts) out.writeLong(captureNanos);
             out.writeInt(jpeg.length);
             out.write(jpeg);
+            if (clientTiles == null) return;
+            out.writeInt(clientTiles.capacity());
+            out.writeShort(TILE_W);
+            out.writeShort(TILE_H);
+            int n = hashes != null ? hashes.tiles() : 0;
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                out.writeLong(hashes.hash(i));
+                clientTiles.put(hashes.hash(i), Boolean.TRUE);
+            }
         }
 
         // DELTA frame: [byte type=1][int seq][short W][short H][float Q][short tileW][short tileH][int N]
         //  N x { [short tx][short ty][int len][bytes JPEG_TILE] }
-        private void writeDelta(DataOutputStream out, int seq, int w, int h, float q, int tw, int th, List<TilePacket> tiles) throws Exception {
-            out.writeByte(1);
+        // có cache (type=3): mỗi tile thêm [long hash] (NO_HASH: không cache); len = CACHED -> không có byte ảnh,
+        // client vẽ tile hash đó từ cache
+        // có copy-rect (type |= 4): sau [float Q] (và [long captureNanos] nếu type & 8) thêm [short M] M x { [short x][short y][short w][short h][short dx][short dy] },
+        // client blit vùng [x,y,w,h] từ (x-dx, y-dy) của canvas theo thứ tự, rồi mới vẽ các tile
+        private void writeDelta(DataOutputStream out, int seq, long captureNanos, int w, int h, float q,
+                                List<MoveDetector.Move> moves, int tw, int th, List<TilePacket> tiles) throws Exception {
+            out.writeByte((clientTiles != null ? 3 : 1) | (copyRect ? 4 : 0) | (receipts ? 8 : 0));
             out.writeInt(seq);
             out.writeShort(w);
             out.writeShort(h);
             out.writeFloat(q);
+            if (receipts) out.writeLong(captureNanos);
+            if (copyRect) {
+                out.writeShort(moves.size());
+                for (MoveDetector.Move m : moves) {
+                    out.writeShort(m.x);
+                    out.writeShort(m.y);
+                    out.writeShort(m.w);
+                    out.writeShort(m.h);
+                    out.writeShort(m.dx);
+                    out.writeShort(m.dy);
+                }
+            }
             out.writeShort(tw);
             out.writeShort(th);
             out.writeInt(tiles.size());
             for (TilePacket t : tiles) {
                 out.writeShort(t.tx);
                 out.writeShort(t.ty);
-                out.writeInt(t.data.length);
-                out.write(t.data);
+                if (t.data == null) {
+                    out.writeInt(TileCache.CACHED);
+                } else {
+                    out.writeInt(t.data.length);
+                    out.write(t.data);
+                }
+                if (clientTiles != null) out.writeLong(t.hash);
             }
         }
 
-        // ======= JPEG encode =======
-        private static byte[] encodeJpeg(BufferedImage img, float quality) throws Exception {
-            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
-            ImageWriter writer = it.next();
-            ImageWriteParam param = writer.getDefaultWriteParam();
-            if (param.canWriteCompressed()) {
-                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                param.setCompressionQuality(quality);
-            }
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(bos)) {
-                writer.setOutput(ios);
-                writer.write(null, new IIOImage(img, null, null), param);
-                writer.dispose();
-                return bos.toByteArray();
+        // số ô đổi phải encode (ô client còn trong cache không tính)
+        private static int countChanged(boolean[] dirty, TileHashes hashes, TileCache<Boolean> cache) {
+            int changed = 0;
+            for (int i = 0; i < dirty.length; i++) {
+                if (dirty[i] && (cache == null || !cache.contains(hashes.hash(i)))) changed++;
             }
+            return changed;
         }
 
-        private static BufferedImage resize(BufferedImage src, double scale) {
-            int w = (int) Math.round(src.getWidth() * scale);
-            int h = (int) Math.round(src.getHeight() * scale);
-            BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2 = dst.createGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g2.drawImage(src, 0, 0, w, h, null);
-            g2.dispose();
-            return dst;
-        }
-
-        private static BufferedImage deepCopy(BufferedImage src) {
-            BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
-            Graphics g = dst.getGraphics();
-            g.drawImage(src, 0, 0, null);
-            g.dispose();
-            return dst;
+        // ======= JPEG encode =======
+        // Writer/param/buffer giữ trong EncoderSession của thread sender -> mỗi tile chỉ còn encode + 1 copy
+        private static byte[] encodeJpeg(BufferedImage img, float quality) throws Exception {
+            return EncoderSession.current().encodeToArray(Codecs.JPEG, img, quality);
         }
 
         // ======= Delta by tiles =======
-        private static List<TilePacket> diffTiles(BufferedImage ref, BufferedImage cur, int tw, int th, int thr, float q) throws Exception {
+        // dirty[] từ RasterDiff.dirtyTiles (MAD > thr), chỉ encode các ô đã đổi.
+        // Codec theo từng ô (TileClassifier): chữ / UI -> PALETTE lossless, ảnh / video -> JPEG;
+        // client nhận diện codec qua magic nên định dạng DELTA không đổi.
+        // Các ô encode song song trên pool dùng chung (ParallelTiles), ghép lại theo thứ tự index như tuần tự.
+        // cache != null: ô client đã có (theo hash) thành record CACHED, không encode; quyết định tuần tự theo thứ tự
+        // record trên dây (client áp dụng đúng thứ tự đó) -> ô trùng nhau trong cùng frame chỉ encode lần đầu.
+        private static List<TilePacket> encodeTiles(BufferedImage cur, boolean[] dirty, int tw, int th, float q,
+                                                    TileHashes hashes, TileCache<Boolean> cache) throws Exception {
             int W = cur.getWidth(), H = cur.getHeight();
-            int nx = (W + tw - 1) / tw, ny = (H + th - 1) / th;
-            ArrayList<TilePacket> res = new ArrayList<>();
-            for (int ty = 0; ty < ny; ty++) {
-                for (int tx = 0; tx < nx; tx++) {
-                    int x = tx * tw, y = ty * th;
-                    int w = Math.min(tw, W - x);
-                    int h = Math.min(th, H - y);
-                    if (isTileChanged(ref, cur, x, y, w, h, thr)) {
-                        BufferedImage tile = cur.getSubimage(x, y, w, h);
-                        byte[] data = encodeJpeg(tile, q);
-                        res.add(new TilePacket(tx, ty, data));
-                    }
+            int nx = (W + tw - 1) / tw;
+            int[] idx = new int[dirty.length];
+            int n = 0;
+            for (int i = 0; i < dirty.length; i++) if (dirty[i]) idx[n++] = i;
+            TilePacket[] res = new TilePacket[n];
+            int[] encode = new int[n];
+            int m = 0;
+            for (int j = 0; j < n; j++) {
+                long h = hashes != null ? hashes.hash(idx[j]) : TileCache.NO_HASH;
+                if (cache != null && cache.touch(h) != null) {
+                    res[j] = new TilePacket(idx[j] % nx, idx[j] / nx, null, null, h);
+                } else {
+                    if (cache != null) cache.put(h, Boolean.TRUE);
+                    encode[m++] = j;
                 }
             }
-            return res;
-        }
-
-        private static boolean isTileChanged(BufferedImage a, BufferedImage b, int x, int y, int w, int h, int thr) {
-            long sum = 0; int cnt = 0;
-            for (int j = 0; j < h; j++) {
-                for (int i = 0; i < w; i++) {
-                    int rgb1 = a.getRGB(x + i, y + j);
-                    int rgb2 = b.getRGB(x + i, y + j);
-                    int dr = Math.abs(((rgb1 >> 16) & 255) - ((rgb2 >> 16) & 255));
-                    int dg = Math.abs(((rgb1 >> 8) & 255) - ((rgb2 >> 8) & 255));
-                    int db = Math.abs((rgb1 & 255) - (rgb2 & 255));
-                    sum += (dr + dg + db) / 3;
-                    cnt++;
-                }
-            }
-            int mad = (int) (sum / Math.max(1, cnt));
-            return mad > thr;
+            ParallelTiles.forEach(m, k -> {
+                int j = encode[k];
+                int tx = idx[j] % nx, ty = idx[j] / nx;
+                int x = tx * tw, y = ty * th;
+                BufferedImage tile = cur.getSubimage(x, y, Math.min(tw, W - x), Math.min(th, H - y));
+                TileClassifier.Choice choice = TileClassifier.choose(tile);
+                byte[] data = choice.encode(q);
+                long h = hashes != null ? hashes.hash(idx[j]) : TileCache.NO_HASH;
+                res[j] = new TilePacket(tx, ty, data, TileClassifier.lossless(choice.codec()) ? tile : null, h);
+            });
+            return Arrays.asList(res);
         }
 
         private static void applyTiles(BufferedImage ref, List<TilePacket> tiles, int tw, int th) throws Exception {
             Graphics2D g2 = ref.createGraphics();
             for (TilePacket t : tiles) {
-                BufferedImage img = ImageIO.read(new java.io.ByteArrayInputStream(t.data));
+                // ô lossless: client sẽ có đúng pixel nguồn -> vẽ thẳng, không decode lại
+                BufferedImage img = t.source != null ? t.source : Codecs.decode(t.data, 0, t.data.length);
                 int x = t.tx * tw, y = t.ty * th;
                 g2.drawImage(img, x, y, null);
             }
@@ -315,7 +670,11 @@ public class ScreenServer {
 
     static class TilePacket {
         final int tx, ty;
-        final byte[] data;
-        TilePacket(int tx, int ty, byte[] data) { this.tx = tx; this.ty = ty; this.data = data; }
+        final byte[] data;          // null: client vẽ từ cache tile theo hash
+        final BufferedImage source; // ô gốc nếu codec lossless, null nếu JPEG
+        final long hash;            // TileCache.NO_HASH nếu không so hash (scale != 1)
+        TilePacket(int tx, int ty, byte[] data, BufferedImage source, long hash) {
+            this.tx = tx; this.ty = ty; this.data = data; this.source = source; this.hash = hash;
+        }
     }
 }
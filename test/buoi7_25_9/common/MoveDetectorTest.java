@@ -0,0 +1,117 @@
+package buoi7_25_9.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Client áp dụng move (copyArea) lên frame cũ rồi vẽ các ô dirtyAfter lấy từ frame mới:
+ * kết quả phải giống hệt frame mới, và số ô phải gửi chỉ còn dải vừa lộ ra (+ chỗ đổi khác).
+ */
+class MoveDetectorTest {
+    private static final int W = 320, H = 240, TW = 64, TH = 64, HEADER = 24;
+    private static final BufferedImage DOC = document(900, 1200, new Random(5));
+
+    @Test
+    void verticalScrollReconstructsFrame() {
+        BufferedImage prev = view(100, 0), cur = view(137, 0);
+        MoveDetector.Move m = MoveDetector.detect(prev, cur);
+        assertNotNull(m);
+        assertEquals(0, m.dx);
+        assertEquals(-37, m.dy); // cuộn xuống: nội dung đi lên
+        int sent = reconstruct(prev, cur, m);
+        assertTrue(sent <= 6, "dải lộ ra 37 px ~ 5 dải 8 px, gửi " + sent);
+    }
+
+    @Test
+    void horizontalScrollReconstructsFrame() {
+        BufferedImage prev = view(300, 250), cur = view(300, 230);
+        MoveDetector.Move m = MoveDetector.detect(prev, cur);
+        assertNotNull(m);
+        assertEquals(20, m.dx);
+        assertEquals(0, m.dy);
+        reconstruct(prev, cur, m);
+    }
+
+    @Test
+    void scrollWithOtherChangesStillReconstructs() {
+        BufferedImage prev = view(400, 0), cur = view(460, 0);
+        cur.setRGB(5, 5, 0xFF0000); // con trỏ trên thanh tiêu đề (ngoài vùng cuộn)
+        cur.setRGB(W - 1, H - 1, 0x00FF00);
+        MoveDetector.Move m = MoveDetector.detect(prev, cur);
+        assertNotNull(m);
+        assertEquals(-60, m.dy);
+        reconstruct(prev, cur, m);
+    }
+
+    @Test
+    void unrelatedChangeIsNotAMove() {
+        BufferedImage prev = view(100, 0), cur = view(100, 0);
+        Graphics2D g = cur.createGraphics();
+        g.fillRect(50, 60, 120, 100);
+        g.dispose();
+        assertNull(MoveDetector.detect(prev, cur));
+        assertNull(MoveDetector.detect(prev, view(100, 0)));
+    }
+
+    // như client v3: copyArea rồi vẽ ô dirtyAfter (lưới gridW x gridH) từ cur; trả số ô đã gửi
+    private static int reconstruct(BufferedImage prev, BufferedImage cur, MoveDetector.Move m) {
+        boolean[] coarse = TileHashes.of(cur, TW, TH).dirty(TileHashes.of(prev, TW, TH).copy());
+        int gw = m.gridW(TW, W), gh = m.gridH(TH, H);
+        boolean[] dirty = m.dirtyAfter(prev, cur, coarse, TW, TH, gw, gh);
+
+        BufferedImage canvas = copy(prev);
+        Graphics2D g = canvas.createGraphics();
+        g.copyArea(m.x - m.dx, m.y - m.dy, m.w, m.h, m.dx, m.dy);
+        int nx = (W + gw - 1) / gw, sent = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            if (!dirty[i]) continue;
+            int x = (i % nx) * gw, y = (i / nx) * gh;
+            g.drawImage(cur.getSubimage(x, y, Math.min(gw, W - x), Math.min(gh, H - y)), x, y, null);
+            sent++;
+        }
+        g.dispose();
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(cur.getRGB(x, y), canvas.getRGB(x, y), m + " pixel " + x + "," + y);
+            }
+        }
+        return sent;
+    }
+
+    // thanh tiêu đề cố định + cửa sổ nhìn vào tài liệu tại (left, top)
+    private static BufferedImage view(int top, int left) {
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(0x3355AA));
+        g.fillRect(0, 0, W, HEADER);
+        g.drawImage(DOC.getSubimage(left, top, W, H - HEADER), 0, HEADER, null);
+        g.dispose();
+        return img;
+    }
+
+    // "chữ" ngẫu nhiên trên nền trắng: mỗi dòng / cột gần như chắc chắn khác nhau
+    private static BufferedImage document(int w, int h, Random r) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) img.setRGB(x, y, r.nextInt(6) == 0 ? 0x202020 : 0xFFFFFF);
+        }
+        return img;
+    }
+
+    private static BufferedImage copy(BufferedImage src) {
+        BufferedImage c = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = c.createGraphics();
+        g.drawImage(src, 0, 0, null);
+        g.dispose();
+        return c;
+    }
+}
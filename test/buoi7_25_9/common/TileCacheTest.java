@@ -0,0 +1,126 @@
+package buoi7_25_9.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Server (TileCache<Boolean>) và client (TileCache<BufferedImage>) áp dụng cùng chuỗi put / touch như v3:
+ * 2 bản phải luôn giữ cùng tập hash, và tile client vẽ từ cache phải đúng pixel nguồn.
+ */
+class TileCacheTest {
+    private static final int TW = 16, TH = 16, W = 72, H = 40; // 5 x 3 ô, cột / hàng cuối bị cắt
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        TileCache<Boolean> c = new TileCache<>(2);
+        c.put(1, Boolean.TRUE);
+        c.put(2, Boolean.TRUE);
+        assertNotNull(c.touch(1)); // 2 thành cũ nhất
+        assertTrue(c.contains(2)); // contains không đổi thứ tự LRU
+        c.put(3, Boolean.TRUE);
+        assertFalse(c.contains(2));
+        assertTrue(c.contains(1));
+        assertTrue(c.contains(3));
+        assertNull(c.touch(2));
+    }
+
+    @Test
+    void serverAndClientStayInSync() {
+        Random r = new Random(11);
+        int[] palette = new int[12]; // 12 "nội dung tile" khác nhau, nhiều hơn capacity -> có evict
+        for (int i = 0; i < palette.length; i++) palette[i] = r.nextInt(0x1000000);
+
+        TileCache<Boolean> server = new TileCache<>(9);
+        TileCache<BufferedImage> client = new TileCache<>(server.capacity());
+        BufferedImage canvas = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        Set<Long> seen = new HashSet<>();
+        long[] sent = null;
+        int cachedRecords = 0;
+
+        for (int f = 0; f < 200; f++) {
+            BufferedImage cur = frame(r, palette);
+            TileHashes hashes = TileHashes.of(cur, TW, TH);
+            for (int i = 0; i < hashes.tiles(); i++) seen.add(hashes.hash(i));
+
+            if (f % 50 == 0) {
+                // KEY: 2 đầu put lần lượt mọi tile của frame
+                long[] h = new long[hashes.tiles()];
+                for (int i = 0; i < h.length; i++) {
+                    h[i] = hashes.hash(i);
+                    server.put(h[i], Boolean.TRUE);
+                }
+                draw(canvas, cur, 0, 0);
+                TileCache.putKeyTiles(client, canvas, TW, TH, h);
+            } else {
+                // DELTA: ô đổi hash -> server quyết định CACHED / gửi pixel theo thứ tự record, client làm theo
+                boolean[] dirty = hashes.dirty(sent);
+                for (int i = 0; i < dirty.length; i++) {
+                    if (!dirty[i]) continue;
+                    long h = hashes.hash(i);
+                    int x = (i % hashes.nx) * TW, y = (i / hashes.nx) * TH;
+                    if (server.touch(h) != null) {
+                        BufferedImage tile = client.touch(h);
+                        assertNotNull(tile, "server tưởng client còn tile " + Long.toHexString(h));
+                        draw(canvas, tile, x, y);
+                        cachedRecords++;
+                    } else {
+                        server.put(h, Boolean.TRUE);
+                        BufferedImage tile = copy(cur.getSubimage(x, y, Math.min(TW, W - x), Math.min(TH, H - y)));
+                        draw(canvas, tile, x, y);
+                        client.put(h, tile);
+                    }
+                }
+            }
+            sent = hashes.copy();
+
+            assertPixelsEqual(cur, canvas, "frame " + f);
+            for (long h : seen) assertEquals(server.contains(h), client.contains(h), "hash " + Long.toHexString(h));
+        }
+        assertTrue(cachedRecords > 0);
+    }
+
+    // mỗi ô 1 nội dung từ palette (màu gốc + gradient ngang), ~1/3 số ô lấy ngẫu nhiên mỗi frame
+    private static BufferedImage frame(Random r, int[] palette) {
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < H; y += TH) {
+            for (int x = 0; x < W; x += TW) {
+                int c = palette[r.nextInt(3) == 0 ? r.nextInt(palette.length) : ((x / TW + y / TH) % 4)];
+                for (int yy = y; yy < Math.min(H, y + TH); yy++) {
+                    for (int xx = x; xx < Math.min(W, x + TW); xx++) img.setRGB(xx, yy, c ^ (xx - x) * 0x010101);
+                }
+            }
+        }
+        return img;
+    }
+
+    private static void draw(BufferedImage dst, BufferedImage src, int x, int y) {
+        Graphics2D g = dst.createGraphics();
+        g.drawImage(src, x, y, null);
+        g.dispose();
+    }
+
+    private static BufferedImage copy(BufferedImage src) {
+        BufferedImage c = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        draw(c, src, 0, 0);
+        return c;
+    }
+
+    private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual, String msg) {
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), msg + " pixel " + x + "," + y);
+            }
+        }
+    }
+}
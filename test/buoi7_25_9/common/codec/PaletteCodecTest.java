@@ -0,0 +1,109 @@
+package buoi7_25_9.common.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** PALETTE là lossless: decode(encode(tile)) phải trả đúng từng pixel ở cả 3 mode. */
+class PaletteCodecTest {
+
+    @Test
+    void fewColorsShortRunsUsePlainPalette() throws IOException {
+        BufferedImage img = fewColors();
+        byte[] b = encode(img);
+        assertEquals(PaletteCodec.MODE_PALETTE, b[8]);
+        assertPixelsEqual(img, Codecs.PALETTE.decode(b, 0, b.length));
+    }
+
+    @Test
+    void repeatedGlyphsUseDeflatedRuns() throws IOException {
+        // "chữ" 8x12 lặp lại trên nền trắng: nhiều run ngắn giống hệt nhau -> Deflate nhỏ hơn run thô
+        BufferedImage img = image(128, 96, BufferedImage.TYPE_INT_RGB,
+                (x, y) -> ((x % 8) * (y % 12)) % 5 == 1 ? 0x202020 : 0xFFFFFF);
+        byte[] b = encode(img);
+        assertEquals(PaletteCodec.MODE_PALETTE_DEFLATE, b[8]);
+        assertPixelsEqual(img, Codecs.PALETTE.decode(b, 0, b.length));
+    }
+
+    @Test
+    void moreThanMaxColorsFallsBackToDeflate() throws IOException {
+        BufferedImage img = image(64, 64, BufferedImage.TYPE_INT_RGB, (x, y) -> (y * 64 + x) * 0x010203);
+        byte[] b = encode(img);
+        assertEquals(PaletteCodec.MODE_DEFLATE, b[8]);
+        assertPixelsEqual(img, Codecs.PALETTE.decode(b, 0, b.length));
+    }
+
+    @Test
+    void nonIntRgbSourceAndSubimage() throws IOException {
+        BufferedImage big = image(100, 80, BufferedImage.TYPE_3BYTE_BGR, (x, y) -> x < 50 ? 0x0000FF : 0x00FF00);
+        BufferedImage tile = big.getSubimage(40, 10, 20, 30); // cắt qua biên 2 màu
+        byte[] b = encode(tile);
+        assertPixelsEqual(tile, Codecs.PALETTE.decode(b, 0, b.length));
+    }
+
+    @Test
+    void classifierChoiceEncodesSameBytesAsPlainEncoder() throws IOException {
+        Random r = new Random(7);
+        BufferedImage[] tiles = {
+                image(64, 64, BufferedImage.TYPE_INT_RGB, (x, y) -> ((x / 8 + y / 8) % 3) * 0x404040),
+                image(64, 64, BufferedImage.TYPE_INT_RGB, (x, y) -> x < 40 ? (y * 64 + x / 8) * 37 : 0xFFFFFF),
+                image(64, 64, BufferedImage.TYPE_INT_RGB, (x, y) -> r.nextInt()),
+        };
+        for (BufferedImage t : tiles) {
+            TileClassifier.Choice c = TileClassifier.choose(t);
+            byte[] viaChoice = c.encode(0.7f);
+            assertArrayEquals(EncoderSession.current().encodeToArray(c.codec(), t, 0.7f), viaChoice, c.codec().name());
+            if (c.codec() == Codecs.PALETTE) assertPixelsEqual(t, Codecs.PALETTE.decode(viaChoice, 0, viaChoice.length));
+        }
+        assertSame(Codecs.JPEG, TileClassifier.choose(tiles[2]).codec());
+    }
+
+    @Test
+    void truncatedDataIsRejected() throws IOException {
+        byte[] b = encode(fewColors());
+        assertEquals(PaletteCodec.MODE_PALETTE, b[8]);
+        assertThrows(IOException.class, () -> Codecs.PALETTE.decode(Arrays.copyOf(b, b.length - 1), 0, b.length - 1));
+        assertThrows(IOException.class, () -> Codecs.PALETTE.decode(b, 0, b.length / 2));
+        assertThrows(IOException.class, () -> Codecs.PALETTE.decode(b, 0, 8));
+    }
+
+    // 5 màu ngẫu nhiên, tile nhỏ: phần run < DEFLATE_MIN -> không nén
+    private static BufferedImage fewColors() {
+        Random r = new Random(3);
+        return image(12, 10, BufferedImage.TYPE_INT_RGB, (x, y) -> r.nextInt(5) * 0x332211);
+    }
+
+    private interface Pixel {
+        int rgb(int x, int y);
+    }
+
+    private static BufferedImage image(int w, int h, int type, Pixel p) {
+        BufferedImage img = new BufferedImage(w, h, type);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) img.setRGB(x, y, p.rgb(x, y));
+        }
+        return img;
+    }
+
+    private static byte[] encode(BufferedImage img) throws IOException {
+        return EncoderSession.current().encodeToArray(Codecs.PALETTE, img, 0.7f);
+    }
+
+    private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y) & 0xFFFFFF, actual.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package buoi7_25_9.record;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Ghi bằng FrameLog rồi đọc lại bằng FrameLogReader: thứ tự, body, index / seek, PREAMBLE, bám theo log đang ghi. */
+class FrameLogTest {
+
+    @Test
+    void readsBackRecordsAcrossSegments(@TempDir Path tmp) throws Exception {
+        Path dir = tmp.resolve("s");
+        try (FrameLog log = new FrameLog(dir, FrameLog.PROTOCOL_V3, 64)) { // segment nhỏ: mỗi record 1 segment
+            write(log, FrameLog.PREAMBLE, 0, "hello");
+            write(log, FrameLog.KEY, 1, "key-1");
+            write(log, FrameLog.DELTA, 2, "delta-2");
+            write(log, FrameLog.DELTA, 3, "a longer delta body than one segment".repeat(4));
+            assertEquals(4, log.records());
+        }
+        try (FrameLogReader r = new FrameLogReader(dir)) {
+            assertEquals(FrameLog.PROTOCOL_V3, r.protocol());
+            assertRecord(r, r.next(), FrameLog.PREAMBLE, 0, "hello");
+            assertRecord(r, r.next(), FrameLog.KEY, 1, "key-1");
+            assertRecord(r, r.next(), FrameLog.DELTA, 2, "delta-2");
+            assertRecord(r, r.next(), FrameLog.DELTA, 3, "a longer delta body than one segment".repeat(4));
+            assertNull(r.next());
+        }
+    }
+
+    @Test
+    void seekGoesToIndexedKey(@TempDir Path tmp) throws Exception {
+        Path dir = tmp.resolve("s");
+        try (FrameLog log = new FrameLog(dir, FrameLog.PROTOCOL_PATCH2, 1 << 16)) {
+            write(log, FrameLog.PREAMBLE, 0, "size");
+            write(log, FrameLog.KEY, 1, "key-1");
+            write(log, FrameLog.DELTA, 2, "delta-2");
+            write(log, FrameLog.KEY, 3, "key-3"); // < 1 s sau KEY trước: không vào index
+            Thread.sleep(1_100);
+            write(log, FrameLog.KEY, 4, "key-4");
+            write(log, FrameLog.DELTA, 5, "delta-5");
+        }
+        try (FrameLogReader r = new FrameLogReader(dir)) {
+            List<FrameLogReader.IndexEntry> index = r.index();
+            assertEquals(2, index.size());
+            assertEquals(1, index.get(0).seq);
+            assertEquals(4, index.get(1).seq);
+
+            r.seek(index.get(1).tsMillis);
+            assertRecord(r, r.next(), FrameLog.KEY, 4, "key-4");
+            // PREAMBLE đọc từ đầu log nhưng không làm mất vị trí hiện tại
+            List<FrameLogReader.Record> pre = r.preambles();
+            assertEquals(1, pre.size());
+            assertRecord(r, pre.get(0), FrameLog.PREAMBLE, 0, "size");
+            assertRecord(r, r.next(), FrameLog.DELTA, 5, "delta-5");
+            assertNull(r.next());
+
+            r.seek(index.get(1).tsMillis - 1); // giữa 2 entry -> KEY index trước
+            assertRecord(r, r.next(), FrameLog.KEY, 1, "key-1");
+
+            r.seek(index.get(0).tsMillis - 1); // trước entry đầu -> về đầu log
+            assertRecord(r, r.next(), FrameLog.PREAMBLE, 0, "size");
+        }
+    }
+
+    @Test
+    void readerFollowsLogBeingWritten(@TempDir Path tmp) throws Exception {
+        Path dir = tmp.resolve("s");
+        try (FrameLog log = new FrameLog(dir, FrameLog.PROTOCOL_V1, 256)) {
+            write(log, FrameLog.KEY, 1, "key-1");
+            try (FrameLogReader r = new FrameLogReader(dir)) {
+                assertRecord(r, r.next(), FrameLog.KEY, 1, "key-1");
+                assertNull(r.next());
+                for (int seq = 2; seq < 40; seq++) { // qua vài segment trong lúc reader đang mở
+                    write(log, FrameLog.DELTA, seq, "delta-" + seq);
+                    assertRecord(r, r.next(), FrameLog.DELTA, seq, "delta-" + seq);
+                    assertNull(r.next());
+                }
+            }
+        }
+    }
+
+    @Test
+    void refusesExistingLogAndForeignFiles(@TempDir Path tmp) throws Exception {
+        Path dir = tmp.resolve("s");
+        new FrameLog(dir, FrameLog.PROTOCOL_V3, 1024).close();
+        assertThrows(IOException.class, () -> new FrameLog(dir, FrameLog.PROTOCOL_V3, 1024));
+        assertThrows(IOException.class, () -> new FrameLogReader(tmp.resolve("missing")));
+    }
+
+    private static void write(FrameLog log, int kind, int seq, String body) throws IOException {
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        log.append(kind, seq, b, 0, b.length);
+    }
+
+    private static void assertRecord(FrameLogReader r, FrameLogReader.Record rec, int kind, int seq, String body) throws IOException {
+        assertNotNull(rec, "thiếu record seq " + seq);
+        assertEquals(kind, rec.kind);
+        assertEquals(seq, rec.seq);
+        assertTrue(rec.tsMillis > 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.transfer(rec, Channels.newChannel(out));
+        assertArrayEquals(body.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+}